@@ -0,0 +1,56 @@
+import benchmarks.Workloads;
+
+/**
+ * BenchmarkWorkloads runs the workloads of the JMH benchmarks on the client
+ * and server classes, which it can see from the unnamed package.
+ */
+public final class BenchmarkWorkloads implements Workloads {
+    private LoopbackServer server;
+    private Room room;
+
+    @Override
+    public long parse(String line) {
+        InputParser ip = InputParser.parseInput(line);
+        return ip.getErrorMessage() == null ? ip.getParams().size() : ip.getErrorMessage().length();
+    }
+
+    @Override
+    public void startServer() throws Exception {
+        server = LoopbackServer.start();
+    }
+
+    @Override
+    public long store(String filename, long fileLength, byte[] contents, int bufferSize) throws Exception {
+        return server.store(filename, fileLength, contents, bufferSize);
+    }
+
+    @Override
+    public long get(String filename, byte[] buffer) throws Exception {
+        return server.get(filename, buffer);
+    }
+
+    @Override
+    public void stopServer() throws Exception {
+        server.close();
+    }
+
+    @Override
+    public void registerClients(int clients) {
+        room = new Room(clients);
+    }
+
+    @Override
+    public void broadcast() {
+        room.broadcast();
+    }
+
+    @Override
+    public void awaitDelivery() {
+        Room.awaitDelivery();
+    }
+
+    @Override
+    public void closeClients() {
+        room.close();
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * LoopbackServer is a ServerThread in this process with its files in a
+ * temporary directory, and one client connected to it over loopback with the
+ * legacy protocol. The client writes and reads file contents with a buffer of
+ * the size it is given, the way the real client does with its own. Closing it
+ * disconnects the client and deletes the directory.
+ *
+ * It needs the chat port 5555 to be free.
+ */
+final class LoopbackServer implements Closeable {
+    private final Path directory;
+    private final FileCatalog catalog;
+    private final ServerSocketChannel fileSocket;
+    private final ServerSocket messageSocket;
+    private final Socket fileEndpoint = new Socket();
+    private final Socket messageEndpoint = new Socket();
+    private DataOutputStream writer;
+    private DataInputStream reader;
+
+    /**
+     * Must run before anything else touches the server files, which are only
+     * looked up once per process.
+     */
+    static LoopbackServer start() throws Exception {
+        Path directory = Files.createTempDirectory("file-exchange-bench");
+        System.setProperty(FileCatalog.SERVER_FILES_PROPERTY, directory.toString());
+        if (!FileCatalog.SERVER_FILES.equals(directory)) {
+            deleteTree(directory);
+            throw new IllegalStateException("Server files are already kept in " + FileCatalog.SERVER_FILES);
+        }
+        return new LoopbackServer(directory);
+    }
+
+    private LoopbackServer(Path directory) throws Exception {
+        this.directory = directory;
+        ServerConfig config = ServerConfig.parse(new String[] { "localhost", "0", "--compression=off" });
+        catalog = new FileCatalog(new FlatFileStore(), new FileCache(config.getCacheSize()));
+        catalog.start();
+
+        fileSocket = ServerSocketChannel.open();
+        messageSocket = new ServerSocket(config.getMessagePort());
+        try {
+            fileSocket.bind(new InetSocketAddress("localhost", 0));
+            fileEndpoint.connect(fileSocket.getLocalAddress());
+            messageEndpoint.connect(new InetSocketAddress("localhost", config.getMessagePort()));
+            fileEndpoint.setTcpNoDelay(true);
+            Thread.ofPlatform().daemon().name("server-thread-bench").start(new ServerThread(
+                    fileSocket.accept().socket(), messageSocket.accept(), config, catalog, new HandleRegistry(),
+                    new TransferScheduler(0, 0)));
+
+            writer = new DataOutputStream(fileEndpoint.getOutputStream());
+            reader = new DataInputStream(fileEndpoint.getInputStream());
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stores a file of the given length, writing it with a buffer of the given
+     * size.
+     *
+     * @return Bytes stored.
+     */
+    long store(String filename, long fileLength, byte[] contents, int bufferSize) throws IOException {
+        writer.writeUTF("STORE");
+        writer.writeUTF(filename);
+        writer.writeLong(fileLength);
+        for (long sent = 0; sent < fileLength;) {
+            int bytes = (int) Math.min(bufferSize, fileLength - sent);
+            writer.write(contents, 0, bytes);
+            sent += bytes;
+        }
+
+        // STORE has no reply; the reply to the next command means it is stored
+        writer.writeUTF("COMPRESSION");
+        writer.writeUTF(Compression.NONE);
+        reader.readUTF();
+        return fileLength;
+    }
+
+    /**
+     * Fetches a file, reading it with the given buffer.
+     *
+     * @return Bytes received.
+     */
+    long get(String filename, byte[] buffer) throws IOException {
+        writer.writeUTF("GET");
+        writer.writeUTF(filename);
+        if (!reader.readUTF().equals("FILE_EXISTS")) {
+            throw new IllegalStateException(filename + " is not on the server");
+        }
+
+        long fileLength = reader.readLong();
+        for (long received = 0; received < fileLength;) {
+            int bytes = reader.read(buffer, 0, (int) Math.min(buffer.length, fileLength - received));
+            if (bytes == -1) {
+                throw new EOFException();
+            }
+            received += bytes;
+        }
+        return fileLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (writer != null) {
+                writer.writeUTF("DISCONNECT");
+            }
+        } finally {
+            fileEndpoint.close();
+            messageEndpoint.close();
+            fileSocket.close();
+            messageSocket.close();
+            deleteTree(directory);
+        }
+    }
+
+    private static void deleteTree(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
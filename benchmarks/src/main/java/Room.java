@@ -0,0 +1,47 @@
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Room registers N clients whose outboxes write to nowhere, so that a
+ * broadcast to them costs only the server's own fan-out.
+ */
+final class Room implements Closeable {
+    private final HandleRegistry registry = new HandleRegistry();
+    private final List<MessageOutbox> outboxes = new ArrayList<>();
+
+    Room(int clients) {
+        for (int i = 0; i < clients; i++) {
+            MessageOutbox outbox = new MessageOutbox(OutputStream.nullOutputStream(), "bench-" + i, 1024,
+                    MessageOutbox.OverflowPolicy.DROP_OLDEST, () -> {
+                    });
+            outboxes.add(outbox);
+            registry.register("bench_" + i, outbox);
+        }
+    }
+
+    /**
+     * Queues one broadcast for every client, the way ServerThread.doBcCmd
+     * sends it.
+     */
+    void broadcast() {
+        registry.broadcast(String.format("Broadcast from %s: %s", "bench_0", "good morning everyone"));
+    }
+
+    /**
+     * Waits until every outbox has written what it was given.
+     */
+    static void awaitDelivery() {
+        while (MessageOutbox.totalDepth() > 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (MessageOutbox outbox : outboxes) {
+            outbox.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BroadcastBenchmark measures the fan-out of a BROADCAST to N registered
+ * clients: `queued` until it is queued for all of them, `delivered` until every
+ * outbox has written it. Sampled, so JMH reports the percentiles too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({ "10", "100", "1000", "10000" })
+    public int clients;
+
+    private Workloads workloads;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workloads = Workloads.load();
+        workloads.registerClients(clients);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        workloads.closeClients();
+    }
+
+    // outside the measured time of queued; a no-op after delivered
+    @TearDown(Level.Invocation)
+    public void drain() {
+        workloads.awaitDelivery();
+    }
+
+    @Benchmark
+    public void queued() {
+        workloads.broadcast();
+    }
+
+    @Benchmark
+    public void delivered() {
+        workloads.broadcast();
+        workloads.awaitDelivery();
+    }
+}
@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ParseBenchmark measures how many command lines of each kind
+ * InputParser.parseInput handles per second: a command without arguments, one
+ * with a pattern to check, one with quoted names, and an unknown command.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({ "/dir", "/join 127.0.0.1 4000 framed", "/get *.csv \"annual report.pdf\"", "/shout nobody knows" })
+    public String line;
+
+    private Workloads workloads;
+
+    @Setup
+    public void setUp() {
+        workloads = Workloads.load();
+    }
+
+    @Benchmark
+    public long parse() {
+        return workloads.parse(line);
+    }
+}
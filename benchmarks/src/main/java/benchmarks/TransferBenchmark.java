@@ -0,0 +1,92 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TransferBenchmark measures STORE and GET of one client against a
+ * ServerThread in the same process over loopback, for several file sizes and
+ * sizes of the buffer the client writes and reads with. The score counts
+ * files; the `bytes` counter next to it is the throughput in bytes per second.
+ *
+ * The server keeps its files in a temporary directory, and needs the chat port
+ * 5555 to be free.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferBenchmark {
+    private static final String FILENAME = "bench.bin";
+
+    @Param({ "65536", "1048576", "16777216" })
+    public int fileSize;
+
+    @Param({ "8192", "65536", "1048576" })
+    public int bufferSize;
+
+    private Workloads workloads;
+    private byte[] contents;
+    private byte[] buffer;
+    private PrintStream out;
+
+    /**
+     * Bytes moved, reported by JMH as a rate next to the score.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Traffic {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // the server prints a line for every transfer
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        contents = new byte[bufferSize];
+        new Random(42).nextBytes(contents);
+        buffer = new byte[bufferSize];
+
+        workloads = Workloads.load();
+        workloads.startServer();
+        // so that get has something to fetch
+        workloads.store(FILENAME, fileSize, contents, bufferSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workloads.stopServer();
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public void store(Traffic traffic) throws Exception {
+        traffic.bytes += workloads.store(FILENAME, fileSize, contents, bufferSize);
+    }
+
+    @Benchmark
+    public void get(Traffic traffic) throws Exception {
+        traffic.bytes += workloads.get(FILENAME, buffer);
+    }
+}
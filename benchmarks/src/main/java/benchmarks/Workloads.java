@@ -0,0 +1,63 @@
+package benchmarks;
+
+/**
+ * Workloads is how the JMH benchmarks reach the code under test. The client
+ * and server classes live in the unnamed package, which a class in a named
+ * package cannot refer to, and JMH only runs benchmarks in a named package.
+ * So BenchmarkWorkloads implements this interface next to the code under test
+ * and the benchmarks load it by name once per trial.
+ */
+public interface Workloads {
+    static Workloads load() {
+        try {
+            return (Workloads) Class.forName("BenchmarkWorkloads").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkWorkloads is missing from the build", e);
+        }
+    }
+
+    /**
+     * Parses one command line the way the client does.
+     *
+     * @return Something derived from the result, for a Blackhole.
+     */
+    long parse(String line);
+
+    /**
+     * Starts a server in this process with its files in a temporary directory
+     * and connects one client to it, see Benchmark.LoopbackServer.
+     */
+    void startServer() throws Exception;
+
+    /**
+     * @return Bytes stored.
+     */
+    long store(String filename, long fileLength, byte[] contents, int bufferSize) throws Exception;
+
+    /**
+     * @return Bytes received.
+     */
+    long get(String filename, byte[] buffer) throws Exception;
+
+    /**
+     * Disconnects the client and deletes the server's files.
+     */
+    void stopServer() throws Exception;
+
+    /**
+     * Registers clients whose outboxes write to nowhere, see Benchmark.Room.
+     */
+    void registerClients(int clients);
+
+    /**
+     * Queues one broadcast for every registered client.
+     */
+    void broadcast();
+
+    /**
+     * Waits until every outbox has written what it was given.
+     */
+    void awaitDelivery();
+
+    void closeClients();
+}
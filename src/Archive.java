@@ -0,0 +1,231 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Archive is the stream format of STORE_BATCH and GET_BATCH, which move many
+ * small files in one go instead of one round trip per file. The stream is a
+ * run of entries `[name: writeUTF][length: long][contents]` ended by an entry
+ * with an empty name and no length. In a GET_BATCH a file that is not on the
+ * server is an entry of length -1 without contents.
+ *
+ * The stream delimits itself, so it can follow a command on the legacy socket
+ * like any other payload. If the connection negotiated compression, the whole
+ * stream travels as Compression blocks, headers included.
+ */
+final class Archive {
+    // files up to this size are sent in batches when several are transferred
+    static final long SMALL_FILE = 1024 * 1024;
+    // most files and bytes per batch, so that a retry does not start too far back
+    static final int BATCH_FILES = 1000;
+    static final long BATCH_BYTES = 32 * 1024 * 1024;
+    // most encoded bytes of the names of one GET_BATCH, which go in a single writeUTF
+    static final int MAX_NAMES_BYTES = 60000;
+
+    private static final String SEPARATOR = "\n";
+
+    private Archive() {
+    }
+
+    /**
+     * Argument of GET_BATCH: the names, one per line.
+     */
+    static String joinNames(List<String> names) {
+        return String.join(SEPARATOR, names);
+    }
+
+    static List<String> splitNames(String names) {
+        return names.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(names.split(SEPARATOR)));
+    }
+
+    /**
+     * Bytes a name takes in the argument of GET_BATCH, separator included.
+     */
+    static int nameBytes(String name) {
+        // writeUTF uses modified UTF-8, which is at least as long as UTF-8
+        return name.getBytes(StandardCharsets.UTF_8).length + 2;
+    }
+
+    /**
+     * Starts an entry; exactly `length` bytes of contents must follow.
+     */
+    static void writeHeader(DataOutputStream out, String name, long length) throws IOException {
+        out.writeUTF(name);
+        out.writeLong(length);
+    }
+
+    /**
+     * Ends the archive.
+     */
+    static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeUTF("");
+    }
+
+    /**
+     * Receives the entries of an archive.
+     */
+    interface Entries {
+        /**
+         * Called when the header of an entry has arrived.
+         *
+         * @param length Length of the contents, or -1 if the file is missing.
+         * @return Where the contents go, closed after their last byte; null
+         *         to skip them.
+         */
+        OutputStream open(String name, long length) throws IOException;
+    }
+
+    /**
+     * Parses an archive that is pushed into it, e.g. from the DATA frames of
+     * a framed connection, and hands each entry to the Entries. It always
+     * knows how many bytes it needs next, so a caller that reads a stream can
+     * stop exactly at the end of the archive.
+     */
+    static final class Unpacker extends OutputStream {
+        private final Entries entries;
+        // header bytes: 2 for the name's length, the name, then 8 for the length
+        private byte[] header = new byte[2];
+        private int headerCount = 0;
+        private String name;
+        private OutputStream entry;
+        private long remaining = -1;
+        private boolean finished = false;
+
+        Unpacker(Entries entries) {
+            this.entries = entries;
+        }
+
+        boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * Number of bytes the unpacker can take without reading past the end
+         * of the archive; 0 once it is finished.
+         */
+        int needed() {
+            if (finished) {
+                return 0;
+            }
+            if (remaining >= 0) {
+                return (int) Math.min(remaining, 64 * 1024);
+            }
+            return header.length - headerCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (finished) {
+                    throw new IOException("Data after the end of the archive");
+                }
+
+                if (remaining >= 0) {
+                    int bytes = (int) Math.min(len, remaining);
+                    if (entry != null) {
+                        entry.write(b, off, bytes);
+                    }
+                    off += bytes;
+                    len -= bytes;
+                    remaining -= bytes;
+                    if (remaining == 0) {
+                        endEntry();
+                    }
+                    continue;
+                }
+
+                int bytes = Math.min(len, header.length - headerCount);
+                System.arraycopy(b, off, header, headerCount, bytes);
+                headerCount += bytes;
+                off += bytes;
+                len -= bytes;
+                if (headerCount == header.length) {
+                    onHeader();
+                }
+            }
+        }
+
+        private void onHeader() throws IOException {
+            if (name == null && header.length == 2) {
+                int nameLength = ((header[0] & 0xff) << 8) | (header[1] & 0xff);
+                if (nameLength == 0) {
+                    finished = true;
+                    return;
+                }
+                // read the name next, keeping its length in front for readUTF
+                header = Arrays.copyOf(header, 2 + nameLength);
+                return;
+            }
+
+            if (name == null) {
+                name = new DataInputStream(new ByteArrayInputStream(header)).readUTF();
+                header = new byte[Long.BYTES];
+                headerCount = 0;
+                return;
+            }
+
+            long length = 0;
+            for (byte x : header) {
+                length = (length << 8) | (x & 0xff);
+            }
+            if (length < -1) {
+                throw new IOException("Malformed archive entry " + name);
+            }
+
+            entry = entries.open(name, length);
+            remaining = length;
+            if (remaining <= 0) {
+                endEntry();
+            }
+        }
+
+        private void endEntry() throws IOException {
+            OutputStream done = entry;
+            entry = null;
+            name = null;
+            remaining = -1;
+            header = new byte[2];
+            headerCount = 0;
+            if (done != null) {
+                done.close();
+            }
+        }
+
+        /**
+         * Reads the rest of the archive from a stream, never past its end.
+         *
+         * @throws EOFException If the stream ends first.
+         */
+        void readFrom(InputStream in) throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            int wanted;
+            while ((wanted = needed()) > 0) {
+                int bytes = in.read(buffer, 0, wanted);
+                if (bytes == -1) {
+                    throw new EOFException("Archive ended early");
+                }
+                write(buffer, 0, bytes);
+            }
+        }
+
+        /**
+         * Leaves the entries open; an entry that was cut off is not closed.
+         */
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+
+/**
+ * BatchTransfer is the server's side of STORE_BATCH and GET_BATCH, see
+ * Archive. An instance receives one STORE_BATCH: every entry of the archive
+ * goes into an Upload of its own and is committed as soon as its last byte is
+ * in, so the files of a batch that was cut off stay stored up to the last
+ * complete one. An entry that cannot be stored is skipped and the rest of the
+ * batch goes on.
+ */
+final class BatchTransfer implements Archive.Entries {
+    private final FileCatalog catalog;
+    private final Archive.Unpacker unpacker = new Archive.Unpacker(this);
+    // entry being received; closed without commit if the batch is cut off
+    private Upload upload;
+    private int stored = 0;
+    private int failed = 0;
+
+    BatchTransfer(FileCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Where the archive goes.
+     */
+    Archive.Unpacker unpacker() {
+        return unpacker;
+    }
+
+    @Override
+    public OutputStream open(String name, long length) throws IOException {
+        if (length < 0) {
+            failed++;
+            return null;
+        }
+
+        try {
+            upload = Upload.begin(catalog.getStore(), name, length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed++;
+            return null;
+        }
+
+        OutputStream contents = upload.stream();
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                contents.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                finishEntry(name);
+            }
+        };
+    }
+
+    private void finishEntry(String name) throws IOException {
+        try (Upload done = upload) {
+            upload = null;
+            done.commit();
+            catalog.refresh(name);
+            stored++;
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed++;
+        }
+    }
+
+    /**
+     * Reply to STORE_BATCH: STORE_DONE if every entry was stored, else
+     * STORE_FAILED, followed by the number of files stored (int).
+     */
+    String getResponse() {
+        return failed == 0 && unpacker.isFinished() ? "STORE_DONE" : "STORE_FAILED";
+    }
+
+    int getStored() {
+        return stored;
+    }
+
+    /**
+     * Discards the entry that was being received, if any.
+     */
+    void close() throws IOException {
+        if (upload != null) {
+            upload.close();
+            upload = null;
+        }
+    }
+
+    /**
+     * Writes the archive of a GET_BATCH, for the engines that send with
+     * blocking streams. Every file reserves its bytes with the scheduler like
+     * a GET would, so small files go right out. Missing files get an entry of length
+     * -1, so the client learns about them in the same pass.
+     *
+     * @param archive Stream of the archive; the caller flushes or closes it.
+     */
+    static void pack(FileCatalog catalog, TransferScheduler scheduler, InetAddress client, List<String> names,
+            DataOutputStream archive) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        for (String name : names) {
+            FileChannel file;
+            try {
+                file = catalog.open(name);
+            } catch (NoSuchFileException e) {
+                Archive.writeHeader(archive, name, -1);
+                continue;
+            }
+
+            try (file; TransferScheduler.Transfer transfer = scheduler.start(client, name, file.size())) {
+                long length = file.size();
+                Archive.writeHeader(archive, name, length);
+
+                long position = 0;
+                while (position < length) {
+                    int bytes = (int) transfer.nextSlice(Math.min(buffer.length, length - position));
+                    transfer.acquire(bytes);
+                    ByteBuffer slice = ByteBuffer.wrap(buffer, 0, bytes);
+                    while (slice.hasRemaining()) {
+                        if (file.read(slice, position + slice.position()) == -1) {
+                            throw new EOFException("File shrank while being sent");
+                        }
+                    }
+                    archive.write(buffer, 0, bytes);
+                    position += bytes;
+                }
+            }
+        }
+        Archive.writeEnd(archive);
+    }
+}
@@ -0,0 +1,568 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BlobStore is the deduplicating storage. Every file is split into chunks of
+ * CHUNK_SIZE bytes that are stored once each under their SHA-256 in
+ * `server_files/.store/chunks`, and the file itself is only a manifest in
+ * `server_files/.store/manifests` listing its chunks. Storing a file whose
+ * chunks are already there writes nothing but the manifest.
+ *
+ * Each chunk is counted once per manifest entry that uses it and once per
+ * channel that is reading it, and is deleted when the count drops to zero. So a
+ * GET that is streaming a file keeps its chunks alive even if the file is
+ * replaced meanwhile, same as an open file in FlatFileStore. The counts are
+ * rebuilt from the manifests on startup, which also deletes chunks that
+ * nothing refers to anymore, e.g. after a manifest was removed by hand.
+ *
+ * Manifests are `[magic: int][length: long][count: int]` followed by
+ * `[sha256: 32 bytes][length: int]` per chunk.
+ */
+final class BlobStore implements FileStore {
+    private static final Path ROOT = FileCatalog.SERVER_FILES.resolve(".store");
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MAGIC = 0x46584231; // "FXB1"
+
+    private final Path chunks = ROOT.resolve("chunks");
+    private final Path manifests = ROOT.resolve("manifests");
+    private final Path tmp = ROOT.resolve("tmp");
+
+    // references per chunk, by hex digest; guarded by lock
+    private final HashMap<String, Integer> references = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private record Chunk(String digest, int length) {
+    }
+
+    private record Manifest(long length, List<Chunk> chunks) {
+    }
+
+    private BlobStore() {
+    }
+
+    /**
+     * Opens the store, creating it if needed, and removes whatever an earlier
+     * run left behind.
+     */
+    static BlobStore open() throws IOException {
+        BlobStore store = new BlobStore();
+        Files.createDirectories(store.chunks);
+        Files.createDirectories(store.manifests);
+        Files.createDirectories(store.tmp);
+
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(store.tmp)) {
+            for (Path path : leftovers) {
+                Files.deleteIfExists(path);
+            }
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(store.manifests)) {
+            for (Path path : files) {
+                try {
+                    for (Chunk chunk : readManifest(path).chunks()) {
+                        store.references.merge(chunk.digest(), 1, Integer::sum);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Server: Ignoring unreadable manifest " + path.getFileName());
+                }
+            }
+        }
+
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(store.chunks)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(prefix)) {
+                    for (Path blob : blobs) {
+                        if (!store.references.containsKey(blob.getFileName().toString())) {
+                            Files.deleteIfExists(blob);
+                        }
+                    }
+                }
+            }
+        }
+
+        return store;
+    }
+
+    @Override
+    public Path directory() {
+        return manifests;
+    }
+
+    @Override
+    public FileEntry describe(String filename) throws IOException {
+        Path path = FileStore.resolve(manifests, filename);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            if (in.readInt() != MAGIC) {
+                throw new NoSuchFileException(filename);
+            }
+            return new FileEntry(filename, in.readLong(), Files.getLastModifiedTime(path).toMillis(), null);
+        }
+    }
+
+    @Override
+    public FileChannel open(String filename) throws IOException {
+        lock.lock();
+        try {
+            // read under the lock so that the chunks cannot go away before they are counted
+            Manifest manifest = readManifest(FileStore.resolve(manifests, filename));
+            for (Chunk chunk : manifest.chunks()) {
+                references.merge(chunk.digest(), 1, Integer::sum);
+            }
+            return new ManifestChannel(manifest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Splits the upload into chunks and writes the ones the store does not
+     * have yet, then publishes the manifest. The upload itself is never
+     * flushed to disk; only new chunks and the manifest are.
+     */
+    @Override
+    public void commit(FileChannel upload, Path temp, String filename) throws IOException {
+        Path manifestPath = FileStore.resolve(manifests, filename);
+        long length = upload.size();
+        List<Chunk> list = new ArrayList<>();
+        Map<String, Path> written = new HashMap<>();
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, Math.max(length, 1)));
+            for (long position = 0; position < length; position += CHUNK_SIZE) {
+                readChunk(upload, position, (int) Math.min(CHUNK_SIZE, length - position), buffer);
+                String digest = sha256(buffer);
+                list.add(new Chunk(digest, buffer.remaining()));
+
+                // a racy peek; commits that lose the race are fixed up below
+                if (written.containsKey(digest) || isReferenced(digest)) {
+                    continue;
+                }
+                written.put(digest, writeTemp(buffer));
+            }
+
+            byte[] encoded = encodeManifest(new Manifest(length, list));
+            Path manifestTemp = tmp.resolve(UUID.randomUUID() + ".manifest");
+            Files.write(manifestTemp, encoded);
+            try (FileChannel channel = FileChannel.open(manifestTemp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+
+            lock.lock();
+            try {
+                long position = 0;
+                for (Chunk chunk : list) {
+                    if (!references.containsKey(chunk.digest()) && !Files.exists(chunkPath(chunk.digest()))) {
+                        Path source = written.remove(chunk.digest());
+                        if (source == null) {
+                            // the chunk was deleted after the peek above
+                            readChunk(upload, position, chunk.length(), buffer);
+                            source = writeTemp(buffer);
+                        }
+                        Files.createDirectories(chunkPath(chunk.digest()).getParent());
+                        Files.move(source, chunkPath(chunk.digest()), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    references.merge(chunk.digest(), 1, Integer::sum);
+                    position += chunk.length();
+                }
+
+                Manifest old = null;
+                try {
+                    old = readManifest(manifestPath);
+                } catch (NoSuchFileException e) {
+                    // first version of the file
+                }
+
+                Files.move(manifestTemp, manifestPath, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                if (old != null) {
+                    release(old.chunks());
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            // chunks that turned out to be there already
+            for (Path path : written.values()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private boolean isReferenced(String digest) {
+        lock.lock();
+        try {
+            return references.containsKey(digest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops one reference to each chunk and deletes the ones nobody needs.
+     */
+    private void release(List<Chunk> list) {
+        lock.lock();
+        try {
+            for (Chunk chunk : list) {
+                Integer count = references.merge(chunk.digest(), -1, Integer::sum);
+                if (count != null && count <= 0) {
+                    references.remove(chunk.digest());
+                    try {
+                        Files.deleteIfExists(chunkPath(chunk.digest()));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Path chunkPath(String digest) {
+        return chunks.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private Path writeTemp(ByteBuffer chunk) throws IOException {
+        Path path = tmp.resolve(UUID.randomUUID() + ".chunk");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = chunk.duplicate();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+        return path;
+    }
+
+    private static void readChunk(FileChannel source, long position, int length, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("Upload is shorter than its announced length");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static String sha256(ByteBuffer chunk) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(chunk.duplicate());
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encodeManifest(Manifest manifest) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(16 + manifest.chunks().size() * 36);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(MAGIC);
+        out.writeLong(manifest.length());
+        out.writeInt(manifest.chunks().size());
+        for (Chunk chunk : manifest.chunks()) {
+            out.write(HexFormat.of().parseHex(chunk.digest()));
+            out.writeInt(chunk.length());
+        }
+        return bos.toByteArray();
+    }
+
+    private static Manifest readManifest(Path path) throws IOException {
+        try (InputStream file = Files.newInputStream(path)) {
+            DataInputStream in = new DataInputStream(file);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a manifest: " + path);
+            }
+
+            long length = in.readLong();
+            int count = in.readInt();
+            List<Chunk> list = new ArrayList<>(count);
+            byte[] digest = new byte[32];
+            for (int i = 0; i < count; i++) {
+                in.readFully(digest);
+                list.add(new Chunk(HexFormat.of().formatHex(digest), in.readInt()));
+            }
+            return new Manifest(length, list);
+        }
+    }
+
+    /**
+     * A chunk file that is open for reading.
+     */
+    private record OpenChunk(int index, FileChannel channel) {
+    }
+
+    /**
+     * Read-only channel over the chunks of one manifest, so that GET can read
+     * and transferTo a stored file as if it were one plain file. Each chunk is
+     * opened when it is first read; transferTo hands every chunk to the
+     * kernel on its own.
+     *
+     * Positional reads and transferTo take no lock, so a virtual thread that
+     * blocks in them never pins its carrier. Only the reads that move the
+     * channel's position hold positionLock.
+     */
+    private final class ManifestChannel extends FileChannel {
+        private final Manifest manifest;
+        // offset of each chunk in the file
+        private final long[] offsets;
+        private final ReentrantLock positionLock = new ReentrantLock();
+        // guarded by positionLock
+        private long position = 0;
+
+        // most recently used chunk, kept open for sequential reads; taken out while a read uses it
+        private final AtomicReference<OpenChunk> cached = new AtomicReference<>();
+
+        ManifestChannel(Manifest manifest) {
+            this.manifest = manifest;
+            this.offsets = new long[manifest.chunks().size()];
+            long offset = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = offset;
+                offset += manifest.chunks().get(i).length();
+            }
+        }
+
+        private int indexOf(long position) {
+            int low = 0;
+            int high = offsets.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (offsets[mid] <= position) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Takes the chunk out of the cache, or opens it if the cache holds
+         * another one. Concurrent reads each get a channel of their own.
+         */
+        private OpenChunk take(int index) throws IOException {
+            OpenChunk chunk = cached.getAndSet(null);
+            if (chunk != null && chunk.index() == index && chunk.channel().isOpen()) {
+                return chunk;
+            }
+            if (chunk != null) {
+                chunk.channel().close();
+            }
+            return new OpenChunk(index,
+                    FileChannel.open(chunkPath(manifest.chunks().get(index).digest()), StandardOpenOption.READ));
+        }
+
+        /**
+         * Puts a chunk back into the cache once a read is done with it.
+         */
+        private void putBack(OpenChunk chunk) throws IOException {
+            OpenChunk replaced = cached.getAndSet(chunk);
+            if (replaced != null) {
+                replaced.channel().close();
+            }
+
+            // closed meanwhile; implCloseChannel may have run before the chunk was back
+            if (!isOpen()) {
+                OpenChunk left = cached.getAndSet(null);
+                if (left != null) {
+                    left.channel().close();
+                }
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position >= manifest.length()) {
+                return -1;
+            }
+
+            int total = 0;
+            while (dst.hasRemaining() && position < manifest.length()) {
+                int index = indexOf(position);
+                OpenChunk chunk = take(index);
+                int bytes;
+                try {
+                    bytes = chunk.channel().read(dst, position - offsets[index]);
+                } finally {
+                    putBack(chunk);
+                }
+                if (bytes <= 0) {
+                    break;
+                }
+                position += bytes;
+                total += bytes;
+            }
+            return total;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            positionLock.lock();
+            try {
+                int bytes = read(dst, position);
+                if (bytes > 0) {
+                    position += bytes;
+                }
+                return bytes;
+            } finally {
+                positionLock.unlock();
+            }
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            positionLock.lock();
+            try {
+                long total = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    int bytes = read(dsts[i]);
+                    if (bytes == -1) {
+                        return total == 0 ? -1 : total;
+                    }
+                    total += bytes;
+                    if (dsts[i].hasRemaining()) {
+                        break;
+                    }
+                }
+                return total;
+            } finally {
+                positionLock.unlock();
+            }
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long end = Math.min(manifest.length(), position + count);
+            long total = 0;
+            while (position < end) {
+                int index = indexOf(position);
+                long inChunk = position - offsets[index];
+                long wanted = Math.min(end - position, manifest.chunks().get(index).length() - inChunk);
+                OpenChunk chunk = take(index);
+                long bytes;
+                try {
+                    bytes = chunk.channel().transferTo(inChunk, wanted, target);
+                } finally {
+                    putBack(chunk);
+                }
+                position += bytes;
+                total += bytes;
+                if (bytes < wanted) {
+                    // non-blocking target is full
+                    break;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public long position() {
+            positionLock.lock();
+            try {
+                return position;
+            } finally {
+                positionLock.unlock();
+            }
+        }
+
+        @Override
+        public FileChannel position(long newPosition) {
+            positionLock.lock();
+            try {
+                position = newPosition;
+                return this;
+            } finally {
+                positionLock.unlock();
+            }
+        }
+
+        @Override
+        public long size() {
+            return manifest.length();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+            // nothing to flush
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException("Stored files cannot be mapped");
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Stored files cannot be locked");
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Stored files cannot be locked");
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            OpenChunk chunk = cached.getAndSet(null);
+            if (chunk != null) {
+                chunk.channel().close();
+            }
+            release(manifest.chunks());
+        }
+    }
+}
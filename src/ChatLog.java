@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+
+/**
+ * ChatLog holds the lines shown in the chat logs of ClientView. It keeps only
+ * the last `capacity` lines in a ring, so a client left open in a busy room
+ * uses the same memory after days as after minutes.
+ *
+ * Any thread may append. Appended text is split and wrapped into lines on the
+ * appending thread and queued; the event dispatch thread then moves everything
+ * queued into the ring in one go, so a flood of broadcasts costs one update of
+ * the list instead of one per message.
+ */
+final class ChatLog extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    // queued in place of lines to empty the log
+    private static final String[] CLEAR = new String[0];
+
+    private final int capacity;
+    private final int columns;
+
+    // only touched on the event dispatch thread
+    private final String[] lines;
+    private int head = 0;
+    private int size = 0;
+
+    // text appended but not yet in the ring, one array of lines per append
+    private final ConcurrentLinkedQueue<String[]> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingLines = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    /**
+     * @param capacity Most lines kept; older ones are dropped.
+     * @param columns  Width at which lines are wrapped, in characters.
+     */
+    ChatLog(int capacity, int columns) {
+        this.capacity = capacity;
+        this.columns = columns;
+        this.lines = new String[capacity];
+    }
+
+    /**
+     * Appends text, which may span several lines, after everything appended
+     * before. Safe to call from any thread.
+     */
+    void append(String s) {
+        String[] wrapped = wrap(s);
+        pending.add(wrapped);
+
+        // if the event dispatch thread falls behind, drop the oldest text
+        // still waiting, since the ring would drop it anyway; never a CLEAR,
+        // or the text before it would stay
+        if (pendingLines.addAndGet(wrapped.length) > capacity) {
+            for (String[] text : pending) {
+                if (text != CLEAR) {
+                    // false if a flush took it first
+                    if (pending.remove(text)) {
+                        pendingLines.addAndGet(-text.length);
+                    }
+                    break;
+                }
+            }
+        }
+
+        scheduleFlush();
+    }
+
+    /**
+     * Empties the log once everything appended before is shown. Safe to call
+     * from any thread.
+     */
+    void clear() {
+        pending.add(CLEAR);
+        scheduleFlush();
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(head + index) % capacity];
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::flush);
+        }
+    }
+
+    private void flush() {
+        // appends from here on need another flush
+        flushScheduled.set(false);
+
+        List<String> added = new ArrayList<>();
+        String[] text;
+        while ((text = pending.poll()) != null) {
+            if (text == CLEAR) {
+                show(added);
+                added.clear();
+                if (size > 0) {
+                    int removed = size;
+                    head = 0;
+                    size = 0;
+                    fireIntervalRemoved(this, 0, removed - 1);
+                }
+                continue;
+            }
+
+            pendingLines.addAndGet(-text.length);
+            for (String line : text) {
+                added.add(line);
+            }
+        }
+        show(added);
+    }
+
+    /**
+     * Moves lines into the ring, dropping the oldest lines to make room, and
+     * tells the list what changed.
+     */
+    private void show(List<String> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+
+        // of a batch larger than the ring only its end survives
+        int skip = Math.max(0, added.size() - capacity);
+        int count = added.size() - skip;
+
+        int removed = Math.min(size, Math.max(0, size + count - capacity));
+        if (removed > 0) {
+            head = (head + removed) % capacity;
+            size -= removed;
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+
+        int first = size;
+        for (int i = skip; i < added.size(); i++) {
+            lines[(head + size) % capacity] = added.get(i);
+            size++;
+        }
+        fireIntervalAdded(this, first, size - 1);
+    }
+
+    /**
+     * Splits text into lines no wider than the log, breaking long lines at the
+     * last space that fits where there is one.
+     */
+    private String[] wrap(String s) {
+        List<String> wrapped = new ArrayList<>();
+        for (String line : s.replace("\t", "    ").split("\r?\n", -1)) {
+            while (line.length() > columns) {
+                int end = line.lastIndexOf(' ', columns);
+                if (end <= 0) {
+                    end = columns;
+                }
+                wrapped.add(line.substring(0, end));
+                line = line.substring(line.charAt(end) == ' ' ? end + 1 : end);
+            }
+            wrapped.add(line);
+        }
+        return wrapped.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Checksums computes the hex SHA-256 digests that the server and the client
+ * compare, e.g. the digest shown by DIR_PAGE or the one that proves a partial
+ * file still matches before a transfer resumes.
+ */
+final class Checksums {
+    private Checksums() {
+    }
+
+    /**
+     * Digest of the first `length` bytes of a file, or of the whole file if it
+     * is shorter.
+     */
+    static String sha256(Path path, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return sha256(channel, length);
+        }
+    }
+
+    /**
+     * Digest of the first `length` bytes of an open file. Uses positional reads
+     * only, so the channel's position is left alone.
+     */
+    static String sha256(FileChannel channel, long length) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        int bytes;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            if ((bytes = channel.read(buffer, position)) == -1) {
+                break;
+            }
+            md.update(buffer.flip());
+            position += bytes;
+        }
+
+        return HexFormat.of().formatHex(md.digest());
+    }
+}
@@ -1,7 +1,8 @@
 public class Client {
     public static void main(String[] args) {
         ClientView clientView = new ClientView();
-        ClientModel clientModel = new ClientModel(clientView);
-        ClientController clientController = new ClientController(clientModel, clientView);
+        ClientEngine clientEngine = new ClientEngine(clientView);
+        ClientModel clientModel = new ClientModel(clientView, clientEngine);
+        ClientController clientController = new ClientController(clientModel, clientView, clientEngine);
     }
 }
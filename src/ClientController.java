@@ -1,20 +1,30 @@
+import javax.swing.SwingUtilities;
+
 public class ClientController {
     private ClientModel clientModel;
     private ClientView clientView;
+    private ClientEngine clientEngine;
 
-    public ClientController(ClientModel clientModel, ClientView clientView) {
+    public ClientController(ClientModel clientModel, ClientView clientView, ClientEngine clientEngine) {
         this.clientModel = clientModel;
         this.clientView = clientView;
+        this.clientEngine = clientEngine;
 
         appendCommandPrompt();
 
         clientView.addChatboxActionListener(e -> {
             String input = clientView.getChatboxText();
             clientView.setChatboxText("");
-            doCommand(input);
-            clientView.appendChatLogsText(clientModel.getFunctionOutput());
-            clientView.appendChatLogsText(""); // print newline
-            appendCommandPrompt();
+
+            // network commands must not block the event dispatch thread
+            clientEngine.submit(() -> {
+                doCommand(input);
+                return clientModel.getFunctionOutput();
+            }).thenAccept(output -> SwingUtilities.invokeLater(() -> {
+                clientView.appendChatLogsText(output);
+                clientView.appendChatLogsText(""); // print newline
+                appendCommandPrompt();
+            }));
         });
     }
 
@@ -45,7 +55,10 @@ public class ClientController {
             // connect user to server
             String host = ip.getParams(0);
             int port = Integer.parseInt(ip.getParams(1));
-            clientModel.doJoinCmd(host, port);
+            ServerConfig.Protocol protocol = ip.getParams(2) != null
+                    ? ServerConfig.Protocol.valueOf(ip.getParams(2).toUpperCase())
+                    : ServerConfig.Protocol.LEGACY;
+            clientModel.doJoinCmd(host, port, protocol);
             return;
         }
 
@@ -57,22 +70,62 @@ public class ClientController {
         }
 
         if (command.equals("dir")) {
-            // return list of file names in server directory
+            // return first page of file names in server directory
             clientModel.doDirCmd();
             return;
         }
 
+        if (command.equals("find")) {
+            // return first page of server files matching a glob
+            String pattern = ip.getParams(0);
+            String sort = ip.getParams(1) != null ? ip.getParams(1) : "name";
+            clientModel.doFindCmd(pattern, sort);
+            return;
+        }
+
+        if (command.equals("next")) {
+            // continue the last /dir or /find listing
+            clientModel.doNextCmd();
+            return;
+        }
+
         if (command.equals("store")) {
-            // fetch file from client directory and store it in server directory
-            String filename = ip.getParams(0);
-            clientModel.doStoreCmd(filename);
+            // fetch files from client directory and store them in server directory
+            String filenames = ip.getParams(0);
+            clientModel.doStoreCmd(filenames);
             return;
         }
 
         if (command.equals("get")) {
-            // fetch file from server and download to client directory
-            String filename = ip.getParams(0);
-            clientModel.doGetCmd(filename);
+            // fetch files from server and download them to client directory
+            String filenames = ip.getParams(0);
+            clientModel.doGetCmd(filenames);
+            return;
+        }
+
+        if (command.equals("streams")) {
+            // set how many connections a large download may use at once
+            int streams = Integer.parseInt(ip.getParams(0));
+            clientModel.doStreamsCmd(streams);
+            return;
+        }
+
+        if (command.equals("jobs")) {
+            // set how many transfers may run at once
+            int jobs = Integer.parseInt(ip.getParams(0));
+            clientModel.doJobsCmd(jobs);
+            return;
+        }
+
+        if (command.equals("queue")) {
+            // show the running and queued transfers
+            clientModel.doQueueCmd();
+            return;
+        }
+
+        if (command.equals("stats")) {
+            // show the server's counters and command latencies
+            clientModel.doStatsCmd();
             return;
         }
 
@@ -0,0 +1,127 @@
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * ClientEngine runs the client's commands off the Swing event dispatch
+ * thread, so the window keeps responding while the network is busy.
+ *
+ * Commands run one at a time on a single thread, in the order they were
+ * entered, since they share the connection's replies. Transfers that do not
+ * have to wait for other commands run on threads of their own. While any
+ * transfer runs, the status line of the window shows how far each one is and
+ * how fast it goes, and its outcome is printed once it is done.
+ */
+final class ClientEngine {
+    private static final int STATUS_MILLIS = 500;
+
+    private final ClientView clientView;
+    private final ExecutorService commands = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "client-commands");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService transfers = Executors
+            .newThreadPerTaskExecutor(Thread.ofVirtual().name("client-transfer-", 0).factory());
+
+    // transfers that are queued or running, in the order they were started
+    private final List<Transfer> active = new CopyOnWriteArrayList<>();
+    // transfers that wait in the TransferManager and were not started yet
+    private volatile int queued = 0;
+    // fires on the event dispatch thread
+    private final Timer statusTimer;
+
+    private record Transfer(String label, TransferProgress progress) {
+    }
+
+    ClientEngine(ClientView clientView) {
+        this.clientView = clientView;
+        this.statusTimer = new Timer(STATUS_MILLIS, e -> updateStatus());
+    }
+
+    /**
+     * Runs a command on the command thread, after every command submitted
+     * before it.
+     *
+     * @return Result of the command, or null if it failed unexpectedly.
+     */
+    <T> CompletableFuture<T> submit(Callable<T> command) {
+        return CompletableFuture.supplyAsync(() -> call(command), commands);
+    }
+
+    /**
+     * Runs a transfer in the background and prints the message it returns
+     * once it is done.
+     *
+     * @param label    Names the transfer in the status line.
+     * @param parallel Whether it may run beside other commands; if not, it
+     *                 runs on the command thread and later commands wait
+     *                 for it.
+     * @return Message of the finished transfer.
+     */
+    CompletableFuture<String> transfer(String label, TransferProgress progress, boolean parallel,
+            Callable<String> work) {
+        Transfer transfer = new Transfer(label, progress);
+        active.add(transfer);
+        SwingUtilities.invokeLater(() -> {
+            updateStatus();
+            statusTimer.start();
+        });
+
+        return CompletableFuture.supplyAsync(() -> call(work), parallel ? transfers : commands)
+                .whenComplete((message, e) -> {
+                    active.remove(transfer);
+                    SwingUtilities.invokeLater(() -> {
+                        clientView.appendChatLogsText(message);
+                        clientView.appendChatLogsText(""); // print newline
+                        updateStatus();
+                    });
+                });
+    }
+
+    /**
+     * Sets how many transfers wait to be started, for the status line.
+     */
+    void setQueued(int queued) {
+        this.queued = queued;
+    }
+
+    private static <T> T call(Callable<T> command) {
+        try {
+            return command.call();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Shows every active transfer in the status line. Runs on the event
+     * dispatch thread.
+     */
+    private void updateStatus() {
+        if (active.isEmpty() && queued == 0) {
+            statusTimer.stop();
+            clientView.setStatusText("");
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Transfer transfer : active) {
+            if (sb.length() > 0) {
+                sb.append("   |   ");
+            }
+            sb.append(transfer.label()).append(": ").append(transfer.progress().summary());
+        }
+        if (queued > 0) {
+            sb.append(String.format("   |   %d more queued", queued));
+        }
+        clientView.setStatusText(sb.toString());
+    }
+}
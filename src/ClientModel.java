@@ -1,34 +1,53 @@
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.io.IOException;
 import java.net.SocketException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class ClientModel {
+    // number of files requested per DIR_PAGE round trip
+    private static final int DIR_PAGE_SIZE = 50;
+
     private ClientView clientView;
+    private ClientEngine clientEngine;
+    private TransferManager transferManager;
+
+    // most connections a /get may download over at once
+    private int maxStreams = SegmentedDownload.DEFAULT_STREAMS;
 
-    private boolean joined = false;
-    private boolean registered = false;
+    // commands run on the engine's command thread, transfers on their own threads
+    private volatile boolean joined = false;
+    private volatile boolean registered = false;
 
     private String functionOutput;
-    private String registeredHandle;
+    private volatile String registeredHandle;
 
-    private Socket fileEndpoint;
-    private Socket messageEndpoint;
+    private volatile ServerConnection connection;
     private ClientThread ct;
-    private DataInputStream reader;
-    private DataOutputStream writer;
-    private FileOutputStream fileWriter;
-    private FileInputStream fileReader;
 
-    public ClientModel(ClientView clientView) {
+    // listing that /next continues; cursor is null once the last page was shown
+    private String dirPattern;
+    private String dirSort;
+    private String dirCursor;
+
+    public ClientModel(ClientView clientView, ClientEngine clientEngine) {
         this.clientView = clientView;
+        this.clientEngine = clientEngine;
+        this.transferManager = new TransferManager(clientEngine);
     }
 
     public void doHelpCmd() {
@@ -36,11 +55,22 @@ public class ClientModel {
                 Available commands:
                 /?                                    Show this help text.
                 /join <server_ip_address> <port>      Connect to the server application.
+                /join <server_ip_address> <port> mux  Connect over a single multiplexed socket.
+                /join <server_ip_address> <port> framed
+                                                      Connect with the pipelined framed protocol.
                 /leave                                Disconnect from the server application.
                 /register <handle>                    Register a unique handle or alias.
                 /dir                                  Request directory list from the server.
-                /store <filename>                     Send file to the server.
-                /get <filename>                       Fetch a file from the server.
+                /find <glob> [name|size|mtime]        List server files matching a glob, e.g. *.log.
+                                                      Prefix the sort with - to sort descending.
+                /next                                 Show the next page of /dir or /find.
+                /store <filename> ...                 Send files to the server; globs like *.csv work.
+                /get <filename> ...                   Fetch files from the server; globs like *.csv work.
+                                                      Quote names that contain spaces.
+                /streams <count>                      Most connections a large /get may use at once.
+                /jobs <count>                         Most transfers that run at once.
+                /queue                                Show the running and queued transfers.
+                /stats                                Show the server's traffic and command latencies.
                 /msg <handle> <message>               Message a fellow user in the server.
                 /bc <message>                         Message all users in the server.
                 """;
@@ -55,7 +85,8 @@ public class ClientModel {
         }
 
         try {
-            writer.writeUTF("DISCONNECT");
+            connection.send("DISCONNECT", out -> {
+            });
             functionOutput = "Client: Connection closed: Thank you!";
         } catch (SocketException e) {
             functionOutput = "Error: Server connection has terminated.";
@@ -66,7 +97,7 @@ public class ClientModel {
         }
     }
 
-    public void doJoinCmd(String host, int port) {
+    public void doJoinCmd(String host, int port, ServerConfig.Protocol protocol) {
         if (joined) {
             functionOutput = "Error: You are already connected to the server.";
             return;
@@ -75,16 +106,10 @@ public class ClientModel {
         StringBuilder sb = new StringBuilder();
         try {
             sb.append(String.format("Client: Connecting to server %s:%d\n", host, port));
-            fileEndpoint = new Socket();
-            messageEndpoint = new Socket();
-            // time out after 10s
-            fileEndpoint.connect(new InetSocketAddress(host, port), 10000);
-            messageEndpoint.connect(new InetSocketAddress(host, 5555), 10000);
+            connection = ServerConnection.open(host, port, protocol);
             joined = true;
 
-            reader = new DataInputStream(fileEndpoint.getInputStream());
-            writer = new DataOutputStream(fileEndpoint.getOutputStream());
-            ct = new ClientThread(messageEndpoint, clientView);
+            ct = new ClientThread(connection.getChatStream(), clientView);
             ct.start();
 
             sb.append(String.format("Client: Connected to server %s:%d\n", host, port));
@@ -108,10 +133,7 @@ public class ClientModel {
         }
 
         try {
-            writer.writeUTF("REGISTER");
-            writer.writeUTF(handle);
-
-            String response = reader.readUTF();
+            String response = connection.request("REGISTER", out -> out.writeUTF(handle)).readUTF();
             if (response.equals("HANDLE_EXISTS")) {
                 functionOutput = "Error: Registration failed. Handle or alias already exists.";
                 return;
@@ -139,9 +161,86 @@ public class ClientModel {
             return;
         }
 
+        dirPattern = "";
+        dirSort = "name";
+        dirCursor = "";
+        requestDirPage();
+    }
+
+    public void doFindCmd(String pattern, String sort) {
+        if (!joined) {
+            functionOutput = "Error: Searching server files failed. Please connect to the server first.";
+            return;
+        }
+
+        if (!registered) {
+            functionOutput = "Error: Searching server files failed. Register an alias first.";
+            return;
+        }
+
+        dirPattern = pattern;
+        dirSort = sort;
+        dirCursor = "";
+        requestDirPage();
+    }
+
+    public void doNextCmd() {
+        if (!joined) {
+            functionOutput = "Error: Requesting next page failed. Please connect to the server first.";
+            return;
+        }
+
+        if (!registered) {
+            functionOutput = "Error: Requesting next page failed. Register an alias first.";
+            return;
+        }
+
+        if (dirCursor == null) {
+            functionOutput = "Error: Requesting next page failed. There are no more files to show.";
+            return;
+        }
+
+        requestDirPage();
+    }
+
+    private void requestDirPage() {
         try {
-            writer.writeUTF("DIR");
-            functionOutput = reader.readUTF();
+            DataInputStream reader = connection.request("DIR_PAGE", out -> {
+                out.writeUTF(dirPattern);
+                out.writeUTF(dirSort);
+                out.writeUTF(dirCursor);
+                out.writeInt(DIR_PAGE_SIZE);
+            });
+
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+            StringBuilder sb = new StringBuilder();
+            sb.append("Server Directory");
+
+            int count = reader.readInt();
+            if (count == 0 && dirCursor.isEmpty()) {
+                sb.append("\nNo files found");
+            }
+
+            for (int i = 0; i < count; i++) {
+                String name = reader.readUTF();
+                long size = reader.readLong();
+                long lastModified = reader.readLong();
+                String digest = reader.readUTF();
+
+                // digest is empty while the server is still hashing the file
+                sb.append(String.format("\n%-40s %14d  %s  %s", name, size, dateFormat.format(new Date(lastModified)),
+                        digest.isEmpty() ? "-" : digest.substring(0, 12)));
+            }
+
+            String nextCursor = reader.readUTF();
+            if (nextCursor.isEmpty()) {
+                dirCursor = null;
+            } else {
+                dirCursor = nextCursor;
+                sb.append("\nMore files are on the server. Do /next to show them.");
+            }
+
+            functionOutput = sb.toString();
         } catch (SocketException e) {
             functionOutput = "Error: Server connection has terminated.";
             terminateServerConnection();
@@ -150,7 +249,7 @@ public class ClientModel {
         }
     }
 
-    public void doStoreCmd(String filename) {
+    public void doStoreCmd(String filenames) {
         if (!joined) {
             functionOutput = "Error: Sending file to server failed. Please connect to the server first.";
             return;
@@ -161,36 +260,188 @@ public class ClientModel {
             return;
         }
 
+        Path directory = clientDirectory();
+        List<String> names = new ArrayList<>();
         try {
-            File file = new File(
-                    System.getProperty("user.dir") + "\\client_files\\" + registeredHandle + "\\" + filename);
-            fileReader = new FileInputStream(
-                    System.getProperty("user.dir") + "\\client_files\\" + registeredHandle + "\\" + filename);
+            // a single name may contain spaces without being quoted
+            if (Files.isRegularFile(directory.resolve(filenames))) {
+                names.add(filenames);
+            } else {
+                for (String argument : InputParser.splitArguments(filenames)) {
+                    if (!isGlob(argument)) {
+                        if (!Files.isRegularFile(directory.resolve(argument))) {
+                            functionOutput = "Error: File not found: " + argument;
+                            return;
+                        }
+                        names.add(argument);
+                        continue;
+                    }
+
+                    try (DirectoryStream<Path> matches = Files.newDirectoryStream(directory, argument)) {
+                        List<String> found = new ArrayList<>();
+                        for (Path match : matches) {
+                            if (Files.isRegularFile(match)) {
+                                found.add(match.getFileName().toString());
+                            }
+                        }
+                        if (found.isEmpty()) {
+                            functionOutput = "Error: No files match " + argument;
+                            return;
+                        }
+                        Collections.sort(found);
+                        names.addAll(found);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            functionOutput = "Error: Listing the client files failed: " + e.getMessage();
+            return;
+        }
+
+        // uploads go through the registered connection; with the legacy and
+        // mux protocols later commands wait until each one is done
+        boolean parallel = connection.isPipelined();
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (String name : names) {
+            sizes.put(name, directory.resolve(name).toFile().length());
+        }
+
+        List<TransferManager.Job> jobs = new ArrayList<>();
+        for (List<String> batch : groupSmallFiles(sizes)) {
+            if (batch.size() > 1) {
+                jobs.add(new TransferManager.Job(String.format("Sending %d files", batch.size()), parallel,
+                        progress -> storeBatch(batch, directory, progress)));
+                continue;
+            }
 
-            writer.writeUTF("STORE");
-            writer.writeUTF(filename);
+            String name = batch.get(0);
+            File file = directory.resolve(name).toFile();
+            jobs.add(new TransferManager.Job("Sending " + name, parallel,
+                    progress -> storeFile(name, file, progress)));
+        }
+        transferManager.submit(jobs);
 
-            long fileLength = file.length();
-            writer.writeLong(fileLength);
+        functionOutput = sizes.size() == 1
+                ? String.format("Sending %s to the server in the background.", names.get(0))
+                : String.format("Queued %d files to send to the server. Do /queue to follow them.", sizes.size());
+    }
 
-            int bytes = 0;
-            byte[] buffer = new byte[4 * 1024];
-            while ((bytes = fileReader.read(buffer)) != -1) {
-                writer.write(buffer, 0, bytes);
+    /**
+     * Splits the files of a /store or /get into the ones that are sent alone
+     * and batches of small files that are sent as one archive each, so that
+     * thousands of small files do not cost a round trip each.
+     *
+     * @param sizes Length of every file by name, -1 if unknown.
+     * @return Groups in the order of the files; a group of one is sent alone.
+     */
+    private static List<List<String>> groupSmallFiles(Map<String, Long> sizes) {
+        List<List<String>> groups = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        long batchBytes = 0;
+        int nameBytes = 0;
+        for (Map.Entry<String, Long> file : sizes.entrySet()) {
+            long size = file.getValue();
+            // a file alone is still sent the usual way, with resume and delta
+            if (size < 0 || size > Archive.SMALL_FILE || sizes.size() == 1) {
+                groups.add(List.of(file.getKey()));
+                continue;
             }
 
-            fileReader.close();
+            if (batch.size() == Archive.BATCH_FILES || batchBytes + size > Archive.BATCH_BYTES
+                    || nameBytes + Archive.nameBytes(file.getKey()) > Archive.MAX_NAMES_BYTES) {
+                groups.add(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+                nameBytes = 0;
+            }
+            batch.add(file.getKey());
+            batchBytes += size;
+            nameBytes += Archive.nameBytes(file.getKey());
+        }
+        if (!batch.isEmpty()) {
+            groups.add(batch);
+        }
+        return groups;
+    }
+
+    /**
+     * One attempt at uploading a batch of small files; runs on a thread of
+     * the ClientEngine. A retry sends the whole batch again.
+     *
+     * @return Message to print once done.
+     * @throws IOException If the upload failed but may succeed when tried
+     *                     again.
+     */
+    private String storeBatch(List<String> names, Path directory, TransferProgress progress) throws IOException {
+        ServerConnection uploadConnection = connection;
+        if (uploadConnection == null) {
+            return "Error: Server connection has terminated. Join again and repeat the command to resume.";
+        }
+
+        Map<String, File> sources = new LinkedHashMap<>();
+        long total = 0;
+        for (String name : names) {
+            File file = directory.resolve(name).toFile();
+            sources.put(name, file);
+            total += file.length();
+        }
+
+        try {
+            progress.restart();
+            progress.expect(total, 0);
+            int stored = uploadConnection.storeBatch(sources, progress);
+            if (stored < names.size()) {
+                return String.format("Error: Server stored only %d of %d files.", stored, names.size());
+            }
+            return String.format("Files sent to Server: %d files (%.1f MB/s)", stored,
+                    progress.getBytesPerSecond() / 1048576.0);
         } catch (FileNotFoundException e) {
-            functionOutput = "Error: File not found.";
-        } catch (SocketException e) {
-            functionOutput = "Error: Server connection has terminated.";
-            terminateServerConnection();
+            return "Error: File not found: " + e.getMessage();
+        } catch (IOException e) {
+            return failedAttempt(uploadConnection, uploadConnection, e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * One attempt at uploading a file; runs on a thread of the ClientEngine.
+     *
+     * @return Message to print once done.
+     * @throws IOException If the upload failed but may succeed when tried
+     *                     again.
+     */
+    private String storeFile(String filename, File file, TransferProgress progress) throws IOException {
+        ServerConnection uploadConnection = connection;
+        if (uploadConnection == null) {
+            return "Error: Server connection has terminated. Join again and repeat the command to resume.";
+        }
+
+        try {
+            // an edited file that the server already has only needs its changes sent
+            DeltaUpload delta = new DeltaUpload(uploadConnection, filename, file, progress);
+            if (delta.run()) {
+                return String.format("File updated on Server: %s (sent %.1f of %.1f MB)", filename,
+                        delta.getDeltaLength() / 1048576.0, delta.getFileLength() / 1048576.0);
+            }
+
+            if (!uploadConnection.store(filename, file, progress)) {
+                return "Error: Server failed to store the file: " + filename;
+            }
+            return String.format("File sent to Server: %s (%.1f MB/s)", filename,
+                    progress.getBytesPerSecond() / 1048576.0);
+        } catch (FileNotFoundException e) {
+            return "Error: File not found: " + filename;
+        } catch (IOException e) {
+            return failedAttempt(uploadConnection, uploadConnection, e);
         } catch (Exception e) {
             e.printStackTrace();
+            return null;
         }
     }
 
-    public void doGetCmd(String filename) {
+    public void doGetCmd(String filenames) {
         if (!joined) {
             functionOutput = "Error: Getting file from server failed. Please connect to the server first.";
             return;
@@ -201,33 +452,247 @@ public class ClientModel {
             return;
         }
 
+        // sizes of the files a glob matched; -1 for names given as they are
+        Map<String, Long> sizes = new LinkedHashMap<>();
         try {
-            // send the filename to the server
-            writer.writeUTF("GET");
-            writer.writeUTF(filename);
-
-            // check if file exists
-            String fileExistsResponse = reader.readUTF();
-            if (fileExistsResponse.equals("FILE_NOT_IN_SERVER")) {
-                functionOutput = "Error: File not found in the server.";
-                return;
+            // a single name may contain spaces without being quoted
+            if (!isGlob(filenames) && (filenames.indexOf(' ') == -1 || !listServerFiles(filenames).isEmpty())) {
+                sizes.put(filenames, -1L);
+            } else {
+                for (String argument : InputParser.splitArguments(filenames)) {
+                    if (!isGlob(argument)) {
+                        sizes.putIfAbsent(argument, -1L);
+                        continue;
+                    }
+
+                    Map<String, Long> found = listServerFiles(argument);
+                    if (found.isEmpty()) {
+                        functionOutput = "Error: No files on the server match " + argument;
+                        return;
+                    }
+                    found.forEach(sizes::putIfAbsent);
+                }
+            }
+        } catch (SocketException e) {
+            functionOutput = "Error: Server connection has terminated.";
+            terminateServerConnection();
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+
+        // downloads get a connection of their own where one may be opened;
+        // with the legacy protocol they share the registered one, so later
+        // commands wait until each one is done
+        boolean parallel = connection.isPipelined() || connection.canOpenAnother();
+        Path directory = clientDirectory();
+        int streams = maxStreams;
+        List<TransferManager.Job> jobs = new ArrayList<>();
+        for (List<String> batch : groupSmallFiles(sizes)) {
+            if (batch.size() > 1) {
+                long total = batch.stream().mapToLong(sizes::get).sum();
+                jobs.add(new TransferManager.Job(String.format("Receiving %d files", batch.size()), parallel,
+                        getBatch(batch, total, directory)));
+                continue;
             }
 
-            long fileLength = reader.readLong();
-            fileWriter = new FileOutputStream(
-                    System.getProperty("user.dir") + "\\client_files\\" + registeredHandle + "\\" + filename);
-
-            int bytes = 0;
-            long totalBytes = 0;
-            byte[] buffer = new byte[4 * 1024];
-            while ((bytes = reader.read(buffer, 0, (int) Math.min(fileLength - totalBytes, buffer.length))) != -1 &&
-                    totalBytes < fileLength) {
-                fileWriter.write(buffer, 0, bytes);
-                totalBytes += bytes;
+            String name = batch.get(0);
+            File file = directory.resolve(name).toFile();
+            jobs.add(new TransferManager.Job("Receiving " + name, parallel,
+                    progress -> getFile(name, file, streams, progress)));
+        }
+        transferManager.submit(jobs);
+
+        functionOutput = sizes.size() == 1
+                ? String.format("Receiving %s from the server in the background.", sizes.keySet().iterator().next())
+                : String.format("Queued %d files to receive from the server. Do /queue to follow them.", sizes.size());
+    }
+
+    /**
+     * Download of a batch of small files; every attempt runs on a thread of
+     * the ClientEngine and only asks for the files that earlier attempts did
+     * not save yet.
+     */
+    private TransferManager.Attempt getBatch(List<String> names, long total, Path directory) {
+        // files that are still to be saved; shrinks from the connection's reader thread
+        Set<String> remaining = Collections.synchronizedSet(new LinkedHashSet<>(names));
+        return progress -> {
+            ServerConnection mainConnection = connection;
+            if (mainConnection == null) {
+                return "Error: Server connection has terminated. Join again and repeat the command to resume.";
+            }
+
+            progress.expect(total, 0);
+            ServerConnection downloadConnection = null;
+            try {
+                downloadConnection = ownConnection(mainConnection);
+                List<String> missing = downloadConnection.getBatch(new ArrayList<>(remaining), directory.toFile(),
+                        remaining::remove, progress);
+                if (!missing.isEmpty()) {
+                    return String.format("Error: %d of %d files are not in the server: %s", missing.size(),
+                            names.size(), String.join(", ", missing));
+                }
+                return String.format("Files received from Server: %d files (%.1f MB/s)", names.size(),
+                        progress.getBytesPerSecond() / 1048576.0);
+            } catch (IOException e) {
+                return failedAttempt(mainConnection, downloadConnection, e);
+            } finally {
+                if (downloadConnection != null && downloadConnection != mainConnection) {
+                    try {
+                        downloadConnection.send("DISCONNECT", out -> {
+                        });
+                        downloadConnection.close();
+                    } catch (Exception e) {
+                        // already gone
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Names and sizes of all server files that match a glob, sorted by name.
+     */
+    private Map<String, Long> listServerFiles(String glob) throws IOException {
+        Map<String, Long> names = new LinkedHashMap<>();
+        String cursor = "";
+        do {
+            String pageCursor = cursor;
+            DataInputStream reader = connection.request("DIR_PAGE", out -> {
+                out.writeUTF(glob);
+                out.writeUTF("name");
+                out.writeUTF(pageCursor);
+                out.writeInt(FileCatalog.MAX_PAGE_SIZE);
+            });
+
+            int count = reader.readInt();
+            for (int i = 0; i < count; i++) {
+                names.put(reader.readUTF(), reader.readLong());
+                reader.readLong(); // last modified
+                reader.readUTF(); // digest
+            }
+            cursor = reader.readUTF();
+        } while (!cursor.isEmpty());
+        return names;
+    }
+
+    /**
+     * Connection for a download: a new one with the mux protocol, so that the
+     * client's commands and chat keep going meanwhile, else the client's own.
+     */
+    private static ServerConnection ownConnection(ServerConnection mainConnection) throws IOException {
+        if (mainConnection.isPipelined() || !mainConnection.canOpenAnother()) {
+            return mainConnection;
+        }
+        return mainConnection.openAnother();
+    }
+
+    /**
+     * One attempt at downloading a file; runs on a thread of the
+     * ClientEngine, see ownConnection for the connection it uses.
+     *
+     * @return Message to print once done.
+     * @throws IOException If the download failed but may succeed when tried
+     *                     again; it resumes from where it stopped.
+     */
+    private String getFile(String filename, File file, int streams, TransferProgress progress) throws IOException {
+        ServerConnection mainConnection = connection;
+        if (mainConnection == null) {
+            return "Error: Server connection has terminated. Join again and repeat the command to resume.";
+        }
+
+        ServerConnection downloadConnection = null;
+        try {
+            downloadConnection = ownConnection(mainConnection);
+            SegmentedDownload download = new SegmentedDownload(downloadConnection, filename, file, streams, progress);
+            if (!download.run()) {
+                return "Error: File not found in the server: " + filename;
+            }
+
+            return String.format("File received from Server: %s (%d stream%s, %.1f MB/s)", filename,
+                    download.getStreams(), download.getStreams() == 1 ? "" : "s",
+                    download.getBytesPerSecond() / (1024.0 * 1024.0));
+        } catch (IOException e) {
+            return failedAttempt(mainConnection, downloadConnection, e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (downloadConnection != null && downloadConnection != mainConnection) {
+                try {
+                    downloadConnection.send("DISCONNECT", out -> {
+                    });
+                    downloadConnection.close();
+                } catch (Exception e) {
+                    // already gone
+                }
             }
+        }
+    }
+
+    /**
+     * Decides whether a failed transfer may be tried again. Another attempt
+     * only makes sense on a stream that is in step: a connection of its own
+     * that the next attempt opens anew, or a framed connection, whose frames
+     * stay in step when a request fails. A legacy or mux connection may be
+     * left halfway through a command, so it is closed instead, as is any
+     * connection that dropped.
+     *
+     * @param used Connection the attempt ran over, null if it could not be
+     *             opened.
+     * @return Message to print instead of trying again.
+     * @throws IOException The failure, if another attempt may succeed.
+     */
+    private String failedAttempt(ServerConnection mainConnection, ServerConnection used, IOException e)
+            throws IOException {
+        boolean dropped = e instanceof SocketException || e instanceof EOFException;
+        if (used != mainConnection || (used.isPipelined() && !dropped)) {
+            throw e;
+        }
+
+        terminateServerConnection(used);
+        if (dropped) {
+            return "Error: Server connection has terminated. Join again and repeat the command to resume.";
+        }
+        return String.format("Error: %s. The connection was closed; join again and repeat the command to resume.",
+                e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+    }
 
-            functionOutput = "File received from Server: " + filename;
-            fileWriter.close();
+    public void doStreamsCmd(int streams) {
+        if (streams < 1 || streams > SegmentedDownload.MAX_STREAMS) {
+            functionOutput = String.format("Error: Stream count must be between 1 and %d.",
+                    SegmentedDownload.MAX_STREAMS);
+            return;
+        }
+
+        maxStreams = streams;
+        functionOutput = String.format("Large downloads will use up to %d stream%s.", streams, streams == 1 ? "" : "s");
+    }
+
+    public void doJobsCmd(int jobs) {
+        if (jobs < 1 || jobs > TransferManager.MAX_JOBS) {
+            functionOutput = String.format("Error: Job count must be between 1 and %d.", TransferManager.MAX_JOBS);
+            return;
+        }
+
+        transferManager.setMaxJobs(jobs);
+        functionOutput = String.format("Up to %d transfer%s will run at once.", jobs, jobs == 1 ? "" : "s");
+    }
+
+    public void doQueueCmd() {
+        functionOutput = transferManager.describe();
+    }
+
+    public void doStatsCmd() {
+        if (!joined) {
+            functionOutput = "Error: Requesting server statistics failed. Please connect to the server first.";
+            return;
+        }
+
+        try {
+            functionOutput = connection.request("STATS", out -> {
+            }).readUTF();
         } catch (SocketException e) {
             functionOutput = "Error: Server connection has terminated.";
             terminateServerConnection();
@@ -248,10 +713,11 @@ public class ClientModel {
         }
 
         try {
-            writer.writeUTF("MESSAGE");
-            writer.writeUTF(alias);
-            writer.writeUTF(registeredHandle);
-            writer.writeUTF(message);
+            connection.send("MESSAGE", out -> {
+                out.writeUTF(alias);
+                out.writeUTF(registeredHandle);
+                out.writeUTF(message);
+            });
         } catch (SocketException e) {
             functionOutput = "Error: Server connection has terminated.";
             terminateServerConnection();
@@ -272,9 +738,10 @@ public class ClientModel {
         }
 
         try {
-            writer.writeUTF("BROADCAST");
-            writer.writeUTF(registeredHandle);
-            writer.writeUTF(message);
+            connection.send("BROADCAST", out -> {
+                out.writeUTF(registeredHandle);
+                out.writeUTF(message);
+            });
         } catch (SocketException e) {
             functionOutput = "Error: Server connection has terminated.";
             terminateServerConnection();
@@ -283,11 +750,32 @@ public class ClientModel {
         }
     }
 
+    /**
+     * Directory of the registered user's files, `client_files/<handle>`.
+     */
+    private Path clientDirectory() {
+        return Paths.get(System.getProperty("user.dir"), "client_files", registeredHandle);
+    }
+
+    private static boolean isGlob(String name) {
+        return name.chars().anyMatch(c -> "*?[{".indexOf(c) != -1);
+    }
+
     private void terminateServerConnection() {
+        terminateServerConnection(connection);
+    }
+
+    /**
+     * Closes the connection unless it was already replaced, e.g. when a
+     * background transfer fails after the user joined again.
+     */
+    private synchronized void terminateServerConnection(ServerConnection failed) {
+        if (failed == null || failed != connection) {
+            return;
+        }
+
         try {
-            reader.close();
-            writer.close();
-            fileEndpoint.close();
+            connection.close();
             if (ct != null) {
                 ct.quit();
             }
@@ -297,10 +785,8 @@ public class ClientModel {
             joined = false;
             registered = false;
             registeredHandle = null;
-            fileEndpoint = null;
+            connection = null;
             ct = null;
-            reader = null;
-            writer = null;
         }
     }
 
@@ -1,19 +1,14 @@
 import java.io.DataInputStream;
-import java.io.IOException;
-import java.net.Socket;
+import java.io.InputStream;
 
 public class ClientThread extends Thread {
     private DataInputStream reader;
     private ClientView clientView;
     private boolean keepGoing = true;
 
-    public ClientThread(Socket s, ClientView clientView) {
+    public ClientThread(InputStream chatStream, ClientView clientView) {
         this.clientView = clientView;
-        try {
-            this.reader = new DataInputStream(s.getInputStream());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        this.reader = new DataInputStream(chatStream);
     }
 
     @Override
@@ -3,6 +3,7 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.FontFormatException;
+import java.awt.FontMetrics;
 import java.awt.GraphicsEnvironment;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
@@ -10,18 +11,26 @@ import java.awt.event.FocusListener;
 import java.io.IOException;
 
 import javax.swing.BorderFactory;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.JFrame;
+import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ScrollPaneConstants;
-import javax.swing.text.DefaultCaret;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 
 public class ClientView extends JFrame {
+    // most lines the chat logs keep; older ones scroll away for good
+    private static final int CHAT_LOG_LINES = 10000;
+
     private JPanel mainPanel;
     private JTextField chatTitle;
-    private JTextArea chatLogs;
+    private ChatLog chatLog;
+    private JList<String> chatLogs;
+    private JTextField statusBar;
     private JTextField chatbox;
 
     public ClientView() {
@@ -38,15 +47,34 @@ public class ClientView extends JFrame {
         chatbox.requestFocusInWindow();
     }
 
+    /**
+     * Replaces the chat logs with the given text. Safe to call from any thread.
+     */
     public void setChatLogsText(String s) {
-        chatLogs.setText(s);
+        chatLog.clear();
+        appendChatLogsText(s);
     }
 
+    /**
+     * Appends a line to the chat logs. Safe to call from any thread; lines
+     * show up in the order they were appended, batched into one repaint when
+     * many arrive at once.
+     */
     public void appendChatLogsText(String s) {
         if (s == null) {
             return;
         }
-        chatLogs.append(s + "\n");
+        chatLog.append(s);
+    }
+
+    /**
+     * Shows the running transfers above the chatbox; empty hides the line.
+     * Must be called on the event dispatch thread.
+     */
+    public void setStatusText(String s) {
+        statusBar.setText(s);
+        statusBar.setVisible(!s.isEmpty());
+        statusBar.getParent().revalidate();
     }
 
     public void addChatboxActionListener(ActionListener actionListener) {
@@ -92,20 +120,48 @@ public class ClientView extends JFrame {
         chatTitle.setBackground(Color.decode("#001836"));
         chatTitle.setForeground(Color.decode("#eef7ff"));
 
-        // display text for client here
-        chatLogs = new JTextArea();
-        DefaultCaret chatLogsCaret = (DefaultCaret) chatLogs.getCaret();
-        chatLogsCaret.setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
-        chatLogs.setFont(new Font("Consolas", Font.PLAIN, 16));
-        chatLogs.setLineWrap(true);
+        // display text for client here; every line has the same size, so the
+        // list only lays out and paints the lines that are visible
+        Font chatLogsFont = new Font("Consolas", Font.PLAIN, 16);
+        FontMetrics metrics = getFontMetrics(chatLogsFont);
+        int columns = (1280 - 60) / metrics.charWidth('W');
+        chatLog = new ChatLog(CHAT_LOG_LINES, columns);
+        chatLogs = new JList<>(chatLog);
+        chatLogs.setFont(chatLogsFont);
+        chatLogs.setFixedCellHeight(metrics.getHeight());
+        chatLogs.setFixedCellWidth(columns * metrics.charWidth('W'));
         chatLogs.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-        chatLogs.setEditable(false);
         chatLogs.setBackground(Color.decode("#eef7ff"));
         chatLogs.setForeground(Color.decode("#001836"));
+        chatLogs.setSelectionBackground(Color.decode("#002e59"));
+        chatLogs.setSelectionForeground(Color.decode("#eef7ff"));
+
+        // show chat as it was typed, never as HTML
+        DefaultListCellRenderer chatLogsRenderer = new DefaultListCellRenderer();
+        chatLogsRenderer.putClientProperty("html.disable", Boolean.TRUE);
+        chatLogs.setCellRenderer(chatLogsRenderer);
 
-        // scroll bar for scrolling text area
+        // keep the newest line in view
+        chatLog.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                // after the list has made room for the new lines
+                SwingUtilities.invokeLater(() -> chatLogs.ensureIndexIsVisible(chatLog.getSize() - 1));
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+            }
+        });
+
+        // scroll bar for scrolling chat logs
         JScrollPane scrollBar = new JScrollPane(chatLogs);
         scrollBar.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED);
+        scrollBar.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
         scrollBar.setForeground(Color.decode("#002e59"));
         // scrollBar.setPreferredSize(new Dimension(50, 670));
         chatPanel.add(scrollBar, BorderLayout.CENTER);
@@ -114,6 +170,15 @@ public class ClientView extends JFrame {
         JPanel chatboxBorder = new JPanel(new BorderLayout());
         chatboxBorder.setBorder(BorderFactory.createLineBorder(Color.WHITE));
 
+        // progress of running transfers, shown only while there are any
+        statusBar = new JTextField();
+        statusBar.setFont(new Font("Consolas", Font.PLAIN, 14));
+        statusBar.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+        statusBar.setEditable(false);
+        statusBar.setBackground(Color.decode("#002e59"));
+        statusBar.setForeground(Color.decode("#eef7ff"));
+        statusBar.setVisible(false);
+
         // chatbox where commands are entered
         JPanel chatboxPanel = new JPanel(new BorderLayout());
         chatbox = new JTextField("Enter command");
@@ -122,6 +187,7 @@ public class ClientView extends JFrame {
         chatbox.setBackground(Color.decode("#001836"));
         chatbox.setForeground(Color.decode("#eef7ff"));
         chatboxBorder.add(chatbox, BorderLayout.CENTER);
+        chatboxPanel.add(statusBar, BorderLayout.NORTH);
         chatboxPanel.add(chatboxBorder, BorderLayout.SOUTH);
 
         // modify text and appearance of chatbox depending on focus
@@ -0,0 +1,324 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression is the optional block encoding of file contents. A client asks
+ * for it with COMPRESSION when it connects; if the server agrees, the
+ * contents of every GET_RANGE and STORE_RANGE on that connection travel as
+ * blocks of `[kind: byte][length: int][bytes]`, each holding up to BLOCK_SIZE
+ * bytes of the file either as they are (RAW) or deflated (DEFLATED).
+ *
+ * The sender decides per block. It does not even try for names like `.zip` or
+ * `.jpg`. Otherwise it deflates a block and keeps the result only if it saved
+ * at least MIN_SAVING; after a block that did not, it sends the next blocks raw
+ * without trying, for twice as many blocks each time, so a file that does not
+ * compress costs a deflate of only a few sampled blocks.
+ */
+final class Compression {
+    static final String NONE = "none";
+    static final String DEFLATE = "deflate";
+
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+    private static final int HEADER = 1 + Integer.BYTES;
+    private static final double MIN_SAVING = 0.1;
+    // most blocks skipped between two attempts: 8 MiB
+    private static final int MAX_SKIP = 64;
+
+    // formats that are compressed already
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of("7z", "aac", "avi", "br", "bz2", "docx", "flac",
+            "gif", "gz", "jar", "jpeg", "jpg", "m4a", "mkv", "mov", "mp3", "mp4", "ogg", "pdf", "png", "pptx", "rar",
+            "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst");
+
+    private Compression() {
+    }
+
+    /**
+     * Whether a file is worth trying to deflate, judging by its name alone.
+     */
+    static boolean worthTrying(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot == -1 || !COMPRESSED_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Turns the bytes written to it into blocks on the underlying stream. Each
+     * block goes out in a single write, so a framed connection can send it as
+     * one DATA frame. `close()` sends the last block but leaves the underlying
+     * stream open.
+     */
+    static final class Encoder extends OutputStream {
+        private final OutputStream out;
+        private final boolean tryDeflate;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] buffer = new byte[BLOCK_SIZE];
+        private final byte[] block = new byte[HEADER + BLOCK_SIZE];
+        private int count = 0;
+        private int skip = 0;
+        private int nextSkip = 1;
+
+        /**
+         * @param tryDeflate false to send every block raw, e.g. if
+         *                   `worthTrying` says no.
+         */
+        Encoder(OutputStream out, boolean tryDeflate) {
+            this.out = out;
+            this.tryDeflate = tryDeflate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int bytes = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, bytes);
+                count += bytes;
+                off += bytes;
+                len -= bytes;
+
+                if (count == buffer.length) {
+                    writeBlock();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeBlock();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            deflater.end();
+        }
+
+        private void writeBlock() throws IOException {
+            if (count == 0) {
+                return;
+            }
+
+            int length = -1;
+            if (skip > 0) {
+                skip--;
+            } else if (tryDeflate) {
+                length = deflate();
+            }
+
+            if (length == -1) {
+                System.arraycopy(buffer, 0, block, HEADER, count);
+                length = count;
+                block[0] = RAW;
+            } else {
+                block[0] = DEFLATED;
+            }
+            block[1] = (byte) (length >>> 24);
+            block[2] = (byte) (length >>> 16);
+            block[3] = (byte) (length >>> 8);
+            block[4] = (byte) length;
+
+            out.write(block, 0, HEADER + length);
+            count = 0;
+        }
+
+        /**
+         * Deflates the buffer into the block.
+         *
+         * @return Deflated length, or -1 if it did not save enough.
+         */
+        private int deflate() {
+            int limit = (int) (count * (1 - MIN_SAVING));
+            deflater.reset();
+            deflater.setInput(buffer, 0, count);
+            deflater.finish();
+            int length = deflater.deflate(block, HEADER, limit);
+
+            if (!deflater.finished()) {
+                // back off before sampling again
+                skip = nextSkip;
+                nextSkip = Math.min(nextSkip * 2, MAX_SKIP);
+                return -1;
+            }
+            nextSkip = 1;
+            return length;
+        }
+    }
+
+    /**
+     * Decodes blocks that are pushed into it and writes the file contents to
+     * the sink, e.g. from the DATA frames of a framed connection. `close()`
+     * closes the sink.
+     */
+    static final class Decoder extends OutputStream {
+        private final OutputStream sink;
+        private final BlockReader reader = new BlockReader();
+        private final byte[] header = new byte[HEADER];
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int headerCount = 0;
+        private int blockLength = -1;
+        private int blockCount = 0;
+        private long decoded = 0;
+
+        Decoder(OutputStream sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * Number of bytes of the file written to the sink so far.
+         */
+        long getDecoded() {
+            return decoded;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (blockLength == -1) {
+                    int bytes = Math.min(len, HEADER - headerCount);
+                    System.arraycopy(b, off, header, headerCount, bytes);
+                    headerCount += bytes;
+                    off += bytes;
+                    len -= bytes;
+                    if (headerCount < HEADER) {
+                        return;
+                    }
+
+                    blockLength = checkLength(((header[1] & 0xff) << 24) | ((header[2] & 0xff) << 16)
+                            | ((header[3] & 0xff) << 8) | (header[4] & 0xff));
+                    blockCount = 0;
+                    headerCount = 0;
+                }
+
+                int bytes = Math.min(len, blockLength - blockCount);
+                System.arraycopy(b, off, block, blockCount, bytes);
+                blockCount += bytes;
+                off += bytes;
+                len -= bytes;
+
+                if (blockCount == blockLength) {
+                    int length = reader.decode(header[0], block, blockLength);
+                    sink.write(reader.output, 0, length);
+                    decoded += length;
+                    blockLength = -1;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            sink.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.inflater.end();
+            sink.close();
+        }
+    }
+
+    /**
+     * Reads the file contents from a stream of blocks. Never reads past the
+     * block it is in, so the stream can go on with other replies once the
+     * caller has read the number of bytes it expects.
+     */
+    static final class DecodingInputStream extends InputStream {
+        private final DataInputStream in;
+        private final BlockReader reader = new BlockReader();
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int position = 0;
+        private int length = 0;
+
+        DecodingInputStream(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position == length) {
+                byte kind = in.readByte();
+                int wireLength = checkLength(in.readInt());
+                in.readFully(block, 0, wireLength);
+                length = reader.decode(kind, block, wireLength);
+                position = 0;
+            }
+
+            int bytes = Math.min(len, length - position);
+            System.arraycopy(reader.output, position, b, off, bytes);
+            position += bytes;
+            return bytes;
+        }
+
+        /**
+         * Releases the inflater; the underlying stream stays open.
+         */
+        @Override
+        public void close() {
+            reader.inflater.end();
+        }
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > BLOCK_SIZE) {
+            throw new IOException("Malformed compressed block of " + length + " bytes");
+        }
+        return length;
+    }
+
+    /**
+     * Turns one received block back into file contents.
+     */
+    private static final class BlockReader {
+        private final Inflater inflater = new Inflater();
+        private final byte[] output = new byte[BLOCK_SIZE];
+
+        /**
+         * @return Number of bytes of the file now in output.
+         */
+        int decode(byte kind, byte[] block, int length) throws IOException {
+            if (kind == RAW) {
+                System.arraycopy(block, 0, output, 0, length);
+                return length;
+            }
+            if (kind != DEFLATED) {
+                throw new IOException("Unknown compressed block kind " + kind);
+            }
+
+            try {
+                inflater.reset();
+                inflater.setInput(block, 0, length);
+                int inflated = inflater.inflate(output);
+                if (!inflater.finished()) {
+                    throw new IOException("Deflated block is larger than " + BLOCK_SIZE + " bytes");
+                }
+                return inflated;
+            } catch (DataFormatException e) {
+                throw new IOException("Malformed deflated block", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ContentChunker splits a file into chunks whose boundaries depend on the
+ * contents rather than on offsets, using a gear rolling hash over the last 64
+ * bytes. An edit only changes the chunks it touches: inserting or deleting
+ * bytes shifts the rest of the file, but the boundaries after the edit are
+ * found again at the same content, so those chunks keep their digests.
+ *
+ * Client and server must split the same way, so the gear table comes from a
+ * fixed seed and the size limits are constants of the protocol.
+ */
+final class ContentChunker {
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+
+    // 16 hash bits must be zero for a boundary: one in 64 KiB on average past MIN_CHUNK
+    private static final long BOUNDARY_MASK = 0xffffL << 48;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x46584344L); // "FXCD"
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * One chunk of a file.
+     *
+     * @param digest Hex SHA-256 of the chunk.
+     */
+    record Chunk(long offset, int length, String digest) {
+    }
+
+    private ContentChunker() {
+    }
+
+    /**
+     * Splits the first `length` bytes of a file. Uses positional reads only,
+     * so the channel's position is left alone.
+     *
+     * @param whole If not null, also receives every byte of the file, e.g. to
+     *              compute the digest of the whole file in the same pass.
+     */
+    static List<Chunk> split(FileChannel channel, long length, MessageDigest whole) throws IOException {
+        MessageDigest md = sha256();
+        List<Chunk> chunks = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        byte[] bytes = buffer.array();
+
+        long position = 0;
+        long chunkStart = 0;
+        long hash = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                break;
+            }
+            if (whole != null) {
+                whole.update(bytes, 0, read);
+            }
+
+            // bytes[from..i] belong to the current chunk
+            int from = 0;
+            for (int i = 0; i < read; i++) {
+                hash = (hash << 1) + GEAR[bytes[i] & 0xff];
+                long size = position + i + 1 - chunkStart;
+                if (size >= MAX_CHUNK || (size >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0)) {
+                    md.update(bytes, from, i + 1 - from);
+                    chunks.add(new Chunk(chunkStart, (int) size, HexFormat.of().formatHex(md.digest())));
+                    chunkStart += size;
+                    from = i + 1;
+                    hash = 0;
+                }
+            }
+            md.update(bytes, from, read - from);
+            position += read;
+        }
+
+        if (position > chunkStart) {
+            chunks.add(new Chunk(chunkStart, (int) (position - chunkStart), HexFormat.of().formatHex(md.digest())));
+        }
+        return chunks;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * DeltaPatch rebuilds a file from the copy the server already has and a delta
+ * sent by the client, for STORE_DELTA. The client first asks for the
+ * SIGNATURES of the stored file, i.e. its ContentChunker chunks, and then only
+ * sends the chunks the server does not have. The delta is a sequence of
+ *
+ * - `[COPY: byte][offset: long][length: long]`: bytes of the stored file
+ * - `[LITERAL: byte][length: long][bytes]`: new bytes
+ *
+ * that are written one after the other into an Upload. The delta is fed in
+ * whatever pieces it arrives in, so the blocking and the non-blocking engines
+ * use it alike. The new file is only stored if its digest matches the one the
+ * client announced, which also catches a stored file that changed after the
+ * client read its signatures.
+ */
+final class DeltaPatch implements Closeable {
+    static final byte COPY = 1;
+    static final byte LITERAL = 2;
+
+    private static final int COPY_HEADER = 1 + Long.BYTES + Long.BYTES;
+    private static final int LITERAL_HEADER = 1 + Long.BYTES;
+
+    private final String filename;
+    private final String digest;
+    private final FileChannel base;
+    private final Upload upload;
+    private final MessageDigest md = ContentChunker.sha256();
+
+    private final ByteBuffer header = ByteBuffer.allocate(COPY_HEADER);
+    private final ByteBuffer copyBuffer = ByteBuffer.allocate(64 * 1024);
+    private long remaining;
+    private long literalRemaining = 0;
+    private boolean failed = false;
+
+    private DeltaPatch(String filename, String digest, FileChannel base, Upload upload, long deltaLength) {
+        this.filename = filename;
+        this.digest = digest;
+        this.base = base;
+        this.upload = upload;
+        this.remaining = deltaLength;
+    }
+
+    /**
+     * Reply to SIGNATURES: FILE_NOT_IN_SERVER, or FILE_EXISTS followed by the
+     * length of the stored file (long), the number of chunks (int) and the raw
+     * SHA-256 (32 bytes) and length (int) of each chunk in file order.
+     */
+    static byte[] signatures(FileCatalog catalog, String filename) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        try (FileChannel channel = catalog.open(filename)) {
+            long length = channel.size();
+            List<ContentChunker.Chunk> chunks = ContentChunker.split(channel, length, null);
+
+            out.writeUTF("FILE_EXISTS");
+            out.writeLong(length);
+            out.writeInt(chunks.size());
+            for (ContentChunker.Chunk chunk : chunks) {
+                out.write(HexFormat.of().parseHex(chunk.digest()));
+                out.writeInt(chunk.length());
+            }
+        } catch (NoSuchFileException e) {
+            bos.reset();
+            out.writeUTF("FILE_NOT_IN_SERVER");
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Starts rebuilding a file. If the stored file is gone the patch still
+     * takes the delta, but fails.
+     *
+     * @param length      Length of the new file.
+     * @param digest      Hex SHA-256 of the new file.
+     * @param deltaLength Number of delta bytes that follow.
+     */
+    static DeltaPatch begin(FileCatalog catalog, String filename, long length, String digest, long deltaLength)
+            throws IOException {
+        FileChannel base;
+        try {
+            base = catalog.open(filename);
+        } catch (NoSuchFileException e) {
+            base = null;
+        }
+
+        DeltaPatch patch = new DeltaPatch(filename, digest, base, Upload.begin(catalog.getStore(), filename, length),
+                deltaLength);
+        patch.failed = base == null;
+        return patch;
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Number of delta bytes still expected.
+     */
+    long remaining() {
+        return remaining;
+    }
+
+    /**
+     * Applies the next piece of the delta. Once the patch has failed, the rest
+     * of the delta is only counted so that the connection stays in step.
+     *
+     * @throws IOException If the delta is longer than announced.
+     */
+    void write(ByteBuffer bytes) throws IOException {
+        if (bytes.remaining() > remaining) {
+            throw new IOException("Client sent more than the announced delta of " + filename);
+        }
+        remaining -= bytes.remaining();
+        ServerMetrics.addBytesIn(bytes.remaining());
+
+        try {
+            while (!failed && bytes.hasRemaining()) {
+                if (literalRemaining > 0) {
+                    ByteBuffer slice = bytes.slice();
+                    slice.limit((int) Math.min(slice.remaining(), literalRemaining));
+                    bytes.position(bytes.position() + slice.remaining());
+                    literalRemaining -= slice.remaining();
+                    append(slice);
+                    continue;
+                }
+
+                while (bytes.hasRemaining() && header.position() < headerLength()) {
+                    header.put(bytes.get());
+                }
+                if (header.position() < headerLength()) {
+                    break;
+                }
+
+                header.flip();
+                byte op = header.get();
+                if (op == LITERAL) {
+                    literalRemaining = header.getLong();
+                    checkLength(literalRemaining);
+                } else if (op == COPY) {
+                    copy(header.getLong(), header.getLong());
+                } else {
+                    throw new IOException("Unknown delta op " + op + " for " + filename);
+                }
+                header.clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed = true;
+        }
+        bytes.position(bytes.limit());
+    }
+
+    /**
+     * Stores the rebuilt file if the whole delta was applied and the result is
+     * the file the client has.
+     *
+     * @return false if the patch failed; nothing is stored then.
+     */
+    boolean finish() throws IOException {
+        if (failed || remaining > 0 || literalRemaining > 0 || header.position() > 0 || upload.remaining() > 0
+                || !HexFormat.of().formatHex(md.digest()).equals(digest)) {
+            return false;
+        }
+
+        upload.commit();
+        return true;
+    }
+
+    /**
+     * Length of the op header being read, which depends on its first byte.
+     */
+    private int headerLength() {
+        return header.position() > 0 && header.get(0) == LITERAL ? LITERAL_HEADER : COPY_HEADER;
+    }
+
+    private void copy(long offset, long length) throws IOException {
+        checkLength(length);
+        if (offset < 0 || offset + length > base.size()) {
+            throw new IOException("Delta copies outside the stored " + filename);
+        }
+
+        long end = offset + length;
+        while (offset < end) {
+            copyBuffer.clear().limit((int) Math.min(copyBuffer.capacity(), end - offset));
+            int read = base.read(copyBuffer, offset);
+            if (read == -1) {
+                throw new IOException("Stored " + filename + " shrank while patching");
+            }
+            offset += read;
+            append(copyBuffer.flip());
+        }
+    }
+
+    private void checkLength(long length) throws IOException {
+        if (length < 0 || length > upload.remaining()) {
+            throw new IOException("Delta is longer than the new " + filename);
+        }
+    }
+
+    private void append(ByteBuffer bytes) throws IOException {
+        md.update(bytes.duplicate());
+        upload.write(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            upload.close();
+        } finally {
+            if (base != null) {
+                base.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * DeltaUpload stores a new version of a file that the server already has by
+ * sending only what changed. It fetches the SIGNATURES of the server's copy,
+ * splits the local file the same way with ContentChunker, and sends a
+ * STORE_DELTA that copies every chunk the server has from its own copy and
+ * carries the bytes of the others. An edit of a few bytes thus costs about a
+ * chunk of traffic, not the whole file.
+ *
+ * @see DeltaPatch
+ */
+final class DeltaUpload {
+    // below this a plain upload costs about as much as the signatures
+    private static final long MIN_DELTA_SIZE = 1024 * 1024;
+    // a delta this close to the file size is not worth losing resumability for
+    private static final double MAX_DELTA_RATIO = 0.9;
+
+    private final ServerConnection connection;
+    private final String filename;
+    private final File source;
+    private final TransferProgress progress;
+
+    private long fileLength;
+    private long deltaLength = 0;
+
+    /**
+     * One piece of the delta: either a range of the server's copy or a range
+     * of the local file to send as is.
+     */
+    private record Op(boolean copy, long offset, long length) {
+    }
+
+    /**
+     * @param progress Counts the bytes of the delta as they are sent.
+     */
+    DeltaUpload(ServerConnection connection, String filename, File source, TransferProgress progress) {
+        this.connection = connection;
+        this.filename = filename;
+        this.source = source;
+        this.progress = progress;
+    }
+
+    /**
+     * Sends the file as a delta against the server's copy.
+     *
+     * @return false if the file has to be uploaded in full instead, e.g.
+     *         because the server does not have it or it changed too much.
+     * @throws java.io.FileNotFoundException If the file cannot be opened.
+     */
+    boolean run() throws IOException {
+        try (FileInputStream fileReader = new FileInputStream(source)) {
+            FileChannel channel = fileReader.getChannel();
+            fileLength = channel.size();
+            if (fileLength < MIN_DELTA_SIZE) {
+                return false;
+            }
+
+            DataInputStream reply = connection.request("SIGNATURES", out -> out.writeUTF(filename));
+            if (!reply.readUTF().equals("FILE_EXISTS")) {
+                return false;
+            }
+
+            // where each chunk of the server's copy starts, by digest
+            HashMap<String, Long> serverChunks = new HashMap<>();
+            reply.readLong();
+            int count = reply.readInt();
+            byte[] digest = new byte[32];
+            long offset = 0;
+            for (int i = 0; i < count; i++) {
+                reply.readFully(digest);
+                serverChunks.putIfAbsent(HexFormat.of().formatHex(digest), offset);
+                offset += reply.readInt();
+            }
+
+            MessageDigest whole = ContentChunker.sha256();
+            List<ContentChunker.Chunk> chunks = ContentChunker.split(channel, fileLength, whole);
+            String fileDigest = HexFormat.of().formatHex(whole.digest());
+
+            List<Op> ops = diff(chunks, serverChunks);
+            if (deltaLength >= fileLength * MAX_DELTA_RATIO) {
+                return false;
+            }
+
+            progress.expect(deltaLength, 0);
+            String response = connection.upload("STORE_DELTA", out -> {
+                out.writeUTF(filename);
+                out.writeLong(fileLength);
+                out.writeUTF(fileDigest);
+                out.writeLong(deltaLength);
+            }, out -> writeDelta(ops, channel, new DataOutputStream(progress.counting(out))));
+            return response.equals("STORE_DONE");
+        }
+    }
+
+    /**
+     * Number of bytes the delta took on the wire.
+     */
+    long getDeltaLength() {
+        return deltaLength;
+    }
+
+    long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * Turns the local chunks into ops, merging neighbours that continue each
+     * other, and adds up the length of the delta.
+     */
+    private List<Op> diff(List<ContentChunker.Chunk> chunks, HashMap<String, Long> serverChunks) {
+        List<Op> ops = new ArrayList<>();
+        Op last = null;
+        for (ContentChunker.Chunk chunk : chunks) {
+            Long serverOffset = serverChunks.get(chunk.digest());
+            Op op = serverOffset != null
+                    ? new Op(true, serverOffset, chunk.length())
+                    : new Op(false, chunk.offset(), chunk.length());
+
+            if (last != null && last.copy() == op.copy() && last.offset() + last.length() == op.offset()) {
+                last = new Op(op.copy(), last.offset(), last.length() + op.length());
+                ops.set(ops.size() - 1, last);
+                continue;
+            }
+            ops.add(op);
+            last = op;
+        }
+
+        for (Op op : ops) {
+            deltaLength += op.copy() ? 1 + Long.BYTES + Long.BYTES : 1 + Long.BYTES + op.length();
+        }
+        return ops;
+    }
+
+    private static void writeDelta(List<Op> ops, FileChannel channel, DataOutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (Op op : ops) {
+            if (op.copy()) {
+                out.writeByte(DeltaPatch.COPY);
+                out.writeLong(op.offset());
+                out.writeLong(op.length());
+                continue;
+            }
+
+            out.writeByte(DeltaPatch.LITERAL);
+            out.writeLong(op.length());
+            long position = op.offset();
+            long end = op.offset() + op.length();
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException("File shrank while being sent");
+                }
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FileCache keeps the contents of the most requested files in direct buffers
+ * so that GET and GET_RANGE can serve them without reading the disk. Opening
+ * a cached file returns a read-only FileChannel over its buffer, so every
+ * engine sends it the way it sends any other file.
+ *
+ * A file is only loaded when it is opened a second time while its name is
+ * still among the recent misses, so a single download of a large file does
+ * not push out the files that everyone keeps asking for. Loading runs on a
+ * background thread; the request that triggered it is served from the store.
+ * Once the byte budget is exceeded the least recently used files are dropped,
+ * and FileCatalog drops a file whenever it refreshes it, i.e. after every
+ * STORE and every outside change the watcher reports.
+ */
+final class FileCache {
+    // names that missed recently; a second miss within this window loads the file
+    private static final int MAX_CANDIDATES = 1024;
+
+    private final long budget;
+    private final long maxEntrySize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // access order, so iteration starts at the least recently used file
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> candidates = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+    // loads in progress; invalidate() removes them so that a stale load is not published
+    private final HashMap<String, Object> loading = new HashMap<>();
+    private long used = 0;
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "file-cache-loader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param budget Most bytes of file contents to hold; 0 turns the cache
+     *               off. No single file may take more than a quarter of it.
+     */
+    FileCache(long budget) {
+        this.budget = budget;
+        this.maxEntrySize = Math.min(budget / 4, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Opens a file from the cache, or from the store if it is not cached.
+     *
+     * @throws NoSuchFileException If the file is neither cached nor stored.
+     */
+    FileChannel open(FileStore store, String filename) throws IOException {
+        if (budget == 0) {
+            return store.open(filename);
+        }
+
+        lock.lock();
+        try {
+            ByteBuffer contents = entries.get(filename);
+            if (contents != null) {
+                return new BufferChannel(contents);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        FileChannel channel = store.open(filename);
+        if (channel.size() <= maxEntrySize) {
+            Object token = admit(filename);
+            if (token != null) {
+                loader.execute(() -> load(store, filename, token));
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Drops a file whose contents changed. A file that was cached is loaded
+     * again on its next miss.
+     */
+    void invalidate(String filename) {
+        lock.lock();
+        try {
+            loading.remove(filename);
+            ByteBuffer old = entries.remove(filename);
+            if (old != null) {
+                used -= old.capacity();
+                candidates.put(filename, Boolean.TRUE);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts a miss of a file.
+     *
+     * @return Token of the load to start, or null if the file is not loaded
+     *         yet.
+     */
+    private Object admit(String filename) {
+        lock.lock();
+        try {
+            if (loading.containsKey(filename) || entries.containsKey(filename)) {
+                return null;
+            }
+            if (candidates.remove(filename) == null) {
+                candidates.put(filename, Boolean.TRUE);
+                return null;
+            }
+
+            Object token = new Object();
+            loading.put(filename, token);
+            return token;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void load(FileStore store, String filename, Object token) {
+        ByteBuffer contents = null;
+        try (FileChannel channel = store.open(filename)) {
+            long size = channel.size();
+            if (size <= maxEntrySize) {
+                contents = ByteBuffer.allocateDirect((int) size);
+                while (contents.hasRemaining() && channel.read(contents, contents.position()) != -1) {
+                    // keep reading until full or the file turns out shorter
+                }
+                contents = contents.flip().asReadOnlyBuffer();
+            }
+        } catch (NoSuchFileException e) {
+            // removed meanwhile
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        lock.lock();
+        try {
+            // only publish if the file was not changed while loading
+            if (!loading.remove(filename, token) || contents == null) {
+                return;
+            }
+
+            entries.put(filename, contents);
+            used += contents.capacity();
+            Iterator<ByteBuffer> eldest = entries.values().iterator();
+            while (used > budget && eldest.hasNext()) {
+                // channels that are still sending an evicted file keep its buffer alive until closed
+                used -= eldest.next().capacity();
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read-only FileChannel over the cached contents of a file.
+     */
+    private static final class BufferChannel extends FileChannel {
+        private final ByteBuffer contents;
+        private long position = 0;
+
+        BufferChannel(ByteBuffer contents) {
+            this.contents = contents;
+        }
+
+        /**
+         * Independent view of the bytes from position to end.
+         */
+        private ByteBuffer slice(long position, long end) {
+            return contents.duplicate().limit((int) end).position((int) position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            if (position >= contents.limit()) {
+                return -1;
+            }
+
+            ByteBuffer src = slice(position, Math.min(contents.limit(), position + dst.remaining()));
+            int bytes = src.remaining();
+            dst.put(src);
+            return bytes;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) {
+            int bytes = read(dst, position);
+            if (bytes > 0) {
+                position += bytes;
+            }
+            return bytes;
+        }
+
+        @Override
+        public synchronized long read(ByteBuffer[] dsts, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int bytes = read(dsts[i]);
+                if (bytes == -1) {
+                    return total == 0 ? -1 : total;
+                }
+                total += bytes;
+                if (dsts[i].hasRemaining()) {
+                    break;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (position >= contents.limit()) {
+                return 0;
+            }
+
+            // a non-blocking target may take only part of it
+            return target.write(slice(position, Math.min(contents.limit(), position + count)));
+        }
+
+        @Override
+        public synchronized long position() {
+            return position;
+        }
+
+        @Override
+        public synchronized FileChannel position(long newPosition) {
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return contents.limit();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+            // nothing to flush
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException("Cached files cannot be mapped");
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Cached files cannot be locked");
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Cached files cannot be locked");
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            // the buffer belongs to the cache
+        }
+    }
+}
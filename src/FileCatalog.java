@@ -0,0 +1,447 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FileCatalog keeps the metadata of every stored file in memory so that DIR
+ * never has to list the FileStore's directory. The directory is scanned once on
+ * startup; after that, STORE updates the catalog for the file it wrote and a
+ * WatchService thread picks up files that are added, changed or removed by
+ * anything else. Reads never lock: `snapshot()` iterates the live map, which is
+ * safe while writers update it.
+ *
+ * Digests are computed on a single background thread so that neither STORE nor
+ * DIR ever waits on hashing a large file.
+ *
+ * Besides the name order of the main map, the catalog keeps size and mtime
+ * indexes so that DIR_PAGE can walk any sort order from a cursor without
+ * sorting the whole directory per request.
+ *
+ * Files are opened through a FileCache, which refreshing a file invalidates.
+ */
+final class FileCatalog {
+    // the benchmarks point this at a directory of their own
+    static final String SERVER_FILES_PROPERTY = "fileexchange.serverFiles";
+    static final Path SERVER_FILES = Paths.get(System.getProperty(SERVER_FILES_PROPERTY, "./server_files"));
+    static final int MAX_PAGE_SIZE = 1000;
+
+    // writeUTF cannot send more than this many encoded bytes
+    private static final int MAX_UTF_BYTES = 65535;
+
+    private final FileStore store;
+    private final FileCache cache;
+    private final ConcurrentSkipListMap<String, FileEntry> entries = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<SortKey> bySize = new ConcurrentSkipListSet<>(SortKey.ORDER);
+    private final ConcurrentSkipListSet<SortKey> byModified = new ConcurrentSkipListSet<>(SortKey.ORDER);
+
+    // only serializes writers so that the indexes stay in step with the map
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ExecutorService digester = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "catalog-digester");
+        t.setDaemon(true);
+        return t;
+    });
+
+    FileCatalog(FileStore store, FileCache cache) {
+        this.store = store;
+        this.cache = cache;
+    }
+
+    /**
+     * Creates the store's directory if needed, loads its current contents and
+     * starts watching it for outside changes.
+     */
+    void start() throws IOException {
+        Path directory = store.directory();
+        Files.createDirectories(directory);
+
+        WatchService watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        // register the watcher first so nothing slips in between scan and watch
+        rescan();
+
+        Thread t = new Thread(() -> watch(watcher), "catalog-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Re-reads the metadata of one file, adding, updating or dropping its entry.
+     */
+    void refresh(String name) {
+        // even if the metadata looks the same, the contents may not be
+        cache.invalidate(name);
+
+        try {
+            FileEntry entry = store.describe(name);
+            writeLock.lock();
+            try {
+                FileEntry old = entries.get(name);
+                if (entry.sameVersion(old) && old.getDigest() != null) {
+                    // e.g. the watcher reporting a file that STORE already refreshed
+                    return;
+                }
+
+                entries.put(name, entry);
+                if (old != null) {
+                    bySize.remove(new SortKey(old.getSize(), name));
+                    byModified.remove(new SortKey(old.getLastModified(), name));
+                }
+                bySize.add(new SortKey(entry.getSize(), name));
+                byModified.add(new SortKey(entry.getLastModified(), name));
+            } finally {
+                writeLock.unlock();
+            }
+
+            digester.execute(() -> computeDigest(entry));
+        } catch (NoSuchFileException e) {
+            remove(name, null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens a stored file for GET, from the cache if it is there.
+     *
+     * @throws NoSuchFileException If there is no such file.
+     */
+    FileChannel open(String name) throws IOException {
+        // before the cache, which keys on the name as it is
+        FileStore.checkName(name);
+        return cache.open(store, name);
+    }
+
+    FileStore getStore() {
+        return store;
+    }
+
+    FileEntry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Live, name-ordered view of every entry. Iterating it never blocks writers
+     * and never throws ConcurrentModificationException.
+     */
+    Collection<FileEntry> snapshot() {
+        return entries.values();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Builds the single-string listing of the original DIR command, cut short
+     * before it outgrows what writeUTF can carry.
+     */
+    String legacyListing() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Server Directory");
+
+        if (entries.isEmpty()) {
+            sb.append("\nNo files found");
+            return sb.toString();
+        }
+
+        // leave room for the trailing note
+        int budget = MAX_UTF_BYTES - sb.length() - 128;
+        int shown = 0;
+        for (FileEntry entry : entries.values()) {
+            budget -= utfLength(entry.getName()) + 1;
+            if (budget < 0) {
+                sb.append(String.format("\n... and %d more files. Use /find to page through all of them.",
+                        entries.size() - shown));
+                break;
+            }
+
+            sb.append("\n");
+            sb.append(entry.getName());
+            shown++;
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns one page of entries for DIR_PAGE.
+     *
+     * @param glob   Glob the file names must match, e.g. `*.log` or `report-*`.
+     *               Empty matches every file.
+     * @param sort   `name`, `size` or `mtime`, optionally prefixed with `-` for
+     *               descending order. Anything else sorts by name.
+     * @param cursor Value of `Page.getNextCursor()` from the previous page, or
+     *               empty to start from the beginning.
+     * @param limit  Maximum number of entries, capped at MAX_PAGE_SIZE.
+     */
+    Page page(String glob, String sort, String cursor, int limit) {
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        boolean descending = sort.startsWith("-");
+        String field = descending ? sort.substring(1) : sort;
+        PathMatcher matcher = glob.isEmpty() ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        String prefix = literalPrefix(glob);
+
+        Iterator<FileEntry> it;
+        boolean byName = !field.equals("size") && !field.equals("mtime");
+        if (byName) {
+            it = iterateByName(descending, cursor, prefix);
+        } else {
+            it = iterateByIndex(field.equals("size") ? bySize : byModified, field, descending, cursor);
+        }
+
+        List<FileEntry> page = new ArrayList<>();
+        String nextCursor = "";
+        while (it.hasNext()) {
+            FileEntry entry = it.next();
+            if (!entry.getName().startsWith(prefix)) {
+                // names sharing the prefix are contiguous in name order
+                if (byName) {
+                    break;
+                }
+                continue;
+            }
+
+            if (matcher != null && !matcher.matches(Paths.get(entry.getName()))) {
+                continue;
+            }
+
+            // only hand out a cursor if there really is another match after this page
+            if (page.size() == limit) {
+                FileEntry last = page.get(page.size() - 1);
+                nextCursor = byName ? last.getName() : sortValue(last, field) + "/" + last.getName();
+                break;
+            }
+            page.add(entry);
+        }
+
+        return new Page(page, nextCursor);
+    }
+
+    private Iterator<FileEntry> iterateByName(boolean descending, String cursor, String prefix) {
+        NavigableMap<String, FileEntry> view = descending ? entries.descendingMap() : entries;
+        if (!cursor.isEmpty()) {
+            view = view.tailMap(cursor, false);
+        } else if (!prefix.isEmpty()) {
+            view = view.tailMap(descending ? prefix + Character.MAX_VALUE : prefix, true);
+        }
+        return view.values().iterator();
+    }
+
+    private Iterator<FileEntry> iterateByIndex(ConcurrentSkipListSet<SortKey> index, String field, boolean descending,
+            String cursor) {
+        NavigableSet<SortKey> view = descending ? index.descendingSet() : index;
+        int slash = cursor.indexOf('/');
+        if (slash != -1) {
+            try {
+                view = view.tailSet(new SortKey(Long.parseLong(cursor.substring(0, slash)),
+                        cursor.substring(slash + 1)), false);
+            } catch (NumberFormatException e) {
+                // malformed cursor; start over from the first page
+            }
+        }
+
+        Iterator<SortKey> keys = view.iterator();
+        return new Iterator<FileEntry>() {
+            private FileEntry next = advance();
+
+            private FileEntry advance() {
+                while (keys.hasNext()) {
+                    SortKey key = keys.next();
+                    FileEntry entry = entries.get(key.name());
+                    // skip keys of entries that changed after we got the key
+                    if (entry != null && sortValue(entry, field) == key.value()) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public FileEntry next() {
+                FileEntry entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    private static long sortValue(FileEntry entry, String field) {
+        return field.equals("size") ? entry.getSize() : entry.getLastModified();
+    }
+
+    /**
+     * Part of a glob before its first special character. Every match has to
+     * start with it, which lets name-ordered pages seek straight to it.
+     */
+    private static String literalPrefix(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if ("*?[{\\".indexOf(glob.charAt(i)) != -1) {
+                return glob.substring(0, i);
+            }
+        }
+        return glob;
+    }
+
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007f) ? 1 : (c <= 0x07ff ? 2 : 3);
+        }
+        return length;
+    }
+
+    private void remove(String name, FileEntry expected) {
+        writeLock.lock();
+        try {
+            FileEntry old = entries.get(name);
+            if (old == null || (expected != null && old != expected)) {
+                return;
+            }
+
+            entries.remove(name);
+            bySize.remove(new SortKey(old.getSize(), name));
+            byModified.remove(new SortKey(old.getLastModified(), name));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void rescan() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(store.directory())) {
+            for (String name : entries.keySet()) {
+                refresh(name);
+            }
+            for (Path path : files) {
+                refresh(path.getFileName().toString());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // too many changes at once; fall back to a full scan
+                        rescan();
+                        continue;
+                    }
+
+                    refresh(((Path) event.context()).toString());
+                }
+
+                if (!key.reset()) {
+                    System.out.println("Server: Stopped watching " + store.directory() + " for changes");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    private void computeDigest(FileEntry entry) {
+        // skip versions that were replaced while waiting in the queue
+        if (entries.get(entry.getName()) != entry) {
+            return;
+        }
+
+        try (FileChannel channel = store.open(entry.getName())) {
+            String digest = Checksums.sha256(channel, Long.MAX_VALUE);
+
+            // only publish the digest if the file did not change while hashing
+            entries.replace(entry.getName(), entry, entry.withDigest(digest));
+        } catch (NoSuchFileException e) {
+            remove(entry.getName(), entry);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One page of a DIR_PAGE listing. An empty next cursor means this is the
+     * last page.
+     */
+    static final class Page {
+        private final List<FileEntry> entries;
+        private final String nextCursor;
+
+        Page(List<FileEntry> entries, String nextCursor) {
+            this.entries = entries;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<FileEntry> getEntries() {
+            return entries;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        /**
+         * Wire form of the page: an int entry count, then name (UTF), size
+         * (long), mtime (long) and digest (UTF, empty while unknown) per entry,
+         * then the next cursor (UTF).
+         */
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + entries.size() * 128);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(entries.size());
+            for (FileEntry entry : entries) {
+                out.writeUTF(entry.getName());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getLastModified());
+                out.writeUTF(entry.getDigest() == null ? "" : entry.getDigest());
+            }
+            out.writeUTF(nextCursor);
+            return bos.toByteArray();
+        }
+    }
+
+    private record SortKey(long value, String name) {
+        static final Comparator<SortKey> ORDER = Comparator.comparingLong(SortKey::value)
+                .thenComparing(SortKey::name);
+    }
+}
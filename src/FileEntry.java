@@ -0,0 +1,45 @@
+/**
+ * FileEntry is an immutable snapshot of the metadata of one file in
+ * server_files, as kept by FileCatalog. The digest is the hex SHA-256 of the
+ * contents and is null until the catalog has finished computing it.
+ */
+final class FileEntry {
+    private final String name;
+    private final long size;
+    private final long lastModified;
+    private final String digest;
+
+    FileEntry(String name, long size, long lastModified, String digest) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.digest = digest;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Whether both entries describe the same version of the file on disk.
+     */
+    boolean sameVersion(FileEntry other) {
+        return other != null && size == other.size && lastModified == other.lastModified;
+    }
+
+    FileEntry withDigest(String digest) {
+        return new FileEntry(name, size, lastModified, digest);
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+/**
+ * FileStore is where the server keeps the contents of its files. FileCatalog
+ * learns about files through it, GET and GET_RANGE read through it and a
+ * finished Upload is handed to it.
+ *
+ * @see FlatFileStore
+ * @see BlobStore
+ */
+interface FileStore {
+    /**
+     * Directory with one entry per stored file, named after the file.
+     * FileCatalog scans and watches it.
+     */
+    Path directory();
+
+    /**
+     * Size and modification time of a stored file, without a digest.
+     *
+     * @throws java.nio.file.NoSuchFileException If there is no such file.
+     */
+    FileEntry describe(String filename) throws IOException;
+
+    /**
+     * Opens a stored file for reading. The channel keeps reading the contents
+     * it was opened with, even if the file is replaced meanwhile.
+     *
+     * @throws java.nio.file.NoSuchFileException If there is no such file.
+     */
+    FileChannel open(String filename) throws IOException;
+
+    /**
+     * Stores a fully received upload under its filename, replacing any file
+     * of that name.
+     *
+     * @param upload Open channel of the upload; the store may close it.
+     * @param temp   Path of the upload; deleted by the caller afterwards if
+     *               the store left it in place.
+     */
+    void commit(FileChannel upload, Path temp, String filename) throws IOException;
+
+    /**
+     * Rejects a filename sent by a client unless it is a plain name, so that
+     * no request can reach `.store`, `.uploads` or anything outside
+     * server_files through separators or `..`.
+     *
+     * @throws NoSuchFileException If the name is not a plain filename.
+     */
+    static void checkName(String filename) throws NoSuchFileException {
+        if (filename.isEmpty() || filename.equals(".") || filename.equals("..") || filename.indexOf('/') >= 0
+                || filename.indexOf('\\') >= 0 || filename.indexOf('\0') >= 0) {
+            throw new NoSuchFileException(filename, null, "Not a plain filename");
+        }
+    }
+
+    /**
+     * Path of a file in one of a store's directories, which never lies outside
+     * that directory.
+     *
+     * @throws NoSuchFileException If the name is not a plain filename.
+     */
+    static Path resolve(Path directory, String filename) throws NoSuchFileException {
+        checkName(filename);
+        Path path = directory.resolve(filename).normalize();
+        if (!directory.normalize().equals(path.getParent())) {
+            throw new NoSuchFileException(filename, null, "Not a plain filename");
+        }
+        return path;
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * FlatFileStore keeps every file as a plain file of the same name in
+ * server_files, so files can also be added and removed from outside the
+ * server. This is the default storage.
+ */
+final class FlatFileStore implements FileStore {
+    @Override
+    public Path directory() {
+        return FileCatalog.SERVER_FILES;
+    }
+
+    @Override
+    public FileEntry describe(String filename) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(FileStore.resolve(FileCatalog.SERVER_FILES, filename),
+                BasicFileAttributes.class);
+        if (!attrs.isRegularFile()) {
+            throw new NoSuchFileException(filename);
+        }
+        return new FileEntry(filename, attrs.size(), attrs.lastModifiedTime().toMillis(), null);
+    }
+
+    @Override
+    public FileChannel open(String filename) throws IOException {
+        Path path = FileStore.resolve(FileCatalog.SERVER_FILES, filename);
+        if (!Files.isRegularFile(path)) {
+            throw new NoSuchFileException(filename);
+        }
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /**
+     * Flushes the upload to disk and atomically renames it over its final
+     * name. Readers that already opened the old file keep reading the old
+     * contents.
+     */
+    @Override
+    public void commit(FileChannel upload, Path temp, String filename) throws IOException {
+        Path path = FileStore.resolve(FileCatalog.SERVER_FILES, filename);
+        upload.force(true);
+        upload.close();
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
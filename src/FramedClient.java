@@ -0,0 +1,356 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FramedClient is the client's end of a FramedConnection. Any number of
+ * requests may be outstanding at once, from any thread: a reader thread matches
+ * every reply and DATA frame to its request by id, so the server is free to
+ * answer them in whatever order they finish. CHAT frames are passed on to the
+ * chat stream without ever blocking the reader thread.
+ */
+final class FramedClient implements Closeable {
+    /**
+     * Picks where the DATA frames of a request are written, once its reply is
+     * known. Runs on the reader thread before any of those frames are handled.
+     * The returned stream is closed after the last frame; null discards the
+     * data.
+     */
+    interface DataTarget {
+        OutputStream open(FramedConnection.Frame reply) throws IOException;
+    }
+
+    /**
+     * One outstanding request. The reply completes when the server answers. If
+     * the request was given a DataTarget, the data completes once every DATA
+     * frame of the request has been written to it.
+     */
+    static final class Call {
+        private final int requestId;
+        private final DataTarget target;
+        private final CompletableFuture<FramedConnection.Frame> reply = new CompletableFuture<>();
+        private final CompletableFuture<Long> data = new CompletableFuture<>();
+
+        // only touched by the reader thread
+        private OutputStream sink;
+        private long received = 0;
+
+        private Call(int requestId, DataTarget target) {
+            this.requestId = requestId;
+            this.target = target;
+        }
+
+        int getRequestId() {
+            return requestId;
+        }
+
+        FramedConnection.Frame awaitReply() throws IOException {
+            return await(reply);
+        }
+
+        /**
+         * Waits for the last DATA frame.
+         *
+         * @return Number of bytes received.
+         */
+        long awaitData() throws IOException {
+            return await(data);
+        }
+
+        private void fail(IOException e) {
+            reply.completeExceptionally(e);
+            data.completeExceptionally(e);
+            closeSink();
+        }
+
+        private void closeSink() {
+            if (sink == null) {
+                return;
+            }
+
+            try {
+                sink.close();
+            } catch (IOException e) {
+                data.completeExceptionally(e);
+            }
+            sink = null;
+        }
+    }
+
+    /**
+     * The payloads of the CHAT frames, read as one stream. Not bounded, so
+     * that a chat reader that falls behind never holds up the replies and DATA
+     * frames behind its chat.
+     */
+    private static final class ChatInputStream extends InputStream {
+        private static final byte[] END_OF_STREAM = new byte[0];
+
+        private final LinkedBlockingQueue<byte[]> payloads = new LinkedBlockingQueue<>();
+        private byte[] current = new byte[0];
+        private int position = 0;
+
+        void add(byte[] payload) {
+            if (payload.length > 0) {
+                payloads.add(payload);
+            }
+        }
+
+        void end() {
+            payloads.add(END_OF_STREAM);
+        }
+
+        /**
+         * Makes sure there is at least one unread byte.
+         *
+         * @return false once the connection is closed.
+         */
+        private boolean fill() throws IOException {
+            while (position == current.length) {
+                if (current == END_OF_STREAM) {
+                    return false;
+                }
+
+                try {
+                    current = payloads.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+
+            int bytes = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, bytes);
+            position += bytes;
+            return bytes;
+        }
+
+        @Override
+        public int available() {
+            return current.length - position;
+        }
+    }
+
+    private final FramedConnection connection;
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, Call> calls = new ConcurrentHashMap<>();
+    private final ChatInputStream chat = new ChatInputStream();
+    private volatile boolean closed = false;
+
+    private FramedClient(FramedConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Announces the framed protocol on a freshly connected socket and starts
+     * reading replies.
+     */
+    static FramedClient connect(Socket socket) throws IOException {
+        FramedClient client = new FramedClient(FramedConnection.connect(socket));
+        Thread.ofVirtual().name("framed-" + socket.getRemoteSocketAddress()).start(client::readFrames);
+        return client;
+    }
+
+    Call call(int opcode, byte[] payload) throws IOException {
+        return call(opcode, payload, null);
+    }
+
+    /**
+     * Sends a request without waiting for its reply.
+     *
+     * @param target Where the DATA frames of the reply go, or null if the
+     *               request has none.
+     */
+    Call call(int opcode, byte[] payload, DataTarget target) throws IOException {
+        Call call = new Call(nextRequestId.getAndIncrement(), target);
+        calls.put(call.requestId, call);
+
+        // the reader may have died before the call was added
+        if (closed) {
+            calls.remove(call.requestId);
+            throw new SocketException("Connection to the server was lost");
+        }
+
+        try {
+            connection.send(opcode, call.requestId, payload);
+        } catch (IOException e) {
+            calls.remove(call.requestId);
+            throw e;
+        }
+        return call;
+    }
+
+    /**
+     * Sends a request that gets no reply, e.g. MESSAGE or DISCONNECT.
+     */
+    void send(int opcode, byte[] payload) throws IOException {
+        connection.send(opcode, nextRequestId.getAndIncrement(), payload);
+    }
+
+    /**
+     * Sends part of the contents of a STORE.
+     */
+    void sendData(Call call, byte[] b, int off, int len) throws IOException {
+        connection.send(FramedConnection.DATA, call.requestId, b, off, len);
+    }
+
+    /**
+     * Tells the server that the contents of a STORE are complete.
+     */
+    void endData(Call call) throws IOException {
+        connection.send(FramedConnection.DATA, call.requestId, new byte[0]);
+    }
+
+    InputStream getChatStream() {
+        return chat;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        connection.close();
+    }
+
+    private void readFrames() {
+        IOException cause = new SocketException("Connection to the server was lost");
+        try {
+            while (true) {
+                FramedConnection.Frame frame = connection.readFrame();
+                int opcode = frame.opcode();
+
+                if (opcode == FramedConnection.CHAT) {
+                    chat.add(frame.payload());
+                    continue;
+                }
+
+                Call call = calls.get(frame.requestId());
+                if (call == null) {
+                    // e.g. a reply that nobody waits for anymore
+                    continue;
+                }
+
+                if (opcode == FramedConnection.DATA) {
+                    onData(call, frame);
+                    continue;
+                }
+
+                if (opcode == FramedConnection.ABORT) {
+                    onAbort(call, frame);
+                    continue;
+                }
+
+                if ((opcode & FramedConnection.REPLY) != 0) {
+                    onReply(call, frame);
+                }
+            }
+        } catch (EOFException e) {
+            // server closed the connection
+        } catch (IOException e) {
+            if (!closed) {
+                cause = e instanceof SocketException ? e : new SocketException(e.getMessage());
+            }
+        } finally {
+            closed = true;
+            for (Call call : calls.values()) {
+                call.fail(cause);
+            }
+            calls.clear();
+
+            chat.end();
+            try {
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void onReply(Call call, FramedConnection.Frame frame) {
+        if (call.target == null) {
+            calls.remove(call.requestId);
+        } else {
+            try {
+                call.sink = call.target.open(frame);
+            } catch (IOException e) {
+                // keep the call until its last frame so the rest is discarded
+                call.data.completeExceptionally(e);
+            }
+        }
+        call.reply.complete(frame);
+    }
+
+    private void onData(Call call, FramedConnection.Frame frame) {
+        byte[] payload = frame.payload();
+        if (payload.length == 0) {
+            calls.remove(call.requestId);
+            call.closeSink();
+            call.data.complete(call.received);
+            return;
+        }
+
+        call.received += payload.length;
+        if (call.sink == null) {
+            return;
+        }
+
+        try {
+            call.sink.write(payload);
+        } catch (IOException e) {
+            call.data.completeExceptionally(e);
+            call.closeSink();
+        }
+    }
+
+    private void onAbort(Call call, FramedConnection.Frame frame) {
+        calls.remove(call.requestId);
+        String reason;
+        try {
+            reason = frame.payloadStream().readUTF();
+        } catch (IOException e) {
+            reason = "Transfer aborted by the server";
+        }
+        call.fail(new IOException(reason));
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
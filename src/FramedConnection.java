@@ -0,0 +1,211 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FramedConnection speaks the framed protocol, where every message is
+ * `[opcode: byte][request id: int][length: int][payload]`. A client may send
+ * many requests without waiting, each under its own id. The server replies
+ * with the opcode of the request plus REPLY and the same id, in whatever
+ * order the requests finish.
+ *
+ * Payloads use the same encoding as the legacy protocol, e.g. a GET request
+ * carries the filename as writeUTF and its reply carries FILE_EXISTS followed
+ * by the length. File contents follow as DATA frames tagged with the id of
+ * their STORE or GET, so several transfers can share the connection. An empty
+ * DATA frame ends the contents of a request; GET, GET_RANGE and GET_BATCH
+ * always end with one, even for a file that is not on the server, unless the
+ * server fails part way through the contents and ends them with an ABORT.
+ */
+final class FramedConnection implements Closeable {
+    // requests
+    static final int REGISTER = 1;
+    static final int DIR = 2;
+    static final int DIR_PAGE = 3;
+    static final int STORE = 4;
+    static final int GET = 5;
+    static final int MESSAGE = 6;
+    static final int BROADCAST = 7;
+    static final int DISCONNECT = 8;
+    static final int GET_RANGE = 9;
+    static final int STORE_STATUS = 10;
+    static final int STORE_RANGE = 11;
+    static final int SIGNATURES = 12;
+    static final int STORE_DELTA = 13;
+    static final int COMPRESSION = 14;
+    static final int STORE_BATCH = 15;
+    // 16 is DATA
+    static final int GET_BATCH = 17;
+    static final int STATS = 18;
+
+    // file contents of a STORE or GET
+    static final int DATA = 0x10;
+    // chat pushed by the server, always with request id 0; the payloads of
+    // all CHAT frames together form the same stream as the legacy chat socket
+    static final int CHAT = 0x20;
+    // ends the contents of a GET, GET_RANGE or GET_BATCH that failed part way,
+    // in place of the empty DATA frame; the payload is the reason as writeUTF
+    static final int ABORT = 0x30;
+    // added to the opcode of a request to mark its reply
+    static final int REPLY = 0x80;
+
+    // file contents are split into DATA frames of at most this size
+    static final int DATA_CHUNK = 64 * 1024;
+
+    // sent by the client right after connecting so both ends know they agree
+    private static final int MAGIC = 0x46584631; // "FXF1"
+    private static final int MAX_FRAME = 4 * 1024 * 1024;
+
+    /**
+     * One frame as read off the connection.
+     */
+    record Frame(int opcode, int requestId, byte[] payload) {
+        DataInputStream payloadStream() {
+            return new DataInputStream(new ByteArrayInputStream(payload));
+        }
+    }
+
+    /**
+     * Writes the fields of a payload, see encode().
+     */
+    interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private FramedConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), DATA_CHUNK + 9));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), DATA_CHUNK + 9));
+    }
+
+    /**
+     * Client side: announces the framed protocol on a freshly connected socket.
+     */
+    static FramedConnection connect(Socket socket) throws IOException {
+        FramedConnection connection = new FramedConnection(socket);
+        connection.out.writeInt(MAGIC);
+        connection.out.flush();
+        return connection;
+    }
+
+    /**
+     * Server side: checks that the peer speaks the framed protocol.
+     *
+     * @throws IOException If the peer sent something else, e.g. a legacy client.
+     */
+    static FramedConnection accept(Socket socket) throws IOException {
+        FramedConnection connection = new FramedConnection(socket);
+        if (connection.in.readInt() != MAGIC) {
+            socket.close();
+            throw new IOException(
+                    "Client at " + socket.getRemoteSocketAddress() + " does not speak the framed protocol");
+        }
+        return connection;
+    }
+
+    /**
+     * Opcode of a request, given its command name in the legacy protocol.
+     *
+     * @throws IllegalArgumentException If there is no such command.
+     */
+    static int opcodeOf(String command) {
+        ProtocolCommand known = ProtocolCommand.of(command);
+        if (known == null) {
+            throw new IllegalArgumentException("Unknown command: " + command);
+        }
+        return known.opcode;
+    }
+
+    /**
+     * Builds a payload in the legacy encoding.
+     */
+    static byte[] encode(PayloadWriter writer) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            writer.write(new DataOutputStream(bos));
+            return bos.toByteArray();
+        } catch (IOException e) {
+            // only thrown for strings longer than 65535 encoded bytes
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Blocks until the next frame arrives. Only one thread may read.
+     *
+     * @throws java.io.EOFException If the peer closed the connection.
+     */
+    Frame readFrame() throws IOException {
+        int opcode = in.readUnsignedByte();
+        int requestId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Malformed frame");
+        }
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(opcode, requestId, payload);
+    }
+
+    void send(int opcode, int requestId, byte[] payload) throws IOException {
+        send(opcode, requestId, payload, 0, payload.length);
+    }
+
+    /**
+     * Sends one whole frame right away. Safe to call from several threads;
+     * frames never interleave mid-frame.
+     */
+    void send(int opcode, int requestId, byte[] payload, int off, int len) throws IOException {
+        writeLock.lock();
+        try {
+            out.writeByte(opcode);
+            out.writeInt(requestId);
+            out.writeInt(len);
+            out.write(payload, off, len);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Stream whose writes are sent as CHAT frames, for a MessageOutbox.
+     */
+    OutputStream chatStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                send(CHAT, 0, b, off, len);
+            }
+        };
+    }
+
+    SocketAddress getRemoteSocketAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
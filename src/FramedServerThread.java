@@ -0,0 +1,714 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+/**
+ * FramedServerThread serves a client that speaks the framed protocol. Its own
+ * thread reads every frame and answers the quick requests right away. A GET is
+ * streamed from a virtual thread of its own and the final flush of a STORE
+ * runs on one too, so a large file never holds up the requests pipelined
+ * behind it and their replies go out as soon as they are ready.
+ *
+ * @see FramedConnection
+ */
+public class FramedServerThread implements Runnable {
+    // requests of one client that may run in the background at once
+    private static final int MAX_BACKGROUND_REQUESTS = 16;
+
+    /**
+     * Handles one request, read at `started`, and records it in ServerMetrics
+     * once it is done.
+     */
+    private interface Handler {
+        void handle(FramedServerThread thread, FramedConnection.Frame frame, long started) throws IOException;
+    }
+
+    /**
+     * A request answered right away on the reading thread.
+     */
+    private interface QuickHandler {
+        void handle(FramedServerThread thread, FramedConnection.Frame frame) throws IOException;
+    }
+
+    // handler of every request but DISCONNECT, which ends the loop in run
+    private static final Map<ProtocolCommand, Handler> handlers = new EnumMap<>(ProtocolCommand.class);
+
+    static {
+        quick(ProtocolCommand.REGISTER, FramedServerThread::doRegisterCmd);
+        quick(ProtocolCommand.DIR, FramedServerThread::doDirCmd);
+        quick(ProtocolCommand.DIR_PAGE, FramedServerThread::doDirPageCmd);
+        handlers.put(ProtocolCommand.STORE, FramedServerThread::doStoreCmd);
+        // hashing the partial upload can take a while
+        background(ProtocolCommand.STORE_STATUS, "framed-status-", FramedServerThread::doStoreStatusCmd);
+        handlers.put(ProtocolCommand.STORE_RANGE, FramedServerThread::doStoreRangeCmd);
+        handlers.put(ProtocolCommand.STORE_DELTA, FramedServerThread::doStoreDeltaCmd);
+        handlers.put(ProtocolCommand.STORE_BATCH, FramedServerThread::doStoreBatchCmd);
+        // chunking the stored file can take a while
+        background(ProtocolCommand.SIGNATURES, "framed-signatures-", FramedServerThread::doSignaturesCmd);
+        background(ProtocolCommand.GET, "framed-get-", FramedServerThread::doGetCmd);
+        background(ProtocolCommand.GET_RANGE, "framed-get-", FramedServerThread::doGetCmd);
+        background(ProtocolCommand.GET_BATCH, "framed-get-batch-", FramedServerThread::doGetBatchCmd);
+        quick(ProtocolCommand.COMPRESSION, FramedServerThread::doCompressionCmd);
+        quick(ProtocolCommand.MESSAGE, FramedServerThread::doMsgCmd);
+        quick(ProtocolCommand.BROADCAST, FramedServerThread::doBcCmd);
+        quick(ProtocolCommand.STATS, FramedServerThread::doStatsCmd);
+    }
+
+    private static void quick(ProtocolCommand command, QuickHandler handler) {
+        handlers.put(command, (thread, frame, started) -> {
+            handler.handle(thread, frame);
+            recordCommand(frame.opcode(), started);
+        });
+    }
+
+    /**
+     * Registers a request that runs on a virtual thread of its own, named
+     * after the request. Once MAX_BACKGROUND_REQUESTS of a client are running,
+     * its reading thread waits for one of them to finish before it reads on,
+     * which pushes back on a client that pipelines faster than it is served.
+     */
+    private static void background(ProtocolCommand command, String name,
+            BiConsumer<FramedServerThread, FramedConnection.Frame> handler) {
+        handlers.put(command, (thread, frame, started) -> {
+            thread.backgroundSlots.acquireUninterruptibly();
+            Thread.ofVirtual().name(name + frame.requestId()).start(() -> {
+                try {
+                    handler.accept(thread, frame);
+                    recordCommand(frame.opcode(), started);
+                } finally {
+                    thread.backgroundSlots.release();
+                }
+            });
+        });
+    }
+
+    /**
+     * A STORE whose contents are still arriving.
+     *
+     * @param sink    Where the DATA frames go: the upload itself, or a decoder
+     *                in front of it if the contents are compressed.
+     * @param opcode  STORE or STORE_RANGE.
+     * @param started When the request was read, for ServerMetrics.
+     */
+    private record PendingStore(String filename, Upload upload, OutputStream sink, int opcode, long started) {
+        PendingStore(String filename, Upload upload, boolean compressed, int opcode, long started) {
+            this(filename, upload, upload == null ? null
+                    : compressed ? new Compression.Decoder(upload.stream()) : upload.stream(), opcode, started);
+        }
+    }
+
+    /**
+     * A STORE_DELTA whose delta is still arriving.
+     */
+    private record PendingPatch(DeltaPatch patch, long started) {
+    }
+
+    private Socket endpoint;
+    private FramedConnection connection;
+    private MessageOutbox outbox;
+    // whether GET_RANGE and STORE_RANGE contents are Compression blocks
+    private volatile boolean compressed = false;
+
+    /**
+     * A STORE_BATCH whose archive is still arriving.
+     *
+     * @param sink Where the DATA frames go: the batch's unpacker, or a
+     *             decoder in front of it if the archive is compressed.
+     */
+    private record PendingBatch(BatchTransfer batch, OutputStream sink, long started) {
+    }
+
+    // STOREs, STORE_DELTAs and STORE_BATCHes by request id; only touched by the reading thread
+    private final HashMap<Integer, PendingStore> stores = new HashMap<>();
+    private final HashMap<Integer, PendingPatch> patches = new HashMap<>();
+    private final HashMap<Integer, PendingBatch> batches = new HashMap<>();
+    // requests running in the background may take one each
+    private final Semaphore backgroundSlots = new Semaphore(MAX_BACKGROUND_REQUESTS);
+
+    private volatile String registeredHandle;
+    private ServerConfig config;
+    private FileCatalog catalog;
+    private HandleRegistry registry;
+    private TransferScheduler scheduler;
+
+    public FramedServerThread(Socket endpoint, ServerConfig config, FileCatalog catalog, HandleRegistry registry,
+            TransferScheduler scheduler) {
+        this.endpoint = endpoint;
+        this.config = config;
+        this.catalog = catalog;
+        this.registry = registry;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void run() {
+        ServerMetrics.connectionOpened();
+        try {
+            connection = FramedConnection.accept(endpoint);
+            outbox = new MessageOutbox(connection.chatStream(), String.valueOf(endpoint.getRemoteSocketAddress()),
+                    config.getOutboxCapacity(), config.getOverflowPolicy(), this::closeEndpoint);
+
+            // continue reading requests until user disconnects
+            FramedConnection.Frame frame;
+            while ((frame = connection.readFrame()).opcode() != FramedConnection.DISCONNECT) {
+                dispatch(frame);
+            }
+
+            doDisconnectCmd();
+        } catch (SocketException | EOFException e) {
+            doDisconnectCmd();
+        } catch (Exception e) {
+            e.printStackTrace();
+            closeEndpoint();
+        } finally {
+            ServerMetrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Handles a request on the reading thread or hands it to a thread of its
+     * own. Each request is timed until it is done, which for a STORE is once
+     * its last DATA frame is in.
+     */
+    private void dispatch(FramedConnection.Frame frame) throws IOException {
+        long started = System.nanoTime();
+        if (frame.opcode() == FramedConnection.DATA) {
+            onStoreData(frame);
+            return;
+        }
+
+        // ignore unknown requests like ServerThread does
+        Handler handler = handlers.get(ProtocolCommand.of(frame.opcode()));
+        if (handler != null) {
+            handler.handle(this, frame, started);
+        }
+    }
+
+    private static void recordCommand(int opcode, long started) {
+        ServerMetrics.recordCommand(ProtocolCommand.of(opcode), System.nanoTime() - started);
+    }
+
+    private void reply(FramedConnection.Frame request, FramedConnection.PayloadWriter writer) throws IOException {
+        reply(request.opcode(), request.requestId(), writer);
+    }
+
+    private void reply(int opcode, int requestId, FramedConnection.PayloadWriter writer) throws IOException {
+        connection.send(opcode | FramedConnection.REPLY, requestId, FramedConnection.encode(writer));
+    }
+
+    private void doDisconnectCmd() {
+        System.out.println("Server: Client at " + endpoint.getRemoteSocketAddress() + " has disconnected");
+        closeEndpoint();
+
+        // discard uploads that were cut off
+        for (PendingStore store : stores.values()) {
+            if (store.upload() == null) {
+                continue;
+            }
+
+            try {
+                store.upload().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        stores.clear();
+        for (PendingPatch patch : patches.values()) {
+            try {
+                patch.patch().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        patches.clear();
+        for (PendingBatch batch : batches.values()) {
+            try {
+                batch.batch().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        batches.clear();
+
+        // don't broadcast anything if user is not registered
+        if (registeredHandle == null) {
+            return;
+        }
+
+        registry.unregister(registeredHandle, outbox);
+        registry.broadcast(String.format("%s disconnected from the server.", registeredHandle));
+    }
+
+    private void closeEndpoint() {
+        try {
+            if (outbox != null) {
+                outbox.close();
+            }
+            endpoint.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void doRegisterCmd(FramedConnection.Frame frame) throws IOException {
+        String handle = frame.payloadStream().readUTF();
+
+        if (!registry.register(handle, outbox)) {
+            reply(frame, out -> out.writeUTF("HANDLE_EXISTS"));
+            return;
+        }
+
+        registeredHandle = handle;
+        reply(frame, out -> out.writeUTF("REGISTRATION_DONE"));
+
+        registry.broadcast(String.format("%s joined the server.", handle));
+    }
+
+    private void doDirCmd(FramedConnection.Frame frame) throws IOException {
+        reply(frame, out -> out.writeUTF(catalog.legacyListing()));
+    }
+
+    private void doDirPageCmd(FramedConnection.Frame frame) throws IOException {
+        DataInputStream args = frame.payloadStream();
+        String pattern = args.readUTF();
+        String sort = args.readUTF();
+        String cursor = args.readUTF();
+        int pageSize = args.readInt();
+
+        byte[] page = catalog.page(pattern, sort, cursor, pageSize).encode();
+        connection.send(frame.opcode() | FramedConnection.REPLY, frame.requestId(), page);
+    }
+
+    private void doStoreCmd(FramedConnection.Frame frame, long started) throws IOException {
+        DataInputStream args = frame.payloadStream();
+        String filename = args.readUTF();
+        long fileLength = args.readLong();
+
+        try {
+            // receive into a temp file so that DIR and GET never see a partial upload
+            stores.put(frame.requestId(), new PendingStore(filename, Upload.begin(catalog.getStore(), filename, fileLength),
+                    false, frame.opcode(), started));
+        } catch (IOException e) {
+            e.printStackTrace();
+            // the DATA frames that follow are ignored since there is no pending store
+            reply(frame, out -> out.writeUTF("STORE_FAILED"));
+            recordCommand(frame.opcode(), started);
+        }
+    }
+
+    private void doStoreStatusCmd(FramedConnection.Frame frame) {
+        try {
+            DataInputStream args = frame.payloadStream();
+            String filename = args.readUTF();
+            long fileLength = args.readLong();
+
+            connection.send(frame.opcode() | FramedConnection.REPLY, frame.requestId(),
+                    Upload.status(filename, fileLength));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void doStoreRangeCmd(FramedConnection.Frame frame, long started) throws IOException {
+        DataInputStream args = frame.payloadStream();
+        String filename = args.readUTF();
+        long fileLength = args.readLong();
+        long start = args.readLong();
+
+        // kept for a later STORE_RANGE if the client is cut off; null swallows
+        // the contents and fails the store
+        stores.put(frame.requestId(), new PendingStore(filename, Upload.resume(catalog.getStore(), filename, fileLength, start),
+                compressed, frame.opcode(), started));
+    }
+
+    private void doCompressionCmd(FramedConnection.Frame frame) throws IOException {
+        String offered = frame.payloadStream().readUTF();
+
+        // contents are only encoded from the next transfer on
+        compressed = config.isCompressionEnabled() && Arrays.asList(offered.split(",")).contains(Compression.DEFLATE);
+        reply(frame, out -> out.writeUTF(compressed ? Compression.DEFLATE : Compression.NONE));
+    }
+
+    private void doSignaturesCmd(FramedConnection.Frame frame) {
+        try {
+            String filename = frame.payloadStream().readUTF();
+
+            connection.send(frame.opcode() | FramedConnection.REPLY, frame.requestId(),
+                    DeltaPatch.signatures(catalog, filename));
+        } catch (SocketException e) {
+            // client is gone
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void doStoreDeltaCmd(FramedConnection.Frame frame, long started) throws IOException {
+        DataInputStream args = frame.payloadStream();
+        String filename = args.readUTF();
+        long fileLength = args.readLong();
+        String digest = args.readUTF();
+        long deltaLength = args.readLong();
+
+        try {
+            patches.put(frame.requestId(),
+                    new PendingPatch(DeltaPatch.begin(catalog, filename, fileLength, digest, deltaLength), started));
+        } catch (IOException e) {
+            e.printStackTrace();
+            // the DATA frames that follow are ignored since there is no pending patch
+            reply(frame, out -> out.writeUTF("STORE_FAILED"));
+            recordCommand(frame.opcode(), started);
+        }
+    }
+
+    private void onStoreData(FramedConnection.Frame frame) throws IOException {
+        PendingStore store = stores.get(frame.requestId());
+        if (store == null) {
+            PendingPatch patch = patches.get(frame.requestId());
+            if (patch != null) {
+                onPatchData(frame, patch);
+            }
+            PendingBatch batch = batches.get(frame.requestId());
+            if (batch != null) {
+                onBatchData(frame, batch);
+            }
+            return;
+        }
+
+        byte[] payload = frame.payload();
+        if (payload.length > 0) {
+            if (store.upload() == null) {
+                return;
+            }
+
+            try {
+                store.sink().write(payload);
+            } catch (IOException e) {
+                e.printStackTrace();
+                // keep the entry so the rest of the contents are swallowed
+                stores.put(frame.requestId(),
+                        new PendingStore(store.filename(), null, false, store.opcode(), store.started()));
+                store.upload().close();
+            }
+            return;
+        }
+
+        stores.remove(frame.requestId());
+        // flushing to disk can take a while; don't hold up the requests behind it
+        int requestId = frame.requestId();
+        Thread.ofVirtual().name("framed-store-" + requestId).start(() -> {
+            finishStore(requestId, store);
+            recordCommand(store.opcode(), store.started());
+        });
+    }
+
+    private void onPatchData(FramedConnection.Frame frame, PendingPatch patch) throws IOException {
+        byte[] payload = frame.payload();
+        if (payload.length > 0) {
+            try {
+                patch.patch().write(ByteBuffer.wrap(payload));
+            } catch (IOException e) {
+                e.printStackTrace();
+                // the rest of the delta is ignored since there is no pending patch
+                patches.remove(frame.requestId());
+                patch.patch().close();
+                reply(FramedConnection.STORE_DELTA, frame.requestId(), out -> out.writeUTF("STORE_FAILED"));
+                recordCommand(FramedConnection.STORE_DELTA, patch.started());
+            }
+            return;
+        }
+
+        patches.remove(frame.requestId());
+        int requestId = frame.requestId();
+        Thread.ofVirtual().name("framed-patch-" + requestId).start(() -> {
+            finishPatch(requestId, patch.patch());
+            recordCommand(FramedConnection.STORE_DELTA, patch.started());
+        });
+    }
+
+    private void doStoreBatchCmd(FramedConnection.Frame frame, long started) {
+        BatchTransfer batch = new BatchTransfer(catalog);
+        OutputStream sink = compressed ? new Compression.Decoder(batch.unpacker()) : batch.unpacker();
+        batches.put(frame.requestId(), new PendingBatch(batch, sink, started));
+    }
+
+    /**
+     * Entries are committed as they complete, on this thread; they are small
+     * by design, so the requests behind them are not held up for long.
+     */
+    private void onBatchData(FramedConnection.Frame frame, PendingBatch batch) throws IOException {
+        byte[] payload = frame.payload();
+        if (payload.length > 0) {
+            try {
+                batch.sink().write(payload);
+            } catch (IOException e) {
+                e.printStackTrace();
+                // the rest of the archive is ignored since there is no pending batch
+                batches.remove(frame.requestId());
+                batch.batch().close();
+                reply(FramedConnection.STORE_BATCH, frame.requestId(), out -> {
+                    out.writeUTF("STORE_FAILED");
+                    out.writeInt(batch.batch().getStored());
+                });
+                recordCommand(FramedConnection.STORE_BATCH, batch.started());
+            }
+            return;
+        }
+
+        batches.remove(frame.requestId());
+        batch.batch().close();
+        reply(FramedConnection.STORE_BATCH, frame.requestId(), out -> {
+            out.writeUTF(batch.batch().getResponse());
+            out.writeInt(batch.batch().getStored());
+        });
+        recordCommand(FramedConnection.STORE_BATCH, batch.started());
+
+        Date dateTime = new Date();
+        registry.broadcast(String.format("%s<%s>: Uploaded %d files", registeredHandle, dateTime.toString(),
+                batch.batch().getStored()));
+    }
+
+    private void finishPatch(int requestId, DeltaPatch patch) {
+        try {
+            boolean stored;
+            try (patch) {
+                stored = patch.finish();
+            }
+
+            if (!stored) {
+                reply(FramedConnection.STORE_DELTA, requestId, out -> out.writeUTF("STORE_FAILED"));
+                return;
+            }
+            catalog.refresh(patch.getFilename());
+            reply(FramedConnection.STORE_DELTA, requestId, out -> out.writeUTF("STORE_DONE"));
+
+            Date dateTime = new Date();
+            registry.broadcast(
+                    String.format("%s<%s>: Uploaded %s", registeredHandle, dateTime.toString(), patch.getFilename()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                reply(FramedConnection.STORE_DELTA, requestId, out -> out.writeUTF("STORE_FAILED"));
+            } catch (IOException e2) {
+                // client is gone
+            }
+        }
+    }
+
+    private void finishStore(int requestId, PendingStore store) {
+        try {
+            if (store.upload() == null || store.upload().remaining() > 0) {
+                if (store.upload() != null) {
+                    store.upload().close();
+                }
+                reply(store.opcode(), requestId, out -> out.writeUTF("STORE_FAILED"));
+                return;
+            }
+
+            try (Upload upload = store.upload()) {
+                upload.commit();
+            }
+            catalog.refresh(store.filename());
+            reply(store.opcode(), requestId, out -> out.writeUTF("STORE_DONE"));
+
+            Date dateTime = new Date();
+            registry.broadcast(
+                    String.format("%s<%s>: Uploaded %s", registeredHandle, dateTime.toString(), store.filename()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                reply(store.opcode(), requestId, out -> out.writeUTF("STORE_FAILED"));
+            } catch (IOException e2) {
+                // client is gone
+            }
+        }
+    }
+
+    /**
+     * Serves both GET and GET_RANGE; a GET is a range that covers the whole
+     * file and its reply leaves out the range length.
+     */
+    private void doGetCmd(FramedConnection.Frame frame) {
+        TransferScheduler.Transfer transfer = null;
+        IOException failure = null;
+        try {
+            DataInputStream args = frame.payloadStream();
+            String filename = args.readUTF();
+            boolean ranged = frame.opcode() == FramedConnection.GET_RANGE;
+            long offset = ranged ? args.readLong() : 0;
+            long length = ranged ? args.readLong() : -1;
+            String digest = ranged ? args.readUTF() : "";
+
+            try (FileChannel fileReader = catalog.open(filename)) {
+                // the client's partial file has to be the start of this file
+                long fileLength = fileReader.size();
+                if (offset > fileLength || (!digest.isEmpty() && !Checksums.sha256(fileReader, offset).equals(digest))) {
+                    reply(frame, out -> out.writeUTF("RANGE_MISMATCH"));
+                    return;
+                }
+
+                long rangeLength = length < 0 ? fileLength - offset : Math.min(length, fileLength - offset);
+                transfer = scheduler.start(endpoint.getInetAddress(), filename, rangeLength);
+                reply(frame, out -> {
+                    out.writeUTF("FILE_EXISTS");
+                    out.writeLong(fileLength);
+                    if (ranged) {
+                        out.writeLong(rangeLength);
+                    }
+                });
+
+                // one DATA frame per chunk or per compressed block, each sent when its turn comes
+                TransferScheduler.Transfer paced = transfer;
+                OutputStream data = new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        paced.acquire(len);
+                        connection.send(FramedConnection.DATA, frame.requestId(), b, off, len);
+                    }
+                };
+                boolean encoded = ranged && compressed;
+                OutputStream out = encoded ? new Compression.Encoder(data, Compression.worthTrying(filename)) : data;
+
+                // chunks of other transfers and replies may go out in between
+                ByteBuffer buffer = ByteBuffer.allocate(encoded ? Compression.BLOCK_SIZE : FramedConnection.DATA_CHUNK);
+                long position = offset;
+                long end = offset + rangeLength;
+                int bytes;
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                    if ((bytes = fileReader.read(buffer, position)) == -1) {
+                        throw new EOFException("File shrank while being sent");
+                    }
+                    out.write(buffer.array(), 0, bytes);
+                    position += bytes;
+                }
+                out.close();
+            }
+        } catch (NoSuchFileException e) {
+            try {
+                reply(frame, out -> out.writeUTF("FILE_NOT_IN_SERVER"));
+            } catch (IOException e2) {
+                // client is gone
+            }
+        } catch (SocketException e) {
+            // client is gone; the reading thread cleans up
+        } catch (IOException e) {
+            e.printStackTrace();
+            failure = e;
+        } finally {
+            if (transfer != null) {
+                transfer.close();
+            }
+            endContents(frame, failure);
+        }
+    }
+
+    private void doGetBatchCmd(FramedConnection.Frame frame) {
+        IOException failure = null;
+        try {
+            List<String> names = Archive.splitNames(frame.payloadStream().readUTF());
+            reply(frame, out -> {
+            });
+
+            // cut into DATA frames of full size, or one frame per compressed block
+            OutputStream data = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    connection.send(FramedConnection.DATA, frame.requestId(), b, off, len);
+                }
+            };
+            OutputStream out = compressed ? new Compression.Encoder(data, true)
+                    : new BufferedOutputStream(data, FramedConnection.DATA_CHUNK);
+            try (DataOutputStream archive = new DataOutputStream(out)) {
+                BatchTransfer.pack(catalog, scheduler, endpoint.getInetAddress(), names, archive);
+            }
+        } catch (SocketException e) {
+            // client is gone; the reading thread cleans up
+        } catch (IOException e) {
+            e.printStackTrace();
+            failure = e;
+        } finally {
+            endContents(frame, failure);
+        }
+    }
+
+    /**
+     * Ends the contents of a GET, GET_RANGE or GET_BATCH with an empty DATA
+     * frame, or with an ABORT if they were cut short so that the client does
+     * not take a partial file for a whole one.
+     */
+    private void endContents(FramedConnection.Frame request, IOException failure) {
+        try {
+            if (failure == null) {
+                connection.send(FramedConnection.DATA, request.requestId(), new byte[0]);
+            } else {
+                connection.send(FramedConnection.ABORT, request.requestId(),
+                        FramedConnection.encode(out -> out.writeUTF(String.valueOf(failure.getMessage()))));
+            }
+        } catch (IOException e) {
+            // client is gone
+        }
+    }
+
+    private void doMsgCmd(FramedConnection.Frame frame) throws IOException {
+        DataInputStream args = frame.payloadStream();
+        String receiverHandle = args.readUTF();
+        String senderHandle = args.readUTF();
+        String message = args.readUTF();
+
+        if (senderHandle.equals(receiverHandle)) {
+            outbox.send("Error: Unicast messaging failed. You cannot message yourself. That'd be pretty weird.");
+            return;
+        }
+
+        MessageEndpoint receiver = registry.lookup(receiverHandle);
+        if (receiver == null) {
+            outbox.send(
+                    "Error: Unicast messaging failed. Specified alias or handle does not exist/is not registered in the server.");
+            return;
+        }
+
+        // send message to recipient
+        receiver.send(MessageOutbox.encode(String.format("Message from %s: %s", senderHandle, message)));
+
+        // let sender know they've sent the message successfully
+        outbox.send("Message sent successfully!");
+    }
+
+    private void doBcCmd(FramedConnection.Frame frame) throws IOException {
+        DataInputStream args = frame.payloadStream();
+        String senderHandle = args.readUTF();
+        String message = args.readUTF();
+
+        registry.broadcast(String.format("Broadcast from %s: %s", senderHandle, message));
+    }
+
+    private void doStatsCmd(FramedConnection.Frame frame) throws IOException {
+        reply(frame, out -> out.writeUTF(ServerMetrics.report(catalog, registry, scheduler)));
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HandleRegistry maps every registered handle to the endpoint its chat
+ * messages go to. It is shared by all connections and never takes a global
+ * lock: lookups are plain ConcurrentHashMap reads, registration is an atomic
+ * put-if-absent, and broadcasts walk the map while others keep registering and
+ * leaving. Since endpoints only queue, nothing here ever waits on a socket.
+ */
+final class HandleRegistry {
+    private final ConcurrentHashMap<String, MessageEndpoint> handleToEndpoint = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the handle if nobody holds it yet.
+     *
+     * @return Whether the handle was free and is now registered.
+     */
+    boolean register(String handle, MessageEndpoint endpoint) {
+        return handleToEndpoint.putIfAbsent(handle, endpoint) == null;
+    }
+
+    /**
+     * Removes the handle, but only if it still belongs to the given endpoint.
+     */
+    void unregister(String handle, MessageEndpoint endpoint) {
+        handleToEndpoint.remove(handle, endpoint);
+    }
+
+    MessageEndpoint lookup(String handle) {
+        return handleToEndpoint.get(handle);
+    }
+
+    int size() {
+        return handleToEndpoint.size();
+    }
+
+    /**
+     * Queues the message for every registered handle. The message is encoded
+     * once and the same bytes are shared by every endpoint.
+     */
+    void broadcast(String message) {
+        byte[] encoded = MessageOutbox.encode(message);
+        // large rooms are fanned out in parallel on the common pool
+        handleToEndpoint.forEach(1024, (handle, endpoint) -> endpoint.send(encoded));
+    }
+}
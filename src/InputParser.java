@@ -1,5 +1,6 @@
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -12,43 +13,72 @@ import java.util.regex.Pattern;
  */
 final class InputParser {
     /**
-     * Patterns are stored in raw regex string format. In each nested array, the
-     * first string matches the command name part while the second string matches
-     * the pattern for the parameters. If the second string is null, there are no
-     * parameters for that command. If the pattern is not followed as-is, no match
-     * will be found. Parts encased in parentheses are for capture groups.
+     * In each nested array, the first string is the command name as typed after
+     * the slash while the second string is the raw regex pattern for the
+     * parameters. If the second string is null, there are no parameters for that
+     * command. If the pattern is not followed as-is, no match will be found. Parts
+     * encased in parentheses are for capture groups.
      */
-    private static String[][] patterns = {
+    private static final String[][] patterns = {
             // only checks length and format; does not check if values are valid
-            { "/(join)", "(\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}|localhost) (\\d{1,5})" },
+            { "join", "(\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}|localhost) (\\d{1,5})(?: (mux|framed))?" },
 
-            { "/(leave)", null },
+            { "leave", null },
 
             // \w = `A-Za-z0-9_` so any alphanumeric character is accepted
-            { "/(register)", "(\\w+)" },
+            { "register", "(\\w+)" },
 
-            // don't validate file name; just try to open file later
-            { "/(store)", "(.+)" },
+            // one file name, or several names and globs; see splitArguments
+            { "store", "(.+)" },
 
-            { "/(dir)", null },
+            { "dir", null },
 
-            // don't validate file name; just try to open file later
-            { "/(get)", "(.+)" },
+            // glob filter plus optional sort order; `-` sorts descending
+            { "find", "(\\S+)(?: (-?(?:name|size|mtime)))?" },
 
-            { "/(\\?)", null },
+            // next page of the last /dir or /find
+            { "next", null },
+
+            // one file name, or several names and globs; see splitArguments
+            { "get", "(.+)" },
+
+            // most connections a large /get may download over
+            { "streams", "(\\d{1,2})" },
+
+            // most transfers of /get and /store that run at once
+            { "jobs", "(\\d{1,2})" },
+
+            // list the running and queued transfers
+            { "queue", null },
+
+            // server's connection, traffic and command latency counters
+            { "stats", null },
+
+            { "?", null },
 
             // bonus feature: unicast; allows user to message someone else in server
-            { "/(msg)", "(\\w+) (.+)" },
+            { "msg", "(\\w+) (.+)" },
 
             // bonus feature: broadcast; allows user to message everyone else in server
-            { "/(bc)", "(.+)" },
+            { "bc", "(.+)" },
     };
 
+    // full pattern of each command by name, compiled once instead of on every parse
+    private static final Map<String, Pattern> commands = new HashMap<>();
+
+    // a double-quoted name or a run of non-space characters
+    private static final Pattern argument = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
     static {
-        // prioritize longer strings which might have substrings that are also commands
-        // e.g. /joinchat should be checked first before /join since the matcher tries
-        // to match the command at the beginning of the string
-        Arrays.sort(patterns, (a, b) -> b[0].compareTo(a[0]));
+        for (String[] pattern : patterns) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("/(").append(Pattern.quote(pattern[0])).append(")");
+            if (pattern[1] != null) {
+                sb.append(" ");
+                sb.append(pattern[1]);
+            }
+            commands.put(pattern[0], Pattern.compile(sb.toString()));
+        }
     }
 
     /**
@@ -66,54 +96,57 @@ final class InputParser {
      */
     public static InputParser parseInput(String s) {
         InputParser ip = new InputParser();
-        for (int i = 0; i < patterns.length; i++) {
-            // create pattern for command name
-            StringBuilder sb = new StringBuilder();
-            sb.append("^"); // match start of string
-            sb.append(patterns[i][0]);
-            Pattern p = Pattern.compile(sb.toString());
-
-            // if command name is not present, try other command names
-            Matcher m = p.matcher(s);
-            if (!m.find()) {
-                continue;
-            }
-
-            // get command name
-            ip.setCommand(m.group(1));
 
-            // create pattern for command name + params (if any)
-            if (patterns[i][1] != null) {
-                sb.append(" ");
-                sb.append(patterns[i][1]);
-            }
-            sb.append("$"); // match end of string
-            p = Pattern.compile(sb.toString());
-            m = p.matcher(s);
-
-            // if input does not match command syntax, abort
-            if (!m.matches()) {
-                ip.setErrorMessage("Command parameters do not match or is not allowed.");
-                break;
-            }
-
-            // get command parameters
-            ArrayList<String> params = new ArrayList<>();
-            for (int j = 2; j <= m.groupCount(); j++) {
-                params.add(m.group(j));
-            }
-            ip.setParams(params);
-            break;
+        // the command name runs from the slash up to the first space
+        String name = null;
+        if (s.startsWith("/")) {
+            int end = s.indexOf(' ');
+            name = s.substring(1, end < 0 ? s.length() : end);
         }
 
         // if no command was found, notify user
-        if (ip.getCommand() == null) {
+        Pattern p = name == null ? null : commands.get(name);
+        if (p == null) {
             ip.setErrorMessage("Command not found.");
+            return ip;
+        }
+
+        // get command name
+        ip.setCommand(name);
+
+        // if input does not match command syntax, abort
+        Matcher m = p.matcher(s);
+        if (!m.matches()) {
+            ip.setErrorMessage("Command parameters do not match or is not allowed.");
+            return ip;
         }
 
+        // get command parameters
+        ArrayList<String> params = new ArrayList<>();
+        for (int j = 2; j <= m.groupCount(); j++) {
+            params.add(m.group(j));
+        }
+        ip.setParams(params);
         return ip;
     }
 
+    /**
+     * Splits the argument of /get or /store into file names and globs.
+     * Arguments are separated by spaces; a name that contains spaces can be
+     * put in double quotes, e.g. `"annual report.pdf" *.csv`.
+     *
+     * @param s Raw argument string to split.
+     * @return Names and globs in the order they were given.
+     */
+    static ArrayList<String> splitArguments(String s) {
+        ArrayList<String> arguments = new ArrayList<>();
+        Matcher m = argument.matcher(s);
+        while (m.find()) {
+            arguments.add(m.group(1) != null ? m.group(1) : m.group(2));
+        }
+        return arguments;
+    }
+
     private String command;
     private ArrayList<String> params;
     private String errorMessage;
@@ -0,0 +1,90 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram counts latencies in buckets whose width grows with the
+ * latency, 16 per power of two, so any percentile is known to within about 6%
+ * no matter how many latencies were recorded. Recording only increments
+ * counters, so any number of threads may record at once without locking or
+ * allocating.
+ */
+final class LatencyHistogram {
+    // latencies below this many microseconds get a bucket each
+    private static final int LINEAR = 32;
+    private static final int SUB_BUCKETS = 16;
+    // enough for latencies of days
+    private static final int BUCKETS = LINEAR + 40 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        totalMicros.add(micros);
+        if (micros > maxMicros.get()) {
+            maxMicros.accumulateAndGet(micros, Math::max);
+        }
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) totalMicros.sum() / n;
+    }
+
+    long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Latency that the given share of the recorded latencies did not exceed,
+     * rounded up to the end of its bucket.
+     *
+     * @param p Share between 0 and 1, e.g. 0.99.
+     * @return Microseconds, or 0 if nothing was recorded.
+     */
+    long getPercentileMicros(double p) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(lowerBound(i + 1) - 1, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        // the 4 bits below the highest one pick the sub-bucket
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int mantissa = (int) (micros >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, LINEAR + (exponent - 5) * SUB_BUCKETS + mantissa);
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 5;
+        int mantissa = (bucket - LINEAR) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + mantissa) << (exponent - 4);
+    }
+}
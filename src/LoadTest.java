@@ -0,0 +1,489 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * LoadTest drives a running Server with many headless clients at once, to find
+ * out how many it can serve and how fast. Every session connects, registers
+ * and uploads a file of its own, then runs commands picked at random from the
+ * mix, with a pause between them, until the test is over. It speaks the same
+ * protocols as the GUI client through ServerConnection.
+ *
+ * MESSAGE and BROADCAST have no reply, so their latency is how long the
+ * sender waits for what the server sends it on the chat stream in return:
+ * "Message sent successfully!" and its own broadcast.
+ *
+ * Usage: `java LoadTest <host> <port> [--protocol=legacy|mux|framed]
+ * [--sessions=N] [--duration=S] [--ramp-up=S] [--think=ms] [--file-size=KiB]
+ * [--mix=dir:30,get:25,store:10,message:20,broadcast:15]`
+ */
+final class LoadTest {
+    /**
+     * Commands a session runs. REGISTER only runs once per session.
+     */
+    enum Command {
+        REGISTER, DIR, STORE, GET, MESSAGE, BROADCAST
+    }
+
+    private static final int DIR_PAGE_SIZE = 50;
+    private static final long REPLY_TIMEOUT_MILLIS = 30000;
+    private static final long PROGRESS_MILLIS = 10000;
+    private static final String MESSAGE_SENT = "Message sent successfully!";
+
+    private String host;
+    private int port;
+    private ServerConfig.Protocol protocol = ServerConfig.Protocol.LEGACY;
+    private int sessions = 100;
+    private long durationMillis = 60000;
+    private long rampUpMillis = 10000;
+    private long thinkMillis = 100;
+    private int fileSize = 64 * 1024;
+    private final EnumMap<Command, Integer> mix = new EnumMap<>(Command.class);
+
+    private final EnumMap<Command, LatencyHistogram> latencies = new EnumMap<>(Command.class);
+    private final EnumMap<Command, LongAdder> errors = new EnumMap<>(Command.class);
+    private final LongAdder fileBytes = new LongAdder();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger lost = new AtomicInteger();
+    // the legacy server pairs the two sockets of a client in the order they are accepted
+    private final ReentrantLock opening = new ReentrantLock();
+    // sessions that are registered and have stored their file, so others may GET and MESSAGE them
+    private final List<Session> ready = new ArrayList<>();
+    private final ReentrantLock readyLock = new ReentrantLock();
+
+    private Path workDirectory;
+    private File upload;
+    private volatile long deadline;
+
+    private LoadTest() {
+        mix.put(Command.DIR, 30);
+        mix.put(Command.GET, 25);
+        mix.put(Command.STORE, 10);
+        mix.put(Command.MESSAGE, 20);
+        mix.put(Command.BROADCAST, 15);
+        for (Command command : Command.values()) {
+            latencies.put(command, new LatencyHistogram());
+            errors.put(command, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            LoadTest test = parse(args);
+            test.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Parses the command line the same way as ServerConfig.parse.
+     *
+     * @throws IllegalArgumentException If an option is unknown or has a bad
+     *                                  value.
+     */
+    private static LoadTest parse(String[] args) {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Usage: LoadTest <host> <port> [--protocol=legacy|mux|framed]"
+                    + " [--sessions=N] [--duration=S] [--ramp-up=S] [--think=ms] [--file-size=KiB]"
+                    + " [--mix=dir:30,get:25,store:10,message:20,broadcast:15]");
+        }
+
+        LoadTest test = new LoadTest();
+        test.host = args[0];
+        test.port = Integer.parseInt(args[1]);
+
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq == -1) {
+                throw new IllegalArgumentException("Malformed option: " + arg);
+            }
+
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "protocol":
+                    test.protocol = ServerConfig.Protocol.valueOf(value.toUpperCase());
+                    break;
+                case "sessions":
+                    test.sessions = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "duration":
+                    test.durationMillis = (long) (Double.parseDouble(value) * 1000);
+                    break;
+                case "ramp-up":
+                    test.rampUpMillis = (long) (Math.max(0, Double.parseDouble(value)) * 1000);
+                    break;
+                case "think":
+                    test.thinkMillis = Math.max(0, Long.parseLong(value));
+                    break;
+                case "file-size":
+                    test.fileSize = Math.max(0, Integer.parseInt(value)) * 1024;
+                    break;
+                case "mix":
+                    test.mix.clear();
+                    for (String part : value.split(",")) {
+                        String[] weight = part.split(":");
+                        if (weight.length != 2) {
+                            throw new IllegalArgumentException("Malformed option: " + arg);
+                        }
+                        Command command = Command.valueOf(weight[0].toUpperCase());
+                        if (command == Command.REGISTER) {
+                            throw new IllegalArgumentException("REGISTER runs once per session: " + arg);
+                        }
+                        test.mix.put(command, Math.max(0, Integer.parseInt(weight[1])));
+                    }
+                    if (test.mix.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+                        throw new IllegalArgumentException("Malformed option: " + arg);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        return test;
+    }
+
+    private void run() throws Exception {
+        workDirectory = Files.createTempDirectory("loadtest");
+        upload = workDirectory.resolve("upload.bin").toFile();
+        byte[] contents = new byte[fileSize];
+        new Random(42).nextBytes(contents);
+        Files.write(upload.toPath(), contents);
+
+        System.out.println(String.format("LoadTest: %d sessions against %s:%d (%s protocol) for %.0f s, %.0f s ramp-up",
+                sessions, host, port, protocol.name().toLowerCase(), durationMillis / 1e3, rampUpMillis / 1e3));
+
+        long started = System.nanoTime();
+        deadline = started + TimeUnit.MILLISECONDS.toNanos(rampUpMillis + durationMillis);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < sessions; i++) {
+                long delay = sessions == 1 ? 0 : rampUpMillis * i / (sessions - 1);
+                int id = i;
+                executor.submit(() -> {
+                    Thread.sleep(delay);
+                    new Session(id).run();
+                    return null;
+                });
+            }
+
+            Thread.ofVirtual().start(() -> printProgress(started));
+        }
+        long elapsed = System.nanoTime() - started;
+
+        report(elapsed);
+        try (Stream<Path> files = Files.walk(workDirectory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private void printProgress(long started) {
+        try {
+            while (System.nanoTime() < deadline) {
+                Thread.sleep(PROGRESS_MILLIS);
+                long ops = latencies.values().stream().mapToLong(LatencyHistogram::getCount).sum();
+                System.out.println(String.format("LoadTest: %3.0f s: %d sessions connected, %d lost, %d commands",
+                        (System.nanoTime() - started) / 1e9, connected.get(), lost.get(), ops));
+            }
+        } catch (InterruptedException e) {
+            // test is over
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("%-10s %9s %7s %9s %9s %9s %9s %9s %9s", "Command", "Count", "Errors",
+                "ops/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+
+        long total = 0;
+        for (Command command : Command.values()) {
+            LatencyHistogram histogram = latencies.get(command);
+            long count = histogram.getCount();
+            total += count;
+            System.out.println(String.format("%-10s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f", command, count,
+                    errors.get(command).sum(), count / seconds, histogram.getMeanMicros() / 1e3,
+                    histogram.getPercentileMicros(0.50) / 1e3, histogram.getPercentileMicros(0.90) / 1e3,
+                    histogram.getPercentileMicros(0.99) / 1e3, histogram.getMaxMicros() / 1e3));
+        }
+
+        System.out.println(String.format("Total: %d commands in %.1f s, %.1f ops/s, %.1f MB/s of file contents,"
+                + " %d of %d sessions lost", total, seconds, total / seconds, fileBytes.sum() / seconds / 1e6,
+                lost.get(), sessions));
+    }
+
+    /**
+     * One simulated client, run on a virtual thread of its own.
+     */
+    private final class Session {
+        private final String handle;
+        private final String filename;
+        private final File download;
+        // replies to MESSAGE and BROADCAST, taken off the chat stream
+        private final LinkedBlockingQueue<String> replies = new LinkedBlockingQueue<>();
+        private ServerConnection connection;
+        private int broadcasts = 0;
+
+        Session(int id) {
+            this.handle = "load_" + id;
+            this.filename = "load-" + id + ".bin";
+            this.download = workDirectory.resolve(filename).toFile();
+        }
+
+        void run() {
+            try {
+                connection = open();
+                connected.incrementAndGet();
+                Thread.ofVirtual().name("chat-" + handle).start(this::readChat);
+
+                timed(Command.REGISTER, () -> connection.request("REGISTER", out -> out.writeUTF(handle))
+                        .readUTF().equals("REGISTRATION_DONE"));
+                // every session gets a file of its own to GET
+                timed(Command.STORE, this::store);
+                setReady(true);
+
+                while (System.nanoTime() < deadline) {
+                    Command command = pick();
+                    timed(command, () -> execute(command));
+                    if (thinkMillis > 0) {
+                        Thread.sleep(ThreadLocalRandom.current().nextLong(thinkMillis * 2 + 1));
+                    }
+                }
+
+                setReady(false);
+                connection.send("DISCONNECT", out -> {
+                });
+            } catch (Exception e) {
+                lost.incrementAndGet();
+            } finally {
+                setReady(false);
+                connected.decrementAndGet();
+                try {
+                    if (connection != null) {
+                        connection.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private ServerConnection open() throws IOException {
+            if (protocol != ServerConfig.Protocol.LEGACY) {
+                return ServerConnection.open(host, port, protocol);
+            }
+
+            opening.lock();
+            try {
+                return ServerConnection.open(host, port, protocol);
+            } finally {
+                opening.unlock();
+            }
+        }
+
+        private void setReady(boolean isReady) {
+            readyLock.lock();
+            try {
+                ready.remove(this);
+                if (isReady) {
+                    ready.add(this);
+                }
+            } finally {
+                readyLock.unlock();
+            }
+        }
+
+        /**
+         * Another session that is ready, or this one if there is none.
+         */
+        private Session peer() {
+            readyLock.lock();
+            try {
+                if (ready.isEmpty() || (ready.size() == 1 && ready.get(0) == this)) {
+                    return this;
+                }
+                Session peer;
+                do {
+                    peer = ready.get(ThreadLocalRandom.current().nextInt(ready.size()));
+                } while (peer == this);
+                return peer;
+            } finally {
+                readyLock.unlock();
+            }
+        }
+
+        private Command pick() {
+            int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+            int choice = ThreadLocalRandom.current().nextInt(total);
+            for (var entry : mix.entrySet()) {
+                choice -= entry.getValue();
+                if (choice < 0) {
+                    return entry.getKey();
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        /**
+         * Runs a command and records its latency, and an error if it did not
+         * succeed. IOExceptions end the session.
+         */
+        private void timed(Command command, Step step) throws Exception {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                succeeded = step.run();
+            } finally {
+                latencies.get(command).record(System.nanoTime() - start);
+                if (!succeeded) {
+                    errors.get(command).increment();
+                }
+            }
+        }
+
+        private boolean execute(Command command) throws Exception {
+            switch (command) {
+                case DIR:
+                    return dir();
+                case STORE:
+                    return store();
+                case GET:
+                    return get();
+                case MESSAGE:
+                    return message();
+                case BROADCAST:
+                    return broadcast();
+                default:
+                    throw new IllegalArgumentException(command.name());
+            }
+        }
+
+        private boolean dir() throws IOException {
+            DataInputStream reader = connection.request("DIR_PAGE", out -> {
+                out.writeUTF("");
+                out.writeUTF("name");
+                out.writeUTF("");
+                out.writeInt(DIR_PAGE_SIZE);
+            });
+
+            int count = reader.readInt();
+            for (int i = 0; i < count; i++) {
+                reader.readUTF();
+                reader.readLong();
+                reader.readLong();
+                reader.readUTF();
+            }
+            reader.readUTF();
+            return true;
+        }
+
+        private boolean store() throws IOException {
+            TransferProgress progress = new TransferProgress();
+            boolean stored = connection.store(filename, upload, progress);
+            fileBytes.add(progress.getDone());
+            return stored;
+        }
+
+        /**
+         * Downloads the file of another session.
+         */
+        private boolean get() throws IOException {
+            TransferProgress progress = new TransferProgress();
+            boolean received = connection.get(peer().filename, download, progress);
+            fileBytes.add(progress.getDone());
+            return received;
+        }
+
+        private boolean message() throws Exception {
+            // messaging oneself is an error, so a lone session messages nobody in particular
+            Session peer = peer();
+            String receiver = peer == this ? "load_nobody" : peer.handle;
+            connection.send("MESSAGE", out -> {
+                out.writeUTF(receiver);
+                out.writeUTF(handle);
+                out.writeUTF("load test message");
+            });
+
+            String reply = awaitReply(r -> r.equals(MESSAGE_SENT) || r.startsWith("Error: Unicast"));
+            return MESSAGE_SENT.equals(reply);
+        }
+
+        private boolean broadcast() throws Exception {
+            String message = String.format("load test broadcast #%d", ++broadcasts);
+            connection.send("BROADCAST", out -> {
+                out.writeUTF(handle);
+                out.writeUTF(message);
+            });
+
+            String echo = String.format("Broadcast from %s: %s", handle, message);
+            return echo.equals(awaitReply(echo::equals));
+        }
+
+        /**
+         * Waits for the chat message that answers the last command, skipping
+         * late answers to earlier ones.
+         *
+         * @return The answer, or null if none came in time.
+         */
+        private String awaitReply(Predicate<String> answers) throws InterruptedException {
+            long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLY_TIMEOUT_MILLIS);
+            long left;
+            while ((left = until - System.nanoTime()) > 0) {
+                String reply = replies.poll(left, TimeUnit.NANOSECONDS);
+                if (reply != null && answers.test(reply)) {
+                    return reply;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads the chat stream until the connection closes, keeping only what
+         * answers this session's own commands.
+         */
+        private void readChat() {
+            String echoPrefix = String.format("Broadcast from %s: ", handle);
+            try {
+                DataInputStream chat = new DataInputStream(connection.getChatStream());
+                while (true) {
+                    String message = chat.readUTF();
+                    if (message.startsWith(echoPrefix) || message.equals(MESSAGE_SENT)
+                            || message.startsWith("Error: Unicast")) {
+                        replies.offer(message);
+                    }
+                }
+            } catch (IOException e) {
+                // connection closed
+            }
+        }
+    }
+
+    /**
+     * One command of a session.
+     */
+    private interface Step {
+        /**
+         * @return Whether the command succeeded.
+         */
+        boolean run() throws Exception;
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * MessageEndpoint is anything chat messages can be queued for: a MessageOutbox
+ * for the blocking engines or a connection of the NIO engine. Implementations
+ * must never block the caller.
+ */
+interface MessageEndpoint {
+    /**
+     * Queues a message that is already encoded in writeUTF format.
+     */
+    void send(byte[] message);
+}
@@ -0,0 +1,174 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MessageOutbox is the bounded queue of chat messages waiting to be written to
+ * one client's message socket. Senders only enqueue, so a client whose TCP
+ * window is full stalls nobody but itself; its own writer (a virtual thread)
+ * drains the queue in the background. When the queue is full, the overflow
+ * policy either drops the oldest waiting message or disconnects the client.
+ *
+ * Messages are queued already encoded in writeUTF format, so a broadcast is
+ * encoded once no matter how many clients receive it.
+ */
+final class MessageOutbox implements MessageEndpoint {
+    /**
+     * What to do with a message for a client whose outbox is full.
+     */
+    enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT
+    }
+
+    // totals across every outbox, for monitoring
+    private static final AtomicLong totalDepth = new AtomicLong();
+    private static final LongAdder totalDropped = new LongAdder();
+    private static final LongAdder totalOverflowDisconnects = new LongAdder();
+
+    private final ArrayBlockingQueue<byte[]> queue;
+    private final OverflowPolicy policy;
+    private final OutputStream writer;
+    private final Runnable onOverflowDisconnect;
+    private final Thread drainer;
+    private volatile boolean closed = false;
+    // raised by any producer, so a plain check-then-set could lose a higher depth
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    /**
+     * @param out                  Stream of the client's message socket.
+     * @param name                 Used to name the writer thread.
+     * @param capacity             Messages that can wait before the policy applies.
+     * @param policy               What to do when the outbox is full.
+     * @param onOverflowDisconnect Closes the client's connection; only called by
+     *                             the DISCONNECT policy.
+     */
+    MessageOutbox(OutputStream out, String name, int capacity, OverflowPolicy policy, Runnable onOverflowDisconnect) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.writer = new BufferedOutputStream(out);
+        this.onOverflowDisconnect = onOverflowDisconnect;
+        this.drainer = Thread.ofVirtual().name("outbox-" + name).start(this::drain);
+    }
+
+    /**
+     * Encodes a message the same way DataOutputStream.writeUTF would.
+     */
+    static byte[] encode(String message) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(message.length() + 2);
+            new DataOutputStream(bos).writeUTF(message);
+            return bos.toByteArray();
+        } catch (IOException e) {
+            // only thrown for strings longer than 65535 encoded bytes
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    void send(String message) {
+        send(encode(message));
+    }
+
+    /**
+     * Queues an encoded message without blocking.
+     */
+    @Override
+    public void send(byte[] message) {
+        if (closed) {
+            return;
+        }
+
+        while (!queue.offer(message)) {
+            if (policy == OverflowPolicy.DISCONNECT) {
+                totalOverflowDisconnects.increment();
+                close();
+                onOverflowDisconnect.run();
+                return;
+            }
+
+            if (queue.poll() != null) {
+                totalDepth.decrementAndGet();
+                totalDropped.increment();
+            }
+        }
+
+        totalDepth.incrementAndGet();
+        maxDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    /**
+     * Stops the writer. Messages still waiting are discarded.
+     */
+    void close() {
+        closed = true;
+        drainer.interrupt();
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    int maxDepth() {
+        return maxDepth.get();
+    }
+
+    static long totalDepth() {
+        return totalDepth.get();
+    }
+
+    static long totalDropped() {
+        return totalDropped.sum();
+    }
+
+    static long totalOverflowDisconnects() {
+        return totalOverflowDisconnects.sum();
+    }
+
+    /**
+     * Lets the NIO engine, which queues on its own event loops, report into the
+     * same totals.
+     */
+    static void recordQueued(int delta) {
+        totalDepth.addAndGet(delta);
+    }
+
+    static void recordDropped() {
+        totalDropped.increment();
+    }
+
+    static void recordOverflowDisconnect() {
+        totalOverflowDisconnects.increment();
+    }
+
+    private void drain() {
+        try {
+            while (!closed) {
+                byte[] message = queue.take();
+                totalDepth.decrementAndGet();
+                writer.write(message);
+                ServerMetrics.addBytesOut(message.length);
+
+                // write everything that piled up meanwhile in one flush
+                while ((message = queue.poll()) != null) {
+                    totalDepth.decrementAndGet();
+                    writer.write(message);
+                    ServerMetrics.addBytesOut(message.length);
+                }
+                writer.flush();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            // client is gone; its ServerThread notices and cleans up
+            closed = true;
+        } finally {
+            totalDepth.addAndGet(-queue.size());
+            queue.clear();
+        }
+    }
+}
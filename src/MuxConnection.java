@@ -0,0 +1,238 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MuxConnection carries the control, chat and bulk data streams of a client
+ * over one TCP socket instead of the original file/message socket pair. Every
+ * write becomes one or more frames of `[channel: byte][length: int][payload]`.
+ * A demultiplexer thread reads the frames and queues each payload on its
+ * channel, where it is read back as a plain InputStream.
+ *
+ * Each channel buffers at most CHANNEL_BUFFER_FRAMES frames. When a channel is
+ * full, the demultiplexer waits for its reader, so a side that stops reading
+ * one channel also stops receiving on the others. The protocol never waits on
+ * one channel while another is full: chat is always drained, and bulk data is
+ * read completely before the next control message.
+ */
+final class MuxConnection implements Closeable {
+    static final int CONTROL = 0;
+    static final int CHAT = 1;
+    static final int BULK = 2;
+    private static final int CHANNELS = 3;
+
+    // sent by the client right after connecting so both ends know they agree
+    private static final int MAGIC = 0x46584d31; // "FXM1"
+
+    private static final int MAX_FRAME = 64 * 1024;
+    private static final int CHANNEL_BUFFER_FRAMES = 64;
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ChannelInputStream[] inputs = new ChannelInputStream[CHANNELS];
+    private final ChannelOutputStream[] outputs = new ChannelOutputStream[CHANNELS];
+    private volatile boolean closed = false;
+
+    private MuxConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MAX_FRAME + 5));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME + 5));
+        for (int i = 0; i < CHANNELS; i++) {
+            inputs[i] = new ChannelInputStream();
+            outputs[i] = new ChannelOutputStream(i);
+        }
+    }
+
+    /**
+     * Client side: announces the multiplexed protocol on a freshly connected
+     * socket.
+     */
+    static MuxConnection connect(Socket socket) throws IOException {
+        MuxConnection connection = new MuxConnection(socket);
+        connection.out.writeInt(MAGIC);
+        connection.out.flush();
+        connection.startDemultiplexer();
+        return connection;
+    }
+
+    /**
+     * Server side: checks that the peer speaks the multiplexed protocol.
+     *
+     * @throws IOException If the peer sent something else, e.g. a legacy client.
+     */
+    static MuxConnection accept(Socket socket) throws IOException {
+        MuxConnection connection = new MuxConnection(socket);
+        if (connection.in.readInt() != MAGIC) {
+            socket.close();
+            throw new IOException("Client at " + socket.getRemoteSocketAddress() + " does not speak the mux protocol");
+        }
+        connection.startDemultiplexer();
+        return connection;
+    }
+
+    InputStream getInputStream(int channel) {
+        return inputs[channel];
+    }
+
+    OutputStream getOutputStream(int channel) {
+        return outputs[channel];
+    }
+
+    SocketAddress getRemoteSocketAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        socket.close();
+    }
+
+    private void startDemultiplexer() {
+        Thread.ofVirtual().name("mux-" + socket.getRemoteSocketAddress()).start(this::demultiplex);
+    }
+
+    private void demultiplex() {
+        try {
+            while (true) {
+                int channel = in.readUnsignedByte();
+                int length = in.readInt();
+                if (channel >= CHANNELS || length < 0 || length > MAX_FRAME) {
+                    throw new IOException("Malformed mux frame");
+                }
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                inputs[channel].space.acquire();
+                inputs[channel].frames.add(payload);
+            }
+        } catch (EOFException e) {
+            // peer closed the connection
+        } catch (Exception e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } finally {
+            // not bounded by space, so the end always gets through
+            for (ChannelInputStream input : inputs) {
+                input.frames.add(END_OF_STREAM);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final class ChannelInputStream extends InputStream {
+        private final LinkedBlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        private final Semaphore space = new Semaphore(CHANNEL_BUFFER_FRAMES);
+        private byte[] current = new byte[0];
+        private int position = 0;
+
+        /**
+         * Makes sure there is at least one unread byte.
+         *
+         * @return false once the connection is closed.
+         */
+        private boolean fill() throws IOException {
+            while (position == current.length) {
+                if (current == END_OF_STREAM) {
+                    return false;
+                }
+
+                try {
+                    current = frames.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                position = 0;
+
+                if (current == END_OF_STREAM) {
+                    return false;
+                }
+                space.release();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+
+            int bytes = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, bytes);
+            position += bytes;
+            return bytes;
+        }
+
+        @Override
+        public int available() {
+            return current.length - position;
+        }
+    }
+
+    private final class ChannelOutputStream extends OutputStream {
+        private final int channel;
+
+        ChannelOutputStream(int channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        /**
+         * Sends the bytes right away as one or more whole frames. Frames of
+         * different channels never interleave mid-frame.
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeLock.lock();
+            try {
+                do {
+                    int bytes = Math.min(len, MAX_FRAME);
+                    out.writeByte(channel);
+                    out.writeInt(bytes);
+                    out.write(b, off, bytes);
+                    off += bytes;
+                    len -= bytes;
+                } while (len > 0);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,1081 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioServer is the non-blocking alternative to the thread-per-client engine.
+ * One acceptor thread pairs the file and message sockets of a client in arrival
+ * order, then hands the pair to one of a few event loops. Each event loop
+ * multiplexes all of its connections through a single Selector, so an idle
+ * client costs a couple of buffers instead of a whole thread stack.
+ *
+ * The wire format is exactly the one ServerThread speaks: commands and strings
+ * are `writeUTF` strings and lengths are `writeLong` values.
+ *
+ * Work that can block on the disk for long, like hashing a whole file, runs on
+ * a worker thread instead of the event loop, and its reply is posted back to
+ * the loop once it is done.
+ */
+public class NioServer {
+    // largest possible writeUTF string (2 byte length + 65535 bytes) plus a long
+    private static final int MAX_INPUT_BUFFER = 128 * 1024;
+
+    private final ServerConfig config;
+    private final FileCatalog catalog;
+    private final HandleRegistry registry;
+    private final TransferScheduler scheduler;
+    private final ExecutorService workers = Executors
+            .newThreadPerTaskExecutor(Thread.ofVirtual().name("nio-worker-", 0).factory());
+
+    private EventLoop[] loops;
+    private int nextLoop = 0;
+
+    public NioServer(ServerConfig config, FileCatalog catalog, HandleRegistry registry, TransferScheduler scheduler) {
+        this.config = config;
+        this.catalog = catalog;
+        this.registry = registry;
+        this.scheduler = scheduler;
+    }
+
+    public void run() throws IOException {
+        loops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+
+        Selector acceptSelector = Selector.open();
+
+        // used for file server transfers
+        ServerSocketChannel fileSocket = ServerSocketChannel.open();
+        fileSocket.bind(new InetSocketAddress(config.getPort()), 1024);
+        fileSocket.configureBlocking(false);
+        fileSocket.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        // used for messages
+        ServerSocketChannel messageSocket = ServerSocketChannel.open();
+        messageSocket.bind(new InetSocketAddress(config.getMessagePort()), 1024);
+        messageSocket.configureBlocking(false);
+        messageSocket.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        ArrayDeque<SocketChannel> pendingFileEndpoints = new ArrayDeque<>();
+        ArrayDeque<SocketChannel> pendingMessageEndpoints = new ArrayDeque<>();
+
+        System.out.println("Server: Listening on port " + config.getPort() + " with " + loops.length
+                + " NIO event loop(s)");
+        while (true) {
+            acceptSelector.select();
+
+            Iterator<SelectionKey> it = acceptSelector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                SocketChannel endpoint;
+                while ((endpoint = ((ServerSocketChannel) key.channel()).accept()) != null) {
+                    if (key.channel() == fileSocket) {
+                        pendingFileEndpoints.add(endpoint);
+                    } else {
+                        pendingMessageEndpoints.add(endpoint);
+                    }
+                }
+            }
+
+            // pair sockets in arrival order, same as the blocking engine does
+            while (!pendingFileEndpoints.isEmpty() && !pendingMessageEndpoints.isEmpty()) {
+                SocketChannel fileEndpoint = pendingFileEndpoints.poll();
+                SocketChannel messageEndpoint = pendingMessageEndpoints.poll();
+                try {
+                    EventLoop loop = loops[nextLoop++ % loops.length];
+                    Connection connection = new Connection(loop, fileEndpoint, messageEndpoint);
+                    System.out.println("Server: Client at " + connection.remoteAddress + " has connected");
+                    ServerMetrics.connectionOpened();
+                    loop.execute(connection::register);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    fileEndpoint.close();
+                    messageEndpoint.close();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer encodeUtf(String s) {
+        return ByteBuffer.wrap(MessageOutbox.encode(s));
+    }
+
+    /**
+     * Reads one `writeUTF` string from a buffer in read mode. Returns null and
+     * leaves the buffer untouched if the string has not fully arrived yet.
+     */
+    private static String readUtf(ByteBuffer in) throws IOException {
+        if (in.remaining() < 2) {
+            return null;
+        }
+
+        int length = in.getShort(in.position()) & 0xffff;
+        if (in.remaining() < length + 2) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length + 2];
+        in.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    /**
+     * Handles one command of a connection, given the arguments read for it.
+     */
+    private interface Handler {
+        void handle(Connection connection, List<Object> args) throws IOException;
+    }
+
+    private static final Map<ProtocolCommand, Handler> handlers = new EnumMap<>(ProtocolCommand.class);
+
+    static {
+        handlers.put(ProtocolCommand.REGISTER, (c, args) -> c.doRegisterCmd((String) args.get(0)));
+        handlers.put(ProtocolCommand.DIR, (c, args) -> c.doDirCmd());
+        handlers.put(ProtocolCommand.DIR_PAGE, (c, args) -> c.doDirPageCmd((String) args.get(0), (String) args.get(1),
+                (String) args.get(2), (Integer) args.get(3)));
+        handlers.put(ProtocolCommand.STORE, (c, args) -> c.doStoreCmd((String) args.get(0), (Long) args.get(1)));
+        handlers.put(ProtocolCommand.STORE_STATUS,
+                (c, args) -> c.doStoreStatusCmd((String) args.get(0), (Long) args.get(1)));
+        handlers.put(ProtocolCommand.STORE_RANGE,
+                (c, args) -> c.doStoreRangeCmd((String) args.get(0), (Long) args.get(1), (Long) args.get(2)));
+        handlers.put(ProtocolCommand.STORE_DELTA, (c, args) -> c.doStoreDeltaCmd((String) args.get(0),
+                (Long) args.get(1), (String) args.get(2), (Long) args.get(3)));
+        handlers.put(ProtocolCommand.STORE_BATCH, (c, args) -> c.doStoreBatchCmd());
+        handlers.put(ProtocolCommand.SIGNATURES, (c, args) -> c.doSignaturesCmd((String) args.get(0)));
+        handlers.put(ProtocolCommand.GET, (c, args) -> c.doGetCmd((String) args.get(0)));
+        handlers.put(ProtocolCommand.GET_RANGE, (c, args) -> c.doGetRangeCmd((String) args.get(0), (Long) args.get(1),
+                (Long) args.get(2), (String) args.get(3)));
+        handlers.put(ProtocolCommand.GET_BATCH, (c, args) -> c.doGetBatchCmd((String) args.get(0)));
+        handlers.put(ProtocolCommand.COMPRESSION, (c, args) -> c.doCompressionCmd());
+        handlers.put(ProtocolCommand.MESSAGE,
+                (c, args) -> c.doMsgCmd((String) args.get(0), (String) args.get(1), (String) args.get(2)));
+        handlers.put(ProtocolCommand.BROADCAST, (c, args) -> c.doBcCmd((String) args.get(0), (String) args.get(1)));
+        handlers.put(ProtocolCommand.STATS, (c, args) -> c.doStatsCmd());
+        handlers.put(ProtocolCommand.DISCONNECT, (c, args) -> c.close());
+    }
+
+    private static final class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // tasks waiting for their time; only touched by this loop's thread
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::due));
+
+        EventLoop(int index) throws IOException {
+            super("nio-event-loop-" + index);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Runs the task on this loop's thread. Safe to call from any thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs the task on this loop's thread once the delay has passed. Must
+         * be called from this loop's thread.
+         */
+        void schedule(Runnable task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Timer first = timers.peek();
+                    if (first == null) {
+                        selector.select();
+                    } else {
+                        long wait = TimeUnit.NANOSECONDS.toMillis(first.due() - System.nanoTime());
+                        if (wait > 0) {
+                            selector.select(wait);
+                        } else {
+                            selector.selectNow();
+                        }
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    long now = System.nanoTime();
+                    while (!timers.isEmpty() && timers.peek().due() <= now) {
+                        timers.poll().task().run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (!key.isValid()) {
+                                continue;
+                            }
+
+                            if (key == connection.messageKey) {
+                                connection.flushMessages();
+                                continue;
+                            }
+
+                            if (key.isWritable()) {
+                                connection.flushFileEndpoint();
+                            }
+
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private record Timer(long due, Runnable task) {
+    }
+
+    /**
+     * Work of a connection that runs on a worker thread.
+     */
+    private interface Work<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * What a connection does with the result of its Work, back on its loop.
+     */
+    private interface Then<T> {
+        void accept(T result) throws IOException;
+    }
+
+    private final class Connection implements MessageEndpoint {
+        private final EventLoop loop;
+        private final SocketChannel fileEndpoint;
+        private final SocketChannel messageEndpoint;
+        private final SocketAddress remoteAddress;
+        private SelectionKey fileKey;
+        private SelectionKey messageKey;
+
+        private ByteBuffer in = ByteBuffer.allocate(512);
+        private ProtocolCommand command;
+        private final ArrayList<Object> args = new ArrayList<>();
+        // command being handled, timed until the connection is ready for the next one
+        private ProtocolCommand timedCommand;
+        private long commandStarted;
+
+        // responses on the file socket, followed by an optional GET payload
+        private final ArrayDeque<ByteBuffer> fileOut = new ArrayDeque<>();
+        private FileChannel getFile;
+        private long getPosition;
+        private long getRemaining;
+        // bandwidth share of the GET payload: bytes reserved but not sent yet,
+        // and whether it waits on a timer for its next slice
+        private TransferScheduler.Transfer transfer;
+        private long getAllowed;
+        private boolean getPaused = false;
+
+        // STORE payload still being received
+        private Upload upload;
+        private String storeFilename;
+        // whether the STORE ends with a reply, as STORE_RANGE does
+        private boolean storeReplies;
+        // STORE_DELTA whose delta is still being received
+        private DeltaPatch patch;
+        // bytes of a STORE_RANGE that could not be resumed and are thrown away
+        private long discardRemaining = -1;
+        // STORE_BATCH whose archive is still being received
+        private BatchTransfer batch;
+        // files of a GET_BATCH that were not sent yet
+        private ArrayDeque<String> batchNames;
+
+        // chat messages can be queued from any event loop; bounded like MessageOutbox
+        private final Queue<ByteBuffer> messageOut = new ConcurrentLinkedQueue<>();
+        // message being written, out of the queue so that no sender can drop it; only touched by the loop
+        private ByteBuffer messageHead;
+        // queued messages plus the one being written
+        private final AtomicInteger messageDepth = new AtomicInteger();
+        private final AtomicBoolean messageFlushScheduled = new AtomicBoolean();
+
+        private String registeredHandle;
+        // whether a worker is busy with this connection; nothing is read meanwhile
+        private boolean working = false;
+        // read by sendMessage on other event loops
+        private volatile boolean closed = false;
+
+        Connection(EventLoop loop, SocketChannel fileEndpoint, SocketChannel messageEndpoint) throws IOException {
+            this.loop = loop;
+            this.fileEndpoint = fileEndpoint;
+            this.messageEndpoint = messageEndpoint;
+            this.remoteAddress = fileEndpoint.getRemoteAddress();
+            fileEndpoint.configureBlocking(false);
+            messageEndpoint.configureBlocking(false);
+        }
+
+        void register() {
+            try {
+                fileKey = fileEndpoint.register(loop.selector, SelectionKey.OP_READ, this);
+                messageKey = messageEndpoint.register(loop.selector, 0, this);
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        void onReadable() throws IOException {
+            if (working) {
+                return;
+            }
+
+            // receive STORE payloads straight from the socket into the file
+            if (upload != null && in.position() == 0) {
+                while (upload.remaining() > 0) {
+                    if (upload.transferFrom(fileEndpoint) == 0) {
+                        break;
+                    }
+                }
+
+                if (upload.remaining() > 0) {
+                    // transferFrom cannot tell an empty socket from a closed one
+                    if (fileEndpoint.read(in) == -1) {
+                        close();
+                        return;
+                    }
+                    processInput();
+                    return;
+                }
+
+                // reading resumes once the upload is committed
+                finishStore();
+                return;
+            }
+
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_INPUT_BUFFER) {
+                    throw new IOException("Client sent an oversized command");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+
+            if (fileEndpoint.read(in) == -1) {
+                close();
+                return;
+            }
+            processInput();
+        }
+
+        /**
+         * Handles every complete command sitting in the input buffer. Commands
+         * that arrive while a GET payload or a GET_BATCH archive is still being
+         * sent wait until it is done so that responses never interleave.
+         */
+        private void processInput() throws IOException {
+            in.flip();
+            try {
+                while (!closed && !working && getFile == null && batchNames == null && fileOut.isEmpty()) {
+                    if (timedCommand != null && discardRemaining < 0 && upload == null && batch == null
+                            && patch == null) {
+                        ServerMetrics.recordCommand(timedCommand, System.nanoTime() - commandStarted);
+                        timedCommand = null;
+                    }
+
+                    if (discardRemaining >= 0) {
+                        int chunk = (int) Math.min(in.remaining(), discardRemaining);
+                        in.position(in.position() + chunk);
+                        discardRemaining -= chunk;
+
+                        if (discardRemaining > 0) {
+                            break;
+                        }
+                        discardRemaining = -1;
+                        reply(encodeUtf("STORE_FAILED"));
+                        continue;
+                    }
+
+                    if (upload != null) {
+                        int chunk = (int) Math.min(in.remaining(), upload.remaining());
+                        ByteBuffer slice = in.slice();
+                        slice.limit(chunk);
+                        upload.write(slice);
+                        in.position(in.position() + chunk);
+
+                        if (upload.remaining() > 0) {
+                            break;
+                        }
+                        finishStore();
+                        continue;
+                    }
+
+                    if (batch != null) {
+                        // never past the end of the archive, which may have a command behind it
+                        Archive.Unpacker unpacker = batch.unpacker();
+                        while (in.hasRemaining() && !unpacker.isFinished()) {
+                            int chunk = Math.min(in.remaining(), unpacker.needed());
+                            unpacker.write(in.array(), in.arrayOffset() + in.position(), chunk);
+                            in.position(in.position() + chunk);
+                        }
+
+                        if (!unpacker.isFinished()) {
+                            break;
+                        }
+                        finishBatch();
+                        continue;
+                    }
+
+                    if (patch != null) {
+                        if (patch.remaining() == 0) {
+                            finishPatch();
+                            continue;
+                        }
+                        if (!in.hasRemaining()) {
+                            break;
+                        }
+
+                        // copied, since the input buffer is compacted before the worker gets to it
+                        int chunk = (int) Math.min(in.remaining(), patch.remaining());
+                        ByteBuffer delta = ByteBuffer.allocate(chunk).put(0, in, in.position(), chunk);
+                        in.position(in.position() + chunk);
+                        applyDelta(delta);
+                        continue;
+                    }
+
+                    if (command == null) {
+                        String name = readUtf(in);
+                        if (name == null) {
+                            break;
+                        }
+
+                        command = ProtocolCommand.of(name);
+                        if (command == null) {
+                            // ignore unknown commands like the blocking engine does
+                            continue;
+                        }
+                        args.clear();
+                    }
+
+                    if (!readArgs()) {
+                        break;
+                    }
+
+                    ProtocolCommand cmd = command;
+                    command = null;
+                    timedCommand = cmd;
+                    commandStarted = System.nanoTime();
+                    handlers.get(cmd).handle(this, args);
+                }
+            } finally {
+                in.compact();
+            }
+        }
+
+        private boolean readArgs() throws IOException {
+            String signature = command.arguments;
+            while (args.size() < signature.length()) {
+                char kind = signature.charAt(args.size());
+                if (kind == 'L') {
+                    if (in.remaining() < Long.BYTES) {
+                        return false;
+                    }
+                    args.add(in.getLong());
+                    continue;
+                }
+
+                if (kind == 'I') {
+                    if (in.remaining() < Integer.BYTES) {
+                        return false;
+                    }
+                    args.add(in.getInt());
+                    continue;
+                }
+
+                String s = readUtf(in);
+                if (s == null) {
+                    return false;
+                }
+                args.add(s);
+            }
+            return true;
+        }
+
+        private void doRegisterCmd(String handle) throws IOException {
+            if (!registry.register(handle, this)) {
+                reply(encodeUtf("HANDLE_EXISTS"));
+                return;
+            }
+
+            registeredHandle = handle;
+            reply(encodeUtf("REGISTRATION_DONE"));
+            registry.broadcast(String.format("%s joined the server.", handle));
+        }
+
+        private void doDirCmd() throws IOException {
+            reply(encodeUtf(catalog.legacyListing()));
+        }
+
+        private void doDirPageCmd(String pattern, String sort, String cursor, int pageSize) throws IOException {
+            reply(ByteBuffer.wrap(catalog.page(pattern, sort, cursor, pageSize).encode()));
+        }
+
+        private void doStoreCmd(String filename, long fileLength) throws IOException {
+            upload = Upload.begin(catalog.getStore(), filename, fileLength);
+            storeFilename = filename;
+            storeReplies = false;
+
+            // processInput() drains whatever part of the payload is already buffered
+        }
+
+        private void doStoreStatusCmd(String filename, long fileLength) {
+            // hashing the partial upload can take a while
+            offLoop(() -> Upload.status(filename, fileLength), status -> reply(ByteBuffer.wrap(status)));
+        }
+
+        private void doStoreRangeCmd(String filename, long fileLength, long start) throws IOException {
+            // kept for a later STORE_RANGE if the client is cut off
+            upload = Upload.resume(catalog.getStore(), filename, fileLength, start);
+            if (upload == null) {
+                // nothing to continue from; processInput() swallows the bytes
+                discardRemaining = fileLength - start;
+                return;
+            }
+
+            storeFilename = filename;
+            storeReplies = true;
+        }
+
+        private void finishStore() {
+            Upload done = upload;
+            String filename = storeFilename;
+            boolean replies = storeReplies;
+            upload = null;
+            storeFilename = null;
+
+            // flushing the file to disk can take a while
+            offLoop(() -> {
+                try {
+                    done.commit();
+                } finally {
+                    done.close();
+                }
+                catalog.refresh(filename);
+                return null;
+            }, ignored -> {
+                if (replies) {
+                    reply(encodeUtf("STORE_DONE"));
+                }
+                registry.broadcast(String.format("%s<%s>: Uploaded %s", registeredHandle, new Date().toString(),
+                        filename));
+            });
+        }
+
+        private void doStoreBatchCmd() {
+            // processInput() feeds the archive to it
+            batch = new BatchTransfer(catalog);
+        }
+
+        private void finishBatch() throws IOException {
+            BatchTransfer done = batch;
+            batch = null;
+            done.close();
+
+            ByteBuffer response = ByteBuffer.allocate(32);
+            response.put(encodeUtf(done.getResponse()));
+            response.putInt(done.getStored());
+            response.flip();
+            reply(response);
+            registry.broadcast(String.format("%s<%s>: Uploaded %d files", registeredHandle, new Date().toString(),
+                    done.getStored()));
+        }
+
+        private void doGetBatchCmd(String names) throws IOException {
+            batchNames = new ArrayDeque<>(Archive.splitNames(names));
+            flushFileEndpoint();
+        }
+
+        /**
+         * Queues the header of the next file of a GET_BATCH and starts sending
+         * its contents, or queues the end of the archive once all are sent.
+         */
+        private void nextBatchEntry() throws IOException {
+            String name = batchNames.poll();
+            if (name == null) {
+                batchNames = null;
+                fileOut.add(encodeUtf(""));
+                return;
+            }
+
+            FileChannel file;
+            try {
+                file = catalog.open(name);
+            } catch (NoSuchFileException e) {
+                fileOut.add(batchHeader(name, -1));
+                return;
+            }
+
+            long length = file.size();
+            fileOut.add(batchHeader(name, length));
+            startGet(file, name, 0, length);
+        }
+
+        private ByteBuffer batchHeader(String name, long length) {
+            ByteBuffer utf = encodeUtf(name);
+            ByteBuffer header = ByteBuffer.allocate(utf.remaining() + Long.BYTES);
+            header.put(utf);
+            header.putLong(length);
+            return header.flip();
+        }
+
+        private void doSignaturesCmd(String filename) {
+            // chunking the stored file can take a while
+            offLoop(() -> DeltaPatch.signatures(catalog, filename), signatures -> reply(ByteBuffer.wrap(signatures)));
+        }
+
+        private void doStoreDeltaCmd(String filename, long fileLength, String digest, long deltaLength)
+                throws IOException {
+            patch = DeltaPatch.begin(catalog, filename, fileLength, digest, deltaLength);
+
+            // processInput() feeds whatever part of the delta is already buffered
+        }
+
+        /**
+         * Applies a piece of the delta on a worker, since a single COPY op can
+         * copy gigabytes of the stored file.
+         */
+        private void applyDelta(ByteBuffer delta) {
+            // left to the worker until it is done; close() must not close it meanwhile
+            DeltaPatch applying = patch;
+            patch = null;
+            offLoop(() -> {
+                try {
+                    applying.write(delta);
+                } catch (IOException e) {
+                    applying.close();
+                    throw e;
+                }
+                return applying;
+            }, applied -> {
+                if (closed) {
+                    applied.close();
+                    return;
+                }
+                patch = applied;
+            });
+        }
+
+        private void finishPatch() {
+            DeltaPatch done = patch;
+            patch = null;
+            // checking and flushing the new file happens on a worker too
+            offLoop(() -> {
+                try {
+                    if (!done.finish()) {
+                        return false;
+                    }
+                } finally {
+                    done.close();
+                }
+                catalog.refresh(done.getFilename());
+                return true;
+            }, stored -> {
+                if (!stored) {
+                    reply(encodeUtf("STORE_FAILED"));
+                    return;
+                }
+
+                reply(encodeUtf("STORE_DONE"));
+                registry.broadcast(String.format("%s<%s>: Uploaded %s", registeredHandle, new Date().toString(),
+                        done.getFilename()));
+            });
+        }
+
+        private void doGetCmd(String filename) throws IOException {
+            FileChannel file;
+            try {
+                file = catalog.open(filename);
+            } catch (NoSuchFileException e) {
+                reply(encodeUtf("FILE_NOT_IN_SERVER"));
+                return;
+            }
+
+            startGet(file, filename, 0, file.size());
+
+            ByteBuffer header = ByteBuffer.allocate(64);
+            header.put(encodeUtf("FILE_EXISTS"));
+            header.putLong(getRemaining);
+            header.flip();
+            reply(header);
+        }
+
+        private void doGetRangeCmd(String filename, long offset, long length, String digest) throws IOException {
+            FileChannel file;
+            try {
+                file = catalog.open(filename);
+            } catch (NoSuchFileException e) {
+                reply(encodeUtf("FILE_NOT_IN_SERVER"));
+                return;
+            }
+
+            long fileLength = file.size();
+            if (offset > fileLength) {
+                file.close();
+                reply(encodeUtf("RANGE_MISMATCH"));
+                return;
+            }
+            if (digest.isEmpty()) {
+                sendRange(file, filename, fileLength, offset, length);
+                return;
+            }
+
+            // the client's partial file has to be the start of this file, and hashing it can take a while
+            offLoop(() -> {
+                try {
+                    return Checksums.sha256(file, offset).equals(digest);
+                } catch (IOException e) {
+                    file.close();
+                    throw e;
+                }
+            }, matches -> {
+                if (closed || !matches) {
+                    file.close();
+                    reply(encodeUtf("RANGE_MISMATCH"));
+                    return;
+                }
+                sendRange(file, filename, fileLength, offset, length);
+            });
+        }
+
+        private void sendRange(FileChannel file, String filename, long fileLength, long offset, long length)
+                throws IOException {
+            startGet(file, filename, offset, length < 0 ? fileLength - offset : Math.min(length, fileLength - offset));
+
+            ByteBuffer header = ByteBuffer.allocate(64);
+            header.put(encodeUtf("FILE_EXISTS"));
+            header.putLong(fileLength);
+            header.putLong(getRemaining);
+            header.flip();
+            reply(header);
+        }
+
+        private void doMsgCmd(String receiverHandle, String senderHandle, String message) {
+            if (senderHandle.equals(receiverHandle)) {
+                sendMessage(encodeUtf(
+                        "Error: Unicast messaging failed. You cannot message yourself. That'd be pretty weird."));
+                return;
+            }
+
+            MessageEndpoint receiver = registry.lookup(receiverHandle);
+            if (receiver == null) {
+                sendMessage(encodeUtf(
+                        "Error: Unicast messaging failed. Specified alias or handle does not exist/is not registered in the server."));
+                return;
+            }
+
+            // send message to recipient
+            receiver.send(MessageOutbox.encode(String.format("Message from %s: %s", senderHandle, message)));
+
+            // let sender know they've sent the message successfully
+            sendMessage(encodeUtf("Message sent successfully!"));
+        }
+
+        private void doBcCmd(String senderHandle, String message) {
+            registry.broadcast(String.format("Broadcast from %s: %s", senderHandle, message));
+        }
+
+        private void doCompressionCmd() throws IOException {
+            // contents go through transferTo and transferFrom; never encoded
+            reply(encodeUtf(Compression.NONE));
+        }
+
+        private void doStatsCmd() throws IOException {
+            reply(encodeUtf(ServerMetrics.report(catalog, registry, scheduler)));
+        }
+
+        private void reply(ByteBuffer response) throws IOException {
+            // the client left while a worker was busy for it
+            if (closed) {
+                return;
+            }
+
+            fileOut.add(response);
+            flushFileEndpoint();
+        }
+
+        /**
+         * Runs work that can block on the disk for long on a worker, so that
+         * the other connections of the loop carry on meanwhile. This connection
+         * reads nothing until `then` has run on the loop with the result, which
+         * keeps its replies in order. `then` runs even if the connection was
+         * closed meanwhile, so that it can release what it holds; a failed
+         * Work closes the connection instead.
+         */
+        private <T> void offLoop(Work<T> work, Then<T> then) {
+            working = true;
+            fileKey.interestOps(0);
+            workers.execute(() -> {
+                T result = null;
+                IOException failure = null;
+                try {
+                    result = work.run();
+                } catch (IOException e) {
+                    failure = e;
+                }
+
+                T done = result;
+                IOException failed = failure;
+                loop.execute(() -> {
+                    working = false;
+                    try {
+                        if (failed != null) {
+                            throw failed;
+                        }
+                        then.accept(done);
+                        // unless a pipelined command handed more work to a worker already
+                        if (!closed && !working) {
+                            // resumes reading, and handles the commands pipelined meanwhile
+                            flushFileEndpoint();
+                        }
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+            });
+        }
+
+        /**
+         * Writes pending responses, then streams the pending GET payload with
+         * transferTo, then the next file of a GET_BATCH if there is one. Stops
+         * as soon as the socket send buffer is full and waits for the next
+         * OP_WRITE.
+         */
+        void flushFileEndpoint() throws IOException {
+            while (true) {
+                while (!fileOut.isEmpty()) {
+                    ByteBuffer head = fileOut.peek();
+                    fileEndpoint.write(head);
+                    if (head.hasRemaining()) {
+                        fileKey.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    fileOut.poll();
+                }
+
+                if (getFile != null) {
+                    if (getPaused) {
+                        return;
+                    }
+
+                    while (getRemaining > 0) {
+                        if (getAllowed == 0) {
+                            getAllowed = transfer.nextSlice(getRemaining);
+                            long delay = transfer.reserve(getAllowed);
+                            if (delay > 0) {
+                                // neither read nor write until the slice's turn comes
+                                getPaused = true;
+                                fileKey.interestOps(0);
+                                loop.schedule(this::resumeGet, delay);
+                                return;
+                            }
+                        }
+
+                        long bytes = getFile.transferTo(getPosition, getAllowed, fileEndpoint);
+                        if (bytes == 0) {
+                            fileKey.interestOps(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        getPosition += bytes;
+                        getRemaining -= bytes;
+                        getAllowed -= bytes;
+                    }
+
+                    endGet();
+                }
+
+                // looped rather than recursive, so a batch of thousands of files is fine
+                if (batchNames == null) {
+                    break;
+                }
+                nextBatchEntry();
+            }
+
+            if (fileKey.interestOps() != SelectionKey.OP_READ) {
+                fileKey.interestOps(SelectionKey.OP_READ);
+                // handle commands that were pipelined behind the response
+                processInput();
+            }
+        }
+
+        private void resumeGet() {
+            getPaused = false;
+            if (closed) {
+                return;
+            }
+
+            try {
+                flushFileEndpoint();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void startGet(FileChannel file, String filename, long position, long length) {
+            getFile = file;
+            getPosition = position;
+            getRemaining = length;
+            getAllowed = 0;
+            transfer = scheduler.start(((InetSocketAddress) remoteAddress).getAddress(), filename, length);
+        }
+
+        private void endGet() throws IOException {
+            transfer.close();
+            transfer = null;
+            getFile.close();
+            getFile = null;
+        }
+
+        @Override
+        public void send(byte[] message) {
+            sendMessage(ByteBuffer.wrap(message));
+        }
+
+        /**
+         * Queues a chat message for this client's message socket. Safe to call
+         * from any event loop. A full queue is handled by the configured
+         * overflow policy.
+         */
+        void sendMessage(ByteBuffer message) {
+            if (closed) {
+                return;
+            }
+
+            while (messageDepth.get() >= config.getOutboxCapacity()) {
+                if (config.getOverflowPolicy() == MessageOutbox.OverflowPolicy.DISCONNECT) {
+                    MessageOutbox.recordOverflowDisconnect();
+                    loop.execute(this::close);
+                    return;
+                }
+
+                // the message being written is not in the queue, so the oldest queued one can go
+                if (messageOut.poll() == null) {
+                    break;
+                }
+                messageDepth.decrementAndGet();
+                MessageOutbox.recordQueued(-1);
+                MessageOutbox.recordDropped();
+            }
+
+            messageOut.add(message);
+            messageDepth.incrementAndGet();
+            MessageOutbox.recordQueued(1);
+            if (messageFlushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    try {
+                        flushMessages();
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        void flushMessages() throws IOException {
+            messageFlushScheduled.set(false);
+            if (closed) {
+                return;
+            }
+
+            while (messageHead != null || (messageHead = messageOut.poll()) != null) {
+                ServerMetrics.addBytesOut(messageEndpoint.write(messageHead));
+                if (messageHead.hasRemaining()) {
+                    messageKey.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                messageHead = null;
+                messageDepth.decrementAndGet();
+                MessageOutbox.recordQueued(-1);
+            }
+            messageKey.interestOps(0);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            System.out.println("Server: Client at " + remoteAddress + " has disconnected");
+            ServerMetrics.connectionClosed();
+            MessageOutbox.recordQueued(-messageDepth.getAndSet(0));
+            messageOut.clear();
+            messageHead = null;
+            try {
+                if (getFile != null) {
+                    endGet();
+                }
+                if (upload != null) {
+                    // discards the partial upload
+                    upload.close();
+                }
+                if (patch != null) {
+                    patch.close();
+                }
+                if (batch != null) {
+                    // the entries stored so far are kept
+                    batch.close();
+                }
+                batchNames = null;
+                fileEndpoint.close();
+                messageEndpoint.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            // don't broadcast anything if user is not registered
+            if (registeredHandle == null) {
+                return;
+            }
+
+            registry.unregister(registeredHandle, this);
+            registry.broadcast(String.format("%s disconnected from the server.", registeredHandle));
+        }
+    }
+}
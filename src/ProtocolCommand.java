@@ -0,0 +1,70 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ProtocolCommand lists the commands a client can send to the server, each
+ * with the opcode it has in the framed protocol and the arguments that follow
+ * it in the legacy and mux protocols. The client and every engine look
+ * commands up here, by name or by opcode, in constant time.
+ */
+enum ProtocolCommand {
+    REGISTER(FramedConnection.REGISTER, "U"),
+    DIR(FramedConnection.DIR, ""),
+    DIR_PAGE(FramedConnection.DIR_PAGE, "UUUI"),
+    STORE(FramedConnection.STORE, "UL"),
+    STORE_STATUS(FramedConnection.STORE_STATUS, "UL"),
+    STORE_RANGE(FramedConnection.STORE_RANGE, "ULL"),
+    STORE_DELTA(FramedConnection.STORE_DELTA, "ULUL"),
+    STORE_BATCH(FramedConnection.STORE_BATCH, ""),
+    SIGNATURES(FramedConnection.SIGNATURES, "U"),
+    GET(FramedConnection.GET, "U"),
+    GET_RANGE(FramedConnection.GET_RANGE, "ULLU"),
+    GET_BATCH(FramedConnection.GET_BATCH, "U"),
+    COMPRESSION(FramedConnection.COMPRESSION, "U"),
+    MESSAGE(FramedConnection.MESSAGE, "UUU"),
+    BROADCAST(FramedConnection.BROADCAST, "UU"),
+    STATS(FramedConnection.STATS, ""),
+    DISCONNECT(FramedConnection.DISCONNECT, "");
+
+    private static final Map<String, ProtocolCommand> byName = new HashMap<>();
+    private static final ProtocolCommand[] byOpcode;
+
+    static {
+        int highest = 0;
+        for (ProtocolCommand command : values()) {
+            byName.put(command.name(), command);
+            highest = Math.max(highest, command.opcode);
+        }
+
+        byOpcode = new ProtocolCommand[highest + 1];
+        for (ProtocolCommand command : values()) {
+            byOpcode[command.opcode] = command;
+        }
+    }
+
+    final int opcode;
+    /**
+     * Number and kind of arguments that follow the command on the wire. `U` is
+     * a writeUTF string, `I` a writeInt value and `L` a writeLong value.
+     */
+    final String arguments;
+
+    private ProtocolCommand(int opcode, String arguments) {
+        this.opcode = opcode;
+        this.arguments = arguments;
+    }
+
+    /**
+     * @return The command sent as the given name, or null if there is none.
+     */
+    static ProtocolCommand of(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return The command with the given opcode, or null if there is none.
+     */
+    static ProtocolCommand of(int opcode) {
+        return opcode >= 0 && opcode < byOpcode.length ? byOpcode[opcode] : null;
+    }
+}
@@ -0,0 +1,394 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SegmentedDownload fetches a large file as byte ranges over several
+ * connections at once, so that one slow TCP stream does not cap the transfer.
+ * The file is split into SEGMENT_SIZE segments that every stream takes from a
+ * shared queue and writes with positional writes into one preallocated
+ * `<target>.part`.
+ *
+ * The download starts with one stream, the client's own connection. Another
+ * one is opened each time the last one raised the throughput by MIN_GAIN,
+ * until maxStreams is reached or an extra stream stops paying off. Only the
+ * mux and framed protocols can open extra connections; with the legacy one a
+ * download always uses a single stream.
+ *
+ * If the download is cut off, `.part` is cut back to the segments that were
+ * complete from the start of the file on, so the next /get resumes from there.
+ * In case the client dies before it can do so, every finished segment is also
+ * noted in `<target>.part.segments`, and the next download cuts `.part` back
+ * by that list before it checks it against the server.
+ */
+final class SegmentedDownload {
+    static final int DEFAULT_STREAMS = 4;
+    static final int MAX_STREAMS = 16;
+
+    private static final long SEGMENT_SIZE = 8L * 1024 * 1024;
+    // below this one stream is as fast as several
+    private static final long MIN_SEGMENTED_SIZE = 4 * SEGMENT_SIZE;
+    private static final long SAMPLE_MILLIS = 1000;
+    private static final double MIN_GAIN = 1.1;
+
+    private final ServerConnection connection;
+    private final String filename;
+    private final File target;
+    private final int maxStreams;
+    private final TransferProgress progress;
+
+    private FileChannel channel;
+    // `[complete prefix: long]` followed by `[offset: long]` per finished segment
+    private FileChannel segmentLog;
+    // segments finish on several streams at once
+    private final ReentrantLock segmentLogLock = new ReentrantLock();
+    private long fileLength;
+    private int totalSegments;
+    private final ConcurrentLinkedQueue<Long> segments = new ConcurrentLinkedQueue<>();
+    private final ConcurrentSkipListSet<Long> completed = new ConcurrentSkipListSet<>();
+    private final AtomicLong received = new AtomicLong();
+    private final List<ServerConnection> extraConnections = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile IOException failure;
+    private volatile IOException lastError;
+
+    private int streams = 1;
+    private long bytesPerSecond = 0;
+
+    /**
+     * @param maxStreams Most connections to download over; 1 downloads over the
+     *                   client's connection only.
+     * @param progress   Counts the bytes as they arrive on any stream.
+     */
+    SegmentedDownload(ServerConnection connection, String filename, File target, int maxStreams,
+            TransferProgress progress) {
+        this.connection = connection;
+        this.filename = filename;
+        this.target = target;
+        this.maxStreams = maxStreams;
+        this.progress = progress;
+    }
+
+    /**
+     * Downloads the file, resuming a `.part` left by an earlier download.
+     *
+     * @return false if the file is not on the server.
+     */
+    boolean run() throws IOException {
+        // streams beyond the first need connections of their own
+        if (maxStreams <= 1 || !connection.canOpenAnother()) {
+            restoreCompletePrefix(ServerConnection.partOf(target));
+            return timed(() -> connection.get(filename, target, progress));
+        }
+
+        Path part = ServerConnection.partOf(target);
+        boolean existed = Files.exists(part);
+        restoreCompletePrefix(part);
+        long start = System.nanoTime();
+        boolean found;
+        boolean segmented = false;
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ)) {
+            this.channel = channel;
+
+            // an empty range only asks for the length, and checks the partial file
+            long offset = channel.size();
+            String digest = offset > 0 ? Checksums.sha256(channel, offset) : "";
+            ServerConnection.Range probe = connection.getRange(filename, offset, 0, digest, null, null);
+            if (probe.response().equals("RANGE_MISMATCH")) {
+                offset = 0;
+                channel.truncate(0);
+                probe = connection.getRange(filename, 0, 0, "", null, null);
+            }
+
+            found = probe.exists();
+            if (found) {
+                fileLength = probe.fileLength();
+                segmented = fileLength - offset >= MIN_SEGMENTED_SIZE;
+                if (segmented) {
+                    progress.expect(fileLength, offset);
+                    download(offset);
+                }
+            }
+        }
+
+        if (!found) {
+            if (!existed) {
+                Files.deleteIfExists(part);
+            }
+            return false;
+        }
+
+        if (!segmented) {
+            // resumes from the same .part
+            streams = 1;
+            return timed(() -> connection.get(filename, target, progress));
+        }
+
+        Files.deleteIfExists(segmentsOf(part));
+        Files.move(part, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        long nanos = Math.max(1, System.nanoTime() - start);
+        bytesPerSecond = (long) (received.get() * 1e9 / nanos);
+        return true;
+    }
+
+    int getStreams() {
+        return streams;
+    }
+
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    private interface Transfer {
+        boolean run() throws IOException;
+    }
+
+    private boolean timed(Transfer transfer) throws IOException {
+        long start = System.nanoTime();
+        boolean found = transfer.run();
+        long nanos = Math.max(1, System.nanoTime() - start);
+        bytesPerSecond = found ? (long) (target.length() * 1e9 / nanos) : 0;
+        return found;
+    }
+
+    private void download(long offset) throws IOException {
+        // before .part has holes, so that a crash from here on leaves the list behind
+        segmentLog = FileChannel.open(segmentsOf(ServerConnection.partOf(target)), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        writeFully(segmentLog, offset);
+
+        // reserve the whole length up front; the segments fill it in any order
+        if (channel.size() < fileLength) {
+            channel.write(ByteBuffer.allocate(1), fileLength - 1);
+        }
+
+        for (long segment = offset; segment < fileLength; segment += SEGMENT_SIZE) {
+            segments.add(segment);
+        }
+        totalSegments = segments.size();
+
+        boolean interrupted = false;
+        try {
+            startWorker(connection);
+            adjustStreams();
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            failure = new IOException("Download interrupted");
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        } finally {
+            segmentLog.close();
+            for (ServerConnection extra : extraConnections) {
+                try {
+                    extra.send("DISCONNECT", out -> {
+                    });
+                    extra.close();
+                } catch (IOException e) {
+                    // already gone
+                }
+            }
+        }
+
+        if (interrupted) {
+            // a worker that is still writing its segment would undo the truncation
+            joinWorkers();
+        }
+
+        if (failure == null && completed.size() < totalSegments) {
+            failure = lastError != null ? lastError : new IOException("Download stopped early");
+        }
+        if (failure != null) {
+            keepCompletePrefix(offset);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            throw failure;
+        }
+    }
+
+    /**
+     * Adds streams while each one raises the throughput enough, measured once
+     * every stream has finished another segment since the last change.
+     */
+    private void adjustStreams() throws InterruptedException {
+        double lastRate = 0;
+        long markTime = System.nanoTime();
+        long markBytes = 0;
+        int markSegments = 0;
+
+        while (streams < maxStreams && failure == null && completed.size() < totalSegments && !segments.isEmpty()) {
+            Thread.sleep(50);
+
+            long elapsed = System.nanoTime() - markTime;
+            if (completed.size() - markSegments < streams || elapsed < SAMPLE_MILLIS * 1_000_000) {
+                continue;
+            }
+
+            double rate = (received.get() - markBytes) * 1e9 / elapsed;
+            if (rate < lastRate * MIN_GAIN) {
+                // the last stream did not pay off; keep what we have
+                return;
+            }
+
+            try {
+                ServerConnection extra = connection.openAnother();
+                extraConnections.add(extra);
+                startWorker(extra);
+                streams++;
+            } catch (IOException e) {
+                // the server will not take more connections
+                return;
+            }
+
+            lastRate = rate;
+            markTime = System.nanoTime();
+            markBytes = received.get();
+            markSegments = completed.size();
+        }
+    }
+
+    private void startWorker(ServerConnection stream) {
+        workers.add(Thread.ofVirtual().name("download-" + filename + "-" + workers.size()).start(() -> work(stream)));
+    }
+
+    private void work(ServerConnection stream) {
+        Long segment;
+        while (failure == null && (segment = segments.poll()) != null) {
+            long length = Math.min(SEGMENT_SIZE, fileLength - segment);
+            try {
+                ServerConnection.Range range = stream.getRange(filename, segment, length, "", channel, progress);
+                if (!range.exists() || range.fileLength() != fileLength || range.received() != length) {
+                    failure = new IOException("File changed on the server during the download");
+                    return;
+                }
+
+                // noted before it counts as complete, so the list never claims more than is there
+                logSegment(segment);
+                completed.add(segment);
+                received.addAndGet(length);
+            } catch (IOException e) {
+                // leave the segment to the other streams
+                segments.add(segment);
+                lastError = e;
+                return;
+            }
+        }
+    }
+
+    private void logSegment(long segment) throws IOException {
+        segmentLogLock.lock();
+        try {
+            writeFully(segmentLog, segment);
+        } finally {
+            segmentLogLock.unlock();
+        }
+    }
+
+    private static void writeFully(FileChannel log, long value) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES).putLong(0, value);
+        while (bytes.hasRemaining()) {
+            log.write(bytes);
+        }
+    }
+
+    /**
+     * Where a segmented download of `.part` notes its finished segments.
+     */
+    private static Path segmentsOf(Path part) {
+        return Paths.get(part + ".segments");
+    }
+
+    /**
+     * Cuts a `.part` that a segmented download left at its full length, e.g.
+     * because the client died, back to the segments its list says are complete
+     * from the start of the file on. Any other `.part` is left alone.
+     */
+    private static void restoreCompletePrefix(Path part) throws IOException {
+        Path log = segmentsOf(part);
+        if (!Files.exists(log)) {
+            return;
+        }
+
+        long end = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)))) {
+            end = in.readLong();
+            Set<Long> done = new HashSet<>();
+            while (true) {
+                done.add(in.readLong());
+                while (done.contains(end)) {
+                    end += SEGMENT_SIZE;
+                }
+            }
+        } catch (EOFException e) {
+            // end of the list, or a last entry that was only half written
+        }
+
+        if (Files.exists(part)) {
+            try (FileChannel file = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                if (file.size() > end) {
+                    file.truncate(end);
+                }
+            }
+        }
+        Files.delete(log);
+    }
+
+    /**
+     * Waits for every worker to stop, even if this thread is interrupted.
+     */
+    private void joinWorkers() {
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    // keep waiting; download() restores the interrupt
+                }
+            }
+        }
+    }
+
+    /**
+     * Cuts `.part` back to the segments that are complete from the start of the
+     * file on, which is what the next download resumes from. Opens the file
+     * anew, since interrupting a worker mid-write closes the shared channel.
+     */
+    private void keepCompletePrefix(long offset) {
+        long end = offset;
+        while (end < fileLength && completed.contains(end)) {
+            end += SEGMENT_SIZE;
+        }
+
+        Path part = ServerConnection.partOf(target);
+        try (FileChannel file = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            file.truncate(Math.min(end, fileLength));
+            // .part is only its complete prefix now
+            Files.deleteIfExists(segmentsOf(part));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,35 +1,72 @@
-import java.io.File;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.ServerSocketChannel;
 
 public class Server {
-    private static ArrayList<File> serverFiles = new ArrayList<>();
-    private static Map<String, Socket> aliasToMessageEndpoint = new HashMap<>();
+    private static FileCatalog catalog;
+    private static HandleRegistry registry = new HandleRegistry();
+    private static TransferScheduler scheduler;
 
     public static void main(String[] args) {
-        String host = args[0];
-        int port = Integer.parseInt(args[1]);
-
         try {
-            // used for file server transfers
-            ServerSocket fileSocket = new ServerSocket(port);
-
-            // used for messages
-            ServerSocket messageSocket = new ServerSocket(5555);
+            ServerConfig config = ServerConfig.parse(args);
+            Upload.removeStale();
+            FileStore store = config.getStorage() == ServerConfig.Storage.DEDUP ? BlobStore.open() : new FlatFileStore();
+            catalog = new FileCatalog(store, new FileCache(config.getCacheSize()));
+            catalog.start();
+            scheduler = new TransferScheduler(config.getBandwidth(), config.getClientBandwidth());
+            ServerMetrics.start(catalog, registry, scheduler);
 
-            System.out.println("Server: Listening on port " + port);
-            while (true) {
-                Socket fileEndpoint = fileSocket.accept();
-                Socket messageEndpoint = messageSocket.accept();
-                System.out.println("Server: Client at " + fileEndpoint.getRemoteSocketAddress() + " has connected");
-                ServerThread st = new ServerThread(fileEndpoint, messageEndpoint, serverFiles, aliasToMessageEndpoint);
-                st.start();
+            if (config.getEngine() == ServerConfig.Engine.NIO) {
+                new NioServer(config, catalog, registry, scheduler).run();
+                return;
             }
+
+            runThreadPerClient(config);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    private static void runThreadPerClient(ServerConfig config) throws Exception {
+        int port = config.getPort();
+
+        // used for file server transfers; opened as a channel so that accepted
+        // sockets are backed by a SocketChannel that GET can transferTo
+        ServerSocketChannel fileSocket = ServerSocketChannel.open();
+        fileSocket.bind(new InetSocketAddress(port));
+
+        // same blocking handler either way; only the kind of thread differs
+        Thread.Builder threadBuilder = config.getEngine() == ServerConfig.Engine.VIRTUAL
+                ? Thread.ofVirtual().name("server-thread-", 0)
+                : Thread.ofPlatform().name("server-thread-", 0);
+
+        System.out.println("Server: Listening on port " + port + " (" + config.getEngine().name().toLowerCase()
+                + " engine, " + config.getProtocol().name().toLowerCase() + " protocol)");
+
+        if (config.getProtocol() != ServerConfig.Protocol.LEGACY) {
+            // one socket per client; the handshake runs on the client's own thread
+            while (true) {
+                Socket endpoint = fileSocket.accept().socket();
+                System.out.println("Server: Client at " + endpoint.getRemoteSocketAddress() + " has connected");
+                if (config.getProtocol() == ServerConfig.Protocol.FRAMED) {
+                    threadBuilder.start(new FramedServerThread(endpoint, config, catalog, registry, scheduler));
+                } else {
+                    threadBuilder.start(new ServerThread(endpoint, config, catalog, registry, scheduler));
+                }
+            }
+        }
+
+        // used for messages
+        ServerSocket messageSocket = new ServerSocket(config.getMessagePort());
+
+        while (true) {
+            Socket fileEndpoint = fileSocket.accept().socket();
+            Socket messageEndpoint = messageSocket.accept();
+            System.out.println("Server: Client at " + fileEndpoint.getRemoteSocketAddress() + " has connected");
+            ServerThread st = new ServerThread(fileEndpoint, messageEndpoint, config, catalog, registry, scheduler);
+            threadBuilder.start(st);
+        }
+    }
 }
@@ -0,0 +1,208 @@
+/**
+ * ServerConfig holds the startup options of the server. The first two
+ * arguments are always the host and the port; everything after them is an
+ * optional flag in the form `--name=value`.
+ *
+ * @see #parse(String[])
+ */
+final class ServerConfig {
+    /**
+     * Connection handling engines the server can be started with. THREAD is the
+     * original thread-per-client model, VIRTUAL runs the same blocking handler on
+     * a virtual thread per client, and NIO multiplexes every connection through a
+     * few selector event loops.
+     */
+    enum Engine {
+        THREAD, VIRTUAL, NIO
+    }
+
+    /**
+     * Wire protocols the server accepts. LEGACY is the original pair of sockets,
+     * one for commands and files and one for chat. MUX carries both over a
+     * single socket, see MuxConnection. FRAMED also uses a single socket but
+     * tags every request with an id so that clients can pipeline them, see
+     * FramedConnection.
+     */
+    enum Protocol {
+        LEGACY, MUX, FRAMED
+    }
+
+    /**
+     * Ways the server can keep its files. FLAT stores each file as a plain file
+     * in server_files. DEDUP stores every distinct chunk of content only once,
+     * see BlobStore.
+     */
+    enum Storage {
+        FLAT, DEDUP
+    }
+
+    // port where clients connect their message (chat) socket
+    private static final int MESSAGE_PORT = 5555;
+
+    private String host;
+    private int port;
+    private Engine engine = Engine.THREAD;
+    private Protocol protocol = Protocol.LEGACY;
+    private Storage storage = Storage.FLAT;
+    private boolean compressionEnabled = true;
+    private long cacheSize = 64L * 1024 * 1024;
+    private long bandwidth = 0;
+    private long clientBandwidth = 0;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int outboxCapacity = 1024;
+    private MessageOutbox.OverflowPolicy overflowPolicy = MessageOutbox.OverflowPolicy.DROP_OLDEST;
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Parses the command line arguments of the server.
+     *
+     * @param args Raw command line arguments.
+     * @return ServerConfig with the defaults replaced by the passed flags.
+     * @throws IllegalArgumentException If a flag is unknown or has a bad value.
+     */
+    public static ServerConfig parse(String[] args) {
+        if (args.length < 2) {
+            throw new IllegalArgumentException(
+                    "Usage: Server <host> <port> [--engine=thread|virtual|nio] [--protocol=legacy|mux|framed]"
+                            + " [--storage=flat|dedup] [--compression=on|off] [--cache-size=MiB]"
+                            + " [--bandwidth=MiB/s] [--client-bandwidth=MiB/s]"
+                            + " [--event-loops=N] [--outbox-capacity=N] [--outbox-overflow=drop-oldest|disconnect]");
+        }
+
+        ServerConfig config = new ServerConfig();
+        config.host = args[0];
+        config.port = Integer.parseInt(args[1]);
+
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq == -1) {
+                throw new IllegalArgumentException("Malformed option: " + arg);
+            }
+
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "engine":
+                    config.engine = Engine.valueOf(value.toUpperCase());
+                    break;
+                case "protocol":
+                    config.protocol = Protocol.valueOf(value.toUpperCase());
+                    break;
+                case "storage":
+                    config.storage = Storage.valueOf(value.toUpperCase());
+                    break;
+                case "compression":
+                    if (!value.equals("on") && !value.equals("off")) {
+                        throw new IllegalArgumentException("Malformed option: " + arg);
+                    }
+                    config.compressionEnabled = value.equals("on");
+                    break;
+                case "cache-size":
+                    config.cacheSize = Math.max(0, Long.parseLong(value)) * 1024 * 1024;
+                    break;
+                case "bandwidth":
+                    config.bandwidth = parseRate(value);
+                    break;
+                case "client-bandwidth":
+                    config.clientBandwidth = parseRate(value);
+                    break;
+                case "event-loops":
+                    config.eventLoops = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "outbox-capacity":
+                    config.outboxCapacity = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "outbox-overflow":
+                    config.overflowPolicy = MessageOutbox.OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        if (config.engine == Engine.NIO && config.protocol != Protocol.LEGACY) {
+            throw new IllegalArgumentException(
+                    "The " + config.protocol.name().toLowerCase() + " protocol needs --engine=thread or --engine=virtual");
+        }
+
+        return config;
+    }
+
+    /**
+     * Parses a rate in MiB/s, which may have a fraction, into bytes per second.
+     */
+    private static long parseRate(String value) {
+        return (long) (Math.max(0, Double.parseDouble(value)) * 1024 * 1024);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getMessagePort() {
+        return MESSAGE_PORT;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Whether clients may ask for compressed transfers. The NIO engine never
+     * compresses.
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Most bytes of file contents the server keeps in memory for GET, see
+     * FileCache. 0 turns the cache off.
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Most bytes per second the server sends of file contents, or 0 for no
+     * limit. See TransferScheduler.
+     */
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Most bytes per second the server sends of file contents to any one
+     * client host, or 0 for no limit.
+     */
+    public long getClientBandwidth() {
+        return clientBandwidth;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public int getOutboxCapacity() {
+        return outboxCapacity;
+    }
+
+    public MessageOutbox.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+}
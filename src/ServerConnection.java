@@ -0,0 +1,609 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * ServerConnection is the client's side of a connection to the server. Commands
+ * and replies go through the reader and writer, file contents through the bulk
+ * reader and writer, and chat messages arrive on the chat stream.
+ *
+ * With the legacy protocol these are two sockets: the file socket carries the
+ * commands and the file contents, and port 5555 carries chat. With the mux
+ * protocol all of them are channels of one MuxConnection.
+ *
+ * The framed protocol has no command streams; every command is a request of a
+ * FramedClient instead. Callers that go through `request`, `send`, `store` and
+ * `get` work the same with every protocol.
+ */
+final class ServerConnection implements Closeable {
+    // port where the legacy protocol expects the message (chat) socket
+    private static final int MESSAGE_PORT = 5555;
+
+    private Socket fileEndpoint;
+    private Socket messageEndpoint;
+    private MuxConnection mux;
+    private FramedClient framed;
+
+    private DataInputStream reader;
+    private DataOutputStream writer;
+    private DataInputStream bulkReader;
+    private DataOutputStream bulkWriter;
+    private InputStream chatStream;
+
+    private String host;
+    private int port;
+    private ServerConfig.Protocol protocol;
+    // whether GET_RANGE and STORE_RANGE contents are Compression blocks
+    private boolean compressed = false;
+
+    /**
+     * Reply to GET_RANGE.
+     *
+     * @param response   FILE_EXISTS, FILE_NOT_IN_SERVER or RANGE_MISMATCH.
+     * @param fileLength Length of the whole file; only set for FILE_EXISTS.
+     * @param received   Number of bytes of the range that were received.
+     */
+    record Range(String response, long fileLength, long received) {
+        boolean exists() {
+            return response.equals("FILE_EXISTS");
+        }
+    }
+
+    private ServerConnection() {
+    }
+
+    /**
+     * Connects to the server, timing out after 10s, and asks it to compress
+     * file contents.
+     *
+     * @param protocol Protocol the server was started with.
+     */
+    static ServerConnection open(String host, int port, ServerConfig.Protocol protocol) throws IOException {
+        ServerConnection connection = new ServerConnection();
+        connection.host = host;
+        connection.port = port;
+        connection.protocol = protocol;
+        try {
+            connection.fileEndpoint = new Socket();
+            connection.fileEndpoint.connect(new InetSocketAddress(host, port), 10000);
+
+            if (protocol == ServerConfig.Protocol.FRAMED) {
+                connection.framed = FramedClient.connect(connection.fileEndpoint);
+                connection.chatStream = connection.framed.getChatStream();
+            } else if (protocol == ServerConfig.Protocol.MUX) {
+                connection.mux = MuxConnection.connect(connection.fileEndpoint);
+                connection.reader = new DataInputStream(connection.mux.getInputStream(MuxConnection.CONTROL));
+                connection.writer = new DataOutputStream(connection.mux.getOutputStream(MuxConnection.CONTROL));
+                connection.bulkReader = new DataInputStream(connection.mux.getInputStream(MuxConnection.BULK));
+                // buffered so that file contents go out in full-sized frames
+                connection.bulkWriter = new DataOutputStream(
+                        new BufferedOutputStream(connection.mux.getOutputStream(MuxConnection.BULK), 64 * 1024));
+                connection.chatStream = connection.mux.getInputStream(MuxConnection.CHAT);
+            } else {
+                connection.messageEndpoint = new Socket();
+                connection.messageEndpoint.connect(new InetSocketAddress(host, MESSAGE_PORT), 10000);
+                connection.reader = new DataInputStream(connection.fileEndpoint.getInputStream());
+                connection.writer = new DataOutputStream(connection.fileEndpoint.getOutputStream());
+                connection.bulkReader = connection.reader;
+                connection.bulkWriter = connection.writer;
+                connection.chatStream = connection.messageEndpoint.getInputStream();
+            }
+
+            String codec = connection.request("COMPRESSION", out -> out.writeUTF(Compression.DEFLATE)).readUTF();
+            connection.compressed = codec.equals(Compression.DEFLATE);
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Whether another connection to the server may be opened safely, e.g. for
+     * an extra download stream. A legacy server pairs the file and chat sockets
+     * of each client in the order they arrive, so a second pair would get
+     * crossed with those of another client that joins at the same moment; the
+     * single-socket protocols pair nothing.
+     */
+    boolean canOpenAnother() {
+        return protocol != ServerConfig.Protocol.LEGACY;
+    }
+
+    /**
+     * Opens another connection to the same server with the same protocol, e.g.
+     * for an extra download stream. It is not registered.
+     */
+    ServerConnection openAnother() throws IOException {
+        if (!canOpenAnother()) {
+            throw new IOException("Cannot open another connection with the legacy protocol");
+        }
+        return open(host, port, protocol);
+    }
+
+    /**
+     * Sends a command and waits for its reply.
+     *
+     * @param command Command name, e.g. REGISTER.
+     * @param args    Writes the arguments of the command.
+     * @return Stream positioned at the start of the reply.
+     */
+    DataInputStream request(String command, FramedConnection.PayloadWriter args) throws IOException {
+        if (framed != null) {
+            FramedClient.Call call = framed.call(FramedConnection.opcodeOf(command), FramedConnection.encode(args));
+            return call.awaitReply().payloadStream();
+        }
+
+        writer.writeUTF(command);
+        args.write(writer);
+        return reader;
+    }
+
+    /**
+     * Sends a command that has no reply.
+     */
+    void send(String command, FramedConnection.PayloadWriter args) throws IOException {
+        if (framed != null) {
+            framed.send(FramedConnection.opcodeOf(command), FramedConnection.encode(args));
+            return;
+        }
+
+        writer.writeUTF(command);
+        args.write(writer);
+    }
+
+    /**
+     * Whether requests may be sent from several threads at once without
+     * waiting for each other's replies. Only the framed protocol allows that;
+     * with the others a command has to wait until the one before it is done.
+     */
+    boolean isPipelined() {
+        return framed != null;
+    }
+
+    /**
+     * Uploads a file to the server under the given name. If an earlier upload
+     * of the same file was cut off, the server still has its start; once the
+     * client has checked that start against the file, only the rest is sent.
+     *
+     * @param progress Counts the bytes of the file as they are sent.
+     * @return false if the server could not store the file.
+     * @throws java.io.FileNotFoundException If the file cannot be opened.
+     */
+    boolean store(String filename, File source, TransferProgress progress) throws IOException {
+        try (FileInputStream fileReader = new FileInputStream(source)) {
+            long fileLength = source.length();
+
+            DataInputStream status = request("STORE_STATUS", out -> {
+                out.writeUTF(filename);
+                out.writeLong(fileLength);
+            });
+            long received = status.readLong();
+            String digest = status.readUTF();
+
+            long start = 0;
+            if (received > 0 && received <= fileLength
+                    && Checksums.sha256(fileReader.getChannel(), received).equals(digest)) {
+                start = received;
+            }
+            fileReader.getChannel().position(start);
+            progress.expect(fileLength, start);
+
+            long offset = start;
+            String reply = upload("STORE_RANGE", out -> {
+                out.writeUTF(filename);
+                out.writeLong(fileLength);
+                out.writeLong(offset);
+            }, out -> {
+                if (!compressed) {
+                    fileReader.transferTo(progress.counting(out));
+                    return;
+                }
+                try (Compression.Encoder encoder = new Compression.Encoder(out, Compression.worthTrying(filename))) {
+                    fileReader.transferTo(progress.counting(encoder));
+                }
+            });
+            return reply.equals("STORE_DONE");
+        }
+    }
+
+    /**
+     * Sends a command whose arguments are followed by a payload, e.g. file
+     * contents, and waits for its one-word reply.
+     *
+     * @param payload Writes exactly as many bytes as the arguments announce.
+     */
+    String upload(String command, FramedConnection.PayloadWriter args, FramedConnection.PayloadWriter payload)
+            throws IOException {
+        return uploadWithReply(command, args, payload).readUTF();
+    }
+
+    /**
+     * Same as upload(), for replies that carry more than one word.
+     *
+     * @return Stream positioned at the start of the reply.
+     */
+    private DataInputStream uploadWithReply(String command, FramedConnection.PayloadWriter args,
+            FramedConnection.PayloadWriter payload) throws IOException {
+        if (framed != null) {
+            FramedClient.Call call = framed.call(FramedConnection.opcodeOf(command), FramedConnection.encode(args));
+
+            // cut into DATA frames of full size
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    framed.sendData(call, b, off, len);
+                }
+            }, FramedConnection.DATA_CHUNK));
+            payload.write(out);
+            out.flush();
+            framed.endData(call);
+            return call.awaitReply().payloadStream();
+        }
+
+        writer.writeUTF(command);
+        args.write(writer);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bulkWriter, 64 * 1024));
+        payload.write(out);
+        out.flush();
+        return reader;
+    }
+
+    /**
+     * Uploads many small files as one STORE_BATCH archive, without a round
+     * trip per file. Unlike store(), a batch that is cut off is sent again
+     * from its first file.
+     *
+     * @param sources  Files by the name they get on the server.
+     * @param progress Counts the bytes of the files as they are sent.
+     * @return Number of files the server stored.
+     * @throws java.io.FileNotFoundException If a file cannot be opened.
+     */
+    int storeBatch(Map<String, File> sources, TransferProgress progress) throws IOException {
+        DataInputStream reply = uploadWithReply("STORE_BATCH", out -> {
+        }, out -> {
+            OutputStream contents = compressed ? new Compression.Encoder(out, true) : out;
+            DataOutputStream archive = new DataOutputStream(contents);
+            for (Map.Entry<String, File> source : sources.entrySet()) {
+                try (FileInputStream fileReader = new FileInputStream(source.getValue())) {
+                    // the announced length has to match what follows, even if the file grows
+                    long length = fileReader.getChannel().size();
+                    Archive.writeHeader(archive, source.getKey(), length);
+                    long copied = new BoundedInputStream(fileReader, length).transferTo(progress.counting(archive));
+                    if (copied < length) {
+                        throw new EOFException("File shrank while being sent: " + source.getKey());
+                    }
+                }
+            }
+            Archive.writeEnd(archive);
+            archive.flush();
+            if (compressed) {
+                // sends the last block but leaves out open
+                contents.close();
+            }
+        });
+
+        reply.readUTF();
+        return reply.readInt();
+    }
+
+    /**
+     * Downloads many small files as one GET_BATCH archive, without a round
+     * trip per file. Each file is written to `<target>.part` and renamed once
+     * complete.
+     *
+     * @param directory Where the files are saved, under their own names.
+     * @param received  Told the name of every file once it is saved.
+     * @param progress  Counts the bytes as they arrive.
+     * @return Names of the files that are not on the server.
+     */
+    List<String> getBatch(List<String> filenames, File directory, Consumer<String> received,
+            TransferProgress progress) throws IOException {
+        Set<String> requested = new HashSet<>(filenames);
+        List<String> missing = new ArrayList<>();
+        Archive.Unpacker unpacker = new Archive.Unpacker((name, length) -> {
+            // only ever write the files that were asked for, under the client's directory
+            if (!requested.remove(name)) {
+                throw new IOException("Server sent a file that was not requested: " + name);
+            }
+            if (length < 0) {
+                missing.add(name);
+                return null;
+            }
+
+            File target = new File(directory, name);
+            Path part = partOf(target);
+            OutputStream file = Files.newOutputStream(part);
+            return new FilterOutputStream(file) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    progress.add(len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    Files.move(part, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    received.accept(name);
+                }
+            };
+        });
+
+        String names = Archive.joinNames(filenames);
+        if (framed != null) {
+            FramedClient.Call call = framed.call(FramedConnection.GET_BATCH,
+                    FramedConnection.encode(out -> out.writeUTF(names)),
+                    reply -> compressed ? new Compression.Decoder(unpacker) : unpacker);
+            call.awaitReply();
+            call.awaitData();
+        } else {
+            writer.writeUTF("GET_BATCH");
+            writer.writeUTF(names);
+
+            if (compressed) {
+                // leaves bulkReader open
+                try (InputStream contents = new Compression.DecodingInputStream(bulkReader)) {
+                    unpacker.readFrom(contents);
+                }
+            } else {
+                unpacker.readFrom(bulkReader);
+            }
+        }
+
+        if (!unpacker.isFinished()) {
+            throw new EOFException("Server disconnected during download");
+        }
+        return missing;
+    }
+
+    /**
+     * Stream that ends after the first `length` bytes of another one.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int bytes = in.read(b, off, (int) Math.min(len, remaining));
+            if (bytes > 0) {
+                remaining -= bytes;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Downloads a file from the server. It is received into `<target>.part`
+     * and renamed to the target once complete. If a `.part` file is left from
+     * a download that was cut off, and the server confirms it is still the
+     * start of the file, only the rest is downloaded.
+     *
+     * @param progress Counts the bytes as they arrive.
+     * @return false if the file is not on the server.
+     */
+    boolean get(String filename, File target, TransferProgress progress) throws IOException {
+        Path part = partOf(target);
+        boolean existed = Files.exists(part);
+        Range range;
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ)) {
+            long offset = channel.size();
+            String digest = offset > 0 ? Checksums.sha256(channel, offset) : "";
+
+            range = getRange(filename, offset, -1, digest, channel, progress);
+            if (range.response().equals("RANGE_MISMATCH")) {
+                // the file changed on the server; start over
+                channel.truncate(0);
+                range = getRange(filename, 0, -1, "", channel, progress);
+            }
+        }
+
+        if (!range.exists()) {
+            if (!existed) {
+                Files.deleteIfExists(part);
+            }
+            return false;
+        }
+
+        Files.move(part, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Where a download of the target is received until it is complete.
+     */
+    static Path partOf(File target) {
+        return Paths.get(target.getPath() + ".part");
+    }
+
+    /**
+     * Downloads a range of a file and writes it into the channel at the same
+     * offset it has in the file. Several threads may write ranges into the same
+     * channel, each through its own connection.
+     *
+     * @param length Number of bytes, or -1 for everything from offset on.
+     * @param digest SHA-256 of the first offset bytes of the file as the client
+     *               has them, checked by the server; empty to skip the check.
+     * @param target   Receives the bytes; may be null if length is 0.
+     * @param progress Counts the bytes as they arrive, and learns the length
+     *                 of the file; may be null.
+     */
+    Range getRange(String filename, long offset, long length, String digest, FileChannel target,
+            TransferProgress progress) throws IOException {
+        FramedConnection.PayloadWriter args = out -> {
+            out.writeUTF(filename);
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.writeUTF(digest);
+        };
+
+        if (framed != null) {
+            PositionalStream[] sink = new PositionalStream[1];
+            FramedClient.Call call = framed.call(FramedConnection.GET_RANGE, FramedConnection.encode(args), reply -> {
+                DataInputStream header = reply.payloadStream();
+                if (!header.readUTF().equals("FILE_EXISTS")) {
+                    return null;
+                }
+                if (progress != null) {
+                    progress.expect(header.readLong(), offset);
+                }
+                sink[0] = new PositionalStream(target, offset, progress);
+                return compressed ? new Compression.Decoder(sink[0]) : sink[0];
+            });
+
+            DataInputStream reply = call.awaitReply().payloadStream();
+            call.awaitData();
+            String response = reply.readUTF();
+            if (!response.equals("FILE_EXISTS")) {
+                return new Range(response, 0, 0);
+            }
+
+            long received = sink[0].getWritten();
+
+            long fileLength = reply.readLong();
+            if (received != reply.readLong()) {
+                throw new EOFException("File changed on the server while being sent");
+            }
+            return new Range(response, fileLength, received);
+        }
+
+        writer.writeUTF("GET_RANGE");
+        args.write(writer);
+
+        String response = reader.readUTF();
+        if (!response.equals("FILE_EXISTS")) {
+            return new Range(response, 0, 0);
+        }
+
+        long fileLength = reader.readLong();
+        long rangeLength = reader.readLong();
+        if (progress != null) {
+            progress.expect(fileLength, offset);
+        }
+        InputStream contents = compressed ? new Compression.DecodingInputStream(bulkReader) : bulkReader;
+        long totalBytes = 0;
+        byte[] buffer = new byte[64 * 1024];
+        while (totalBytes < rangeLength) {
+            int bytes = contents.read(buffer, 0, (int) Math.min(rangeLength - totalBytes, buffer.length));
+            if (bytes == -1) {
+                throw new EOFException("Server disconnected during download");
+            }
+
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, bytes);
+            while (chunk.hasRemaining()) {
+                target.write(chunk, offset + totalBytes + chunk.position());
+            }
+            totalBytes += bytes;
+            if (progress != null) {
+                progress.add(bytes);
+            }
+        }
+        if (compressed) {
+            // leaves bulkReader open
+            contents.close();
+        }
+        return new Range(response, fileLength, totalBytes);
+    }
+
+    /**
+     * Stream that writes into the channel from the given position on, without
+     * moving the channel's own position. Closing it leaves the channel open.
+     */
+    private static final class PositionalStream extends OutputStream {
+        private final FileChannel channel;
+        private final long start;
+        private final TransferProgress progress;
+        private long position;
+
+        PositionalStream(FileChannel channel, long start, TransferProgress progress) {
+            this.channel = channel;
+            this.start = start;
+            this.progress = progress;
+            this.position = start;
+        }
+
+        long getWritten() {
+            return position - start;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer chunk = ByteBuffer.wrap(b, off, len);
+            while (chunk.hasRemaining()) {
+                position += channel.write(chunk, position);
+            }
+            if (progress != null) {
+                progress.add(len);
+            }
+        }
+    }
+
+    public InputStream getChatStream() {
+        return chatStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (framed != null) {
+            framed.close();
+        }
+        if (mux != null) {
+            mux.close();
+        }
+        if (fileEndpoint != null) {
+            fileEndpoint.close();
+        }
+        if (messageEndpoint != null) {
+            messageEndpoint.close();
+        }
+    }
+}
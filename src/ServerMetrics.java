@@ -0,0 +1,219 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * ServerMetrics keeps the server's counters: how long each command takes, how
+ * many bytes go in and out, and how many clients are connected. The engines
+ * report into it from their own threads; recording only bumps counters, so it
+ * never locks or allocates. Server publishes it over JMX, and any client can
+ * read it with the STATS command.
+ *
+ * A command's latency is the time from reading it to being done with it,
+ * payload included, e.g. until the last byte of a GET is handed to the socket.
+ * Bytes in are file contents received; bytes out are file contents and chat
+ * sent. Command replies are not counted.
+ */
+final class ServerMetrics implements ServerMetricsMBean {
+    static final String OBJECT_NAME = "FileExchangeSystem:type=ServerMetrics";
+
+    private static final long SAMPLE_MILLIS = 1000;
+
+    // one per command but DISCONNECT, in the order STATS lists them; filled
+    // once, then only read
+    private static final Map<ProtocolCommand, LatencyHistogram> latencies;
+    private static final LongAdder connections = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    // rates over the last sample, kept up to date by the sampler thread
+    private static volatile long bytesInPerSecond = 0;
+    private static volatile long bytesOutPerSecond = 0;
+
+    static {
+        Map<ProtocolCommand, LatencyHistogram> map = new EnumMap<>(ProtocolCommand.class);
+        for (ProtocolCommand command : ProtocolCommand.values()) {
+            if (command != ProtocolCommand.DISCONNECT) {
+                map.put(command, new LatencyHistogram());
+            }
+        }
+        latencies = Collections.unmodifiableMap(map);
+    }
+
+    private final FileCatalog catalog;
+    private final HandleRegistry registry;
+    private final TransferScheduler scheduler;
+
+    private ServerMetrics(FileCatalog catalog, HandleRegistry registry, TransferScheduler scheduler) {
+        this.catalog = catalog;
+        this.registry = registry;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Publishes the metrics of the server over JMX and starts sampling the
+     * byte rates.
+     */
+    static ServerMetrics start(FileCatalog catalog, HandleRegistry registry, TransferScheduler scheduler) {
+        ServerMetrics metrics = new ServerMetrics(catalog, registry, scheduler);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            // the server runs fine without; STATS still works
+            e.printStackTrace();
+        }
+        Thread.ofPlatform().daemon().name("server-metrics").start(ServerMetrics::sample);
+        return metrics;
+    }
+
+    /**
+     * Records how long a command took. Commands that are not timed, e.g.
+     * DISCONNECT or null for an unknown one, are ignored.
+     */
+    static void recordCommand(ProtocolCommand command, long nanos) {
+        LatencyHistogram histogram = latencies.get(command);
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+    }
+
+    static void connectionOpened() {
+        connections.increment();
+    }
+
+    static void connectionClosed() {
+        connections.decrement();
+    }
+
+    static void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    static void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    private static void sample() {
+        long lastIn = bytesIn.sum();
+        long lastOut = bytesOut.sum();
+        long last = System.nanoTime();
+        while (true) {
+            try {
+                Thread.sleep(SAMPLE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long in = bytesIn.sum();
+            long out = bytesOut.sum();
+            long now = System.nanoTime();
+            double seconds = Math.max(1, now - last) / 1e9;
+            bytesInPerSecond = (long) ((in - lastIn) / seconds);
+            bytesOutPerSecond = (long) ((out - lastOut) / seconds);
+            lastIn = in;
+            lastOut = out;
+            last = now;
+        }
+    }
+
+    /**
+     * Text of the reply to STATS.
+     */
+    static String report(FileCatalog catalog, HandleRegistry registry, TransferScheduler scheduler) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Server Statistics");
+        sb.append(String.format("\nConnections: %d active, %d handles registered, %d transfers running",
+                connections.sum(), registry.size(), scheduler.activeTransfers().size()));
+        sb.append(String.format("\nChat: %d messages queued, %d dropped", MessageOutbox.totalDepth(),
+                MessageOutbox.totalDropped()));
+        sb.append(String.format("\nCatalog: %d files", catalog.size()));
+        sb.append(String.format("\nTraffic: %.1f MB/s in, %.1f MB/s out (%.1f MB in, %.1f MB out since start)",
+                bytesInPerSecond / 1e6, bytesOutPerSecond / 1e6, bytesIn.sum() / 1e6, bytesOut.sum() / 1e6));
+        sb.append(String.format("\n%-14s %9s %9s %9s %9s %9s", "Command", "Count", "mean ms", "p50 ms", "p99 ms",
+                "max ms"));
+        for (String line : commandLatencies()) {
+            sb.append("\n").append(line);
+        }
+        return sb.toString();
+    }
+
+    private static String[] commandLatencies() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<ProtocolCommand, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            lines.add(String.format("%-14s %9d %9.2f %9.2f %9.2f %9.2f", entry.getKey(), histogram.getCount(),
+                    histogram.getMeanMicros() / 1e3, histogram.getPercentileMicros(0.50) / 1e3,
+                    histogram.getPercentileMicros(0.99) / 1e3, histogram.getMaxMicros() / 1e3));
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public int getRegisteredHandles() {
+        return registry.size();
+    }
+
+    @Override
+    public int getActiveTransfers() {
+        return scheduler.activeTransfers().size();
+    }
+
+    @Override
+    public long getChatQueueDepth() {
+        return MessageOutbox.totalDepth();
+    }
+
+    @Override
+    public long getChatMessagesDropped() {
+        return MessageOutbox.totalDropped();
+    }
+
+    @Override
+    public int getCatalogSize() {
+        return catalog.size();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBytesInPerSecond() {
+        return bytesInPerSecond;
+    }
+
+    @Override
+    public long getBytesOutPerSecond() {
+        return bytesOutPerSecond;
+    }
+
+    @Override
+    public String[] getCommandLatencies() {
+        return commandLatencies();
+    }
+
+    @Override
+    public String getReport() {
+        return report(catalog, registry, scheduler);
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * ServerMetricsMBean is what JMX clients such as JConsole see of
+ * ServerMetrics, under `FileExchangeSystem:type=ServerMetrics`.
+ */
+public interface ServerMetricsMBean {
+    long getActiveConnections();
+
+    int getRegisteredHandles();
+
+    int getActiveTransfers();
+
+    /**
+     * Chat messages waiting in the outboxes of all clients.
+     */
+    long getChatQueueDepth();
+
+    long getChatMessagesDropped();
+
+    int getCatalogSize();
+
+    /**
+     * File contents received since the server started, in bytes.
+     */
+    long getBytesIn();
+
+    /**
+     * File contents and chat sent since the server started, in bytes.
+     */
+    long getBytesOut();
+
+    long getBytesInPerSecond();
+
+    long getBytesOutPerSecond();
+
+    /**
+     * One line per command that has run: count, mean, p50, p99 and max.
+     */
+    String[] getCommandLatencies();
+
+    /**
+     * Everything above as the text that STATS returns.
+     */
+    String getReport();
+}
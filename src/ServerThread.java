@@ -1,115 +1,193 @@
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * ServerThread handles every command of one connected client. It is a plain
+ * Runnable so that Server can run it on either a platform or a virtual thread.
+ *
+ * Commands and their replies go through reader and writer, file contents
+ * through bulkIn and bulkOut, and chat through the outbox. With the legacy
+ * protocol the first two share the file socket and chat has its own socket;
+ * with the mux protocol each is a channel of the client's MuxConnection.
+ */
+public class ServerThread implements Runnable {
+    // handler of every command but DISCONNECT, which ends the loop in run
+    private static final Map<ProtocolCommand, Consumer<ServerThread>> handlers = new EnumMap<>(
+            ProtocolCommand.class);
+
+    static {
+        handlers.put(ProtocolCommand.REGISTER, ServerThread::doRegisterCmd);
+        handlers.put(ProtocolCommand.DIR, ServerThread::doDirCmd);
+        handlers.put(ProtocolCommand.DIR_PAGE, ServerThread::doDirPageCmd);
+        handlers.put(ProtocolCommand.STORE, ServerThread::doStoreCmd);
+        handlers.put(ProtocolCommand.STORE_STATUS, ServerThread::doStoreStatusCmd);
+        handlers.put(ProtocolCommand.STORE_RANGE, ServerThread::doStoreRangeCmd);
+        handlers.put(ProtocolCommand.STORE_DELTA, ServerThread::doStoreDeltaCmd);
+        handlers.put(ProtocolCommand.STORE_BATCH, ServerThread::doStoreBatchCmd);
+        handlers.put(ProtocolCommand.SIGNATURES, ServerThread::doSignaturesCmd);
+        handlers.put(ProtocolCommand.GET, ServerThread::doGetCmd);
+        handlers.put(ProtocolCommand.GET_RANGE, ServerThread::doGetRangeCmd);
+        handlers.put(ProtocolCommand.GET_BATCH, ServerThread::doGetBatchCmd);
+        handlers.put(ProtocolCommand.COMPRESSION, ServerThread::doCompressionCmd);
+        handlers.put(ProtocolCommand.MESSAGE, ServerThread::doMsgCmd);
+        handlers.put(ProtocolCommand.BROADCAST, ServerThread::doBcCmd);
+        handlers.put(ProtocolCommand.STATS, ServerThread::doStatsCmd);
+    }
 
-public class ServerThread extends Thread {
     private Socket fileEndpoint;
     private Socket messageEndpoint;
     private DataInputStream reader;
     private DataOutputStream writer;
-    private DataOutputStream messageWriter;
-    private FileOutputStream fileWriter;
-    private FileInputStream fileReader;
+    private MuxConnection mux;
+    private ReadableByteChannel bulkIn;
+    private DataOutputStream bulkWriter;
+    private WritableByteChannel bulkOut;
+    private MessageOutbox outbox;
+    // whether GET_RANGE and STORE_RANGE contents are Compression blocks
+    private boolean compressed = false;
 
     private String registeredHandle;
-    private ArrayList<File> serverFiles;
-    private Map<String, Socket> aliasToMessageEndpoint;
+    private ServerConfig config;
+    private FileCatalog catalog;
+    private HandleRegistry registry;
+    private TransferScheduler scheduler;
 
-    public ServerThread(Socket fileEndpoint, Socket messageEndpoint, ArrayList<File> serverFiles,
-            Map<String, Socket> aliasToMessageEndpoint) {
+    public ServerThread(Socket fileEndpoint, Socket messageEndpoint, ServerConfig config, FileCatalog catalog,
+            HandleRegistry registry, TransferScheduler scheduler) {
         this.fileEndpoint = fileEndpoint;
         this.messageEndpoint = messageEndpoint;
-        this.serverFiles = serverFiles;
-        this.aliasToMessageEndpoint = aliasToMessageEndpoint;
+        this.config = config;
+        this.catalog = catalog;
+        this.registry = registry;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Serves a client that speaks the mux protocol over a single socket.
+     */
+    public ServerThread(Socket endpoint, ServerConfig config, FileCatalog catalog, HandleRegistry registry,
+            TransferScheduler scheduler) {
+        this(endpoint, null, config, catalog, registry, scheduler);
     }
 
     @Override
     public void run() {
+        ServerMetrics.connectionOpened();
         try {
-            String msg;
-            reader = new DataInputStream(fileEndpoint.getInputStream());
-            writer = new DataOutputStream(fileEndpoint.getOutputStream());
+            if (messageEndpoint == null) {
+                openMux();
+            } else {
+                openLegacy();
+            }
 
             // continue listening for commands until user disconnects
-            while (!(msg = reader.readUTF()).equals("DISCONNECT")) {
-
-                if (msg.equals("REGISTER")) {
-                    doRegisterCmd();
+            ProtocolCommand command;
+            while ((command = ProtocolCommand.of(reader.readUTF())) != ProtocolCommand.DISCONNECT) {
+                // unknown commands are ignored
+                Consumer<ServerThread> handler = handlers.get(command);
+                if (handler == null) {
                     continue;
                 }
 
-                if (msg.equals("DIR")) {
-                    doDirCmd();
-                    continue;
-                }
-
-                if (msg.equals("STORE")) {
-                    doStoreCmd();
-                    continue;
-                }
-
-                if (msg.equals("GET")) {
-                    doGetCmd();
-                    continue;
-                }
-
-                if (msg.equals("MESSAGE")) {
-                    doMsgCmd();
-                    continue;
-                }
-
-                if (msg.equals("BROADCAST")) {
-                    doBcCmd();
-                    continue;
-                }
+                long started = System.nanoTime();
+                handler.accept(this);
+                writer.flush();
+                ServerMetrics.recordCommand(command, System.nanoTime() - started);
             }
 
             doDisconnectCmd();
-            reader.close();
-            writer.close();
-            fileEndpoint.close();
-            messageEndpoint.close();
-        } catch (SocketException e) {
+        } catch (SocketException | EOFException | ClosedChannelException e) {
+            // also ends up here when the outbox disconnects a client that cannot keep up
             doDisconnectCmd();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            ServerMetrics.connectionClosed();
+        }
+    }
+
+    private void openLegacy() throws Exception {
+        reader = new DataInputStream(fileEndpoint.getInputStream());
+        writer = new DataOutputStream(fileEndpoint.getOutputStream());
+        bulkWriter = writer;
+
+        // let the kernel copy between files and the socket when there is a
+        // SocketChannel behind the endpoint; fall back to copying channels if not
+        if (fileEndpoint.getChannel() != null) {
+            bulkIn = fileEndpoint.getChannel();
+            bulkOut = fileEndpoint.getChannel();
+        } else {
+            bulkIn = Channels.newChannel(reader);
+            bulkOut = Channels.newChannel(writer);
         }
+
+        outbox = new MessageOutbox(messageEndpoint.getOutputStream(),
+                String.valueOf(fileEndpoint.getRemoteSocketAddress()), config.getOutboxCapacity(),
+                config.getOverflowPolicy(), this::closeEndpoints);
+    }
+
+    private void openMux() throws Exception {
+        mux = MuxConnection.accept(fileEndpoint);
+        reader = new DataInputStream(mux.getInputStream(MuxConnection.CONTROL));
+        // buffered so that a reply goes out as one frame, flushed by run() once the command is done
+        writer = new DataOutputStream(new BufferedOutputStream(mux.getOutputStream(MuxConnection.CONTROL)));
+
+        // buffered so that file contents go out in full-sized frames
+        bulkWriter = new DataOutputStream(new BufferedOutputStream(mux.getOutputStream(MuxConnection.BULK), 64 * 1024));
+        bulkIn = Channels.newChannel(mux.getInputStream(MuxConnection.BULK));
+        bulkOut = Channels.newChannel(bulkWriter);
+
+        outbox = new MessageOutbox(mux.getOutputStream(MuxConnection.CHAT),
+                String.valueOf(fileEndpoint.getRemoteSocketAddress()), config.getOutboxCapacity(),
+                config.getOverflowPolicy(), this::closeEndpoints);
     }
 
     private void doDisconnectCmd() {
         System.out.println("Server: Client at " + fileEndpoint.getRemoteSocketAddress() + " has disconnected");
+        closeEndpoints();
 
         // don't broadcast anything if user is not registered
         if (registeredHandle == null) {
             return;
         }
 
-        synchronized (aliasToMessageEndpoint) {
-            aliasToMessageEndpoint.remove(registeredHandle);
-
-            aliasToMessageEndpoint.forEach((alias, endpoint) -> {
-                // skip clients not registered
-                if (endpoint == null) {
-                    return;
-                }
+        registry.unregister(registeredHandle, outbox);
+        registry.broadcast(String.format("%s disconnected from the server.", registeredHandle));
+    }
 
-                try {
-                    messageWriter = new DataOutputStream(endpoint.getOutputStream());
-                    messageWriter.writeUTF(String.format("%s disconnected from the server.", registeredHandle));
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            });
+    private void closeEndpoints() {
+        try {
+            if (outbox != null) {
+                outbox.close();
+            }
+            if (mux != null) {
+                mux.close();
+            }
+            fileEndpoint.close();
+            if (messageEndpoint != null) {
+                messageEndpoint.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
@@ -117,121 +195,256 @@ public class ServerThread extends Thread {
         try {
             String handle = reader.readUTF();
 
-            synchronized (aliasToMessageEndpoint) {
-                if (aliasToMessageEndpoint.containsKey(handle)) {
-                    writer.writeUTF("HANDLE_EXISTS");
-                    return;
-                }
+            if (!registry.register(handle, outbox)) {
+                writer.writeUTF("HANDLE_EXISTS");
+                return;
+            }
 
-                registeredHandle = handle;
-                aliasToMessageEndpoint.put(handle, messageEndpoint);
-                writer.writeUTF("REGISTRATION_DONE");
+            registeredHandle = handle;
+            writer.writeUTF("REGISTRATION_DONE");
 
-                aliasToMessageEndpoint.forEach((alias, endpoint) -> {
-                    // skip clients not registered
-                    if (endpoint == null) {
-                        return;
-                    }
+            registry.broadcast(String.format("%s joined the server.", handle));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-                    try {
-                        messageWriter = new DataOutputStream(endpoint.getOutputStream());
-                        messageWriter.writeUTF(String.format("%s joined the server.", handle));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                });
+    private void doDirCmd() {
+        try {
+            // lock-free read of the catalog; no directory listing involved
+            writer.writeUTF(catalog.legacyListing());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void doDirPageCmd() {
+        try {
+            String pattern = reader.readUTF();
+            String sort = reader.readUTF();
+            String cursor = reader.readUTF();
+            int pageSize = reader.readInt();
+
+            // one write per page no matter how many entries it has
+            writer.write(catalog.page(pattern, sort, cursor, pageSize).encode());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void doStoreCmd() {
+        try {
+            String filename = reader.readUTF();
+            long fileLength = reader.readLong();
+
+            // receive into a temp file so that DIR and GET never see a partial upload
+            try (Upload upload = Upload.begin(catalog.getStore(), filename, fileLength)) {
+                upload.receiveFrom(bulkIn);
+                upload.commit();
             }
+            catalog.refresh(filename);
+
+            Date dateTime = new Date();
+            registry.broadcast(String.format("%s<%s>: Uploaded %s", registeredHandle, dateTime.toString(), filename));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private void doDirCmd() {
-        updateFileList();
+    private void doStoreStatusCmd() {
+        try {
+            String filename = reader.readUTF();
+            long fileLength = reader.readLong();
+
+            writer.write(Upload.status(filename, fileLength));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
+    private void doStoreRangeCmd() {
         try {
-            StringBuilder sb = new StringBuilder();
-            sb.append("Server Directory");
+            String filename = reader.readUTF();
+            long fileLength = reader.readLong();
+            long start = reader.readLong();
+
+            // kept for a later STORE_RANGE if the client is cut off
+            Upload upload = Upload.resume(catalog.getStore(), filename, fileLength, start);
+            if (upload == null) {
+                // nothing to continue from; swallow the bytes so the stream stays in step
+                discard(fileLength - start);
+                writer.writeUTF("STORE_FAILED");
+                return;
+            }
 
-            synchronized (serverFiles) {
-                if (serverFiles.size() == 0) {
-                    sb.append("\nNo files found");
-                    writer.writeUTF(sb.toString());
-                    return;
+            try (upload) {
+                if (compressed) {
+                    try (InputStream in = decodingBulkIn()) {
+                        upload.receiveFrom(in);
+                    }
+                } else {
+                    upload.receiveFrom(bulkIn);
                 }
+                upload.commit();
+            }
+            catalog.refresh(filename);
+            writer.writeUTF("STORE_DONE");
 
-                for (File file : serverFiles) {
-                    sb.append("\n");
-                    sb.append(file.getName());
+            Date dateTime = new Date();
+            registry.broadcast(String.format("%s<%s>: Uploaded %s", registeredHandle, dateTime.toString(), filename));
+        } catch (SocketException | EOFException | ClosedChannelException e) {
+            // the partial upload is kept; run() notices that the client is gone
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void doStoreBatchCmd() {
+        BatchTransfer batch = new BatchTransfer(catalog);
+        try {
+            // the archive ends itself; read it without buffering so nothing after it is consumed
+            if (compressed) {
+                try (InputStream in = decodingBulkIn()) {
+                    batch.unpacker().readFrom(in);
                 }
+            } else {
+                batch.unpacker().readFrom(Channels.newInputStream(bulkIn));
+            }
+            writer.writeUTF(batch.getResponse());
+            writer.writeInt(batch.getStored());
+
+            Date dateTime = new Date();
+            registry.broadcast(String.format("%s<%s>: Uploaded %d files", registeredHandle, dateTime.toString(),
+                    batch.getStored()));
+        } catch (SocketException | EOFException | ClosedChannelException e) {
+            // the entries stored so far are kept; run() notices that the client is gone
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                batch.close();
+            } catch (Exception e) {
+                e.printStackTrace();
             }
+        }
+    }
 
-            writer.writeUTF(sb.toString());
+    private void doGetBatchCmd() {
+        try {
+            List<String> names = Archive.splitNames(reader.readUTF());
+
+            // many small files per write instead of a round trip each
+            OutputStream buffered = compressed ? new Compression.Encoder(bulkWriter, true)
+                    : new BufferedOutputStream(bulkWriter, 64 * 1024);
+            DataOutputStream archive = new DataOutputStream(buffered);
+            BatchTransfer.pack(catalog, scheduler, fileEndpoint.getInetAddress(), names, archive);
+            // the encoder sends its last block on close but leaves bulkWriter open
+            if (compressed) {
+                archive.close();
+            } else {
+                archive.flush();
+            }
+            bulkWriter.flush();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private void doStoreCmd() {
+    private void doSignaturesCmd() {
+        try {
+            String filename = reader.readUTF();
+
+            writer.write(DeltaPatch.signatures(catalog, filename));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void doStoreDeltaCmd() {
         try {
             String filename = reader.readUTF();
             long fileLength = reader.readLong();
-            fileWriter = new FileOutputStream(System.getProperty("user.dir") + "\\server_files\\" + filename);
-
-            int bytes = 0;
-            long totalBytes = 0;
-            byte[] buffer = new byte[4 * 1024];
-            while ((bytes = reader.read(buffer, 0, (int) Math.min(fileLength - totalBytes, buffer.length))) != -1 &&
-                    totalBytes < fileLength) {
-                fileWriter.write(buffer, 0, bytes);
-                totalBytes += bytes;
+            String digest = reader.readUTF();
+            long deltaLength = reader.readLong();
+
+            boolean stored;
+            try (DeltaPatch patch = DeltaPatch.begin(catalog, filename, fileLength, digest, deltaLength)) {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                while (patch.remaining() > 0) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), patch.remaining()));
+                    if (bulkIn.read(buffer) == -1) {
+                        throw new EOFException();
+                    }
+                    patch.write(buffer.flip());
+                }
+                stored = patch.finish();
+            }
+
+            if (!stored) {
+                writer.writeUTF("STORE_FAILED");
+                return;
             }
+            catalog.refresh(filename);
+            writer.writeUTF("STORE_DONE");
 
             Date dateTime = new Date();
-            synchronized (aliasToMessageEndpoint) {
-                aliasToMessageEndpoint.forEach((alias, endpoint) -> {
-                    // skip clients not registered
-                    if (endpoint == null) {
-                        return;
-                    }
+            registry.broadcast(String.format("%s<%s>: Uploaded %s", registeredHandle, dateTime.toString(), filename));
+        } catch (SocketException | EOFException | ClosedChannelException e) {
+            // run() notices that the client is gone
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-                    try {
-                        messageWriter = new DataOutputStream(endpoint.getOutputStream());
-                        messageWriter
-                                .writeUTF(String.format("%s<%s>: Uploaded %s", registeredHandle, dateTime.toString(),
-                                        filename));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                });
-            }
-            fileWriter.close();
+    private void doCompressionCmd() {
+        try {
+            String offered = reader.readUTF();
 
-            updateFileList();
+            // contents are only encoded from the next transfer on
+            compressed = config.isCompressionEnabled() && Arrays.asList(offered.split(",")).contains(Compression.DEFLATE);
+            writer.writeUTF(compressed ? Compression.DEFLATE : Compression.NONE);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private InputStream decodingBulkIn() {
+        return new Compression.DecodingInputStream(new DataInputStream(Channels.newInputStream(bulkIn)));
+    }
+
+    private void discard(long bytes) throws Exception {
+        if (compressed) {
+            try (InputStream in = decodingBulkIn()) {
+                in.skipNBytes(bytes);
+            }
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (bytes > 0) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), bytes));
+            int read = bulkIn.read(buffer);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            bytes -= read;
+        }
+    }
+
     private void doGetCmd() {
         try {
             String filename = reader.readUTF();
 
-            File file = new File(System.getProperty("user.dir") + "\\server_files\\" + filename);
-            fileReader = new FileInputStream(System.getProperty("user.dir") + "\\server_files\\" + filename);
-            writer.writeUTF("FILE_EXISTS");
+            try (FileChannel fileReader = catalog.open(filename)) {
+                writer.writeUTF("FILE_EXISTS");
 
-            long fileLength = file.length();
-            writer.writeLong(fileLength);
+                long fileLength = fileReader.size();
+                writer.writeLong(fileLength);
+                writer.flush();
 
-            int bytes = 0;
-            byte[] buffer = new byte[4 * 1024];
-            while ((bytes = fileReader.read(buffer)) != -1) {
-                writer.write(buffer, 0, bytes);
+                sendRange(fileReader, 0, fileLength, filename, false);
             }
-
-            fileReader.close();
-        } catch (FileNotFoundException e) {
+        } catch (NoSuchFileException e) {
             try {
                 writer.writeUTF("FILE_NOT_IN_SERVER");
             } catch (Exception e2) {
@@ -242,89 +455,135 @@ public class ServerThread extends Thread {
         }
     }
 
-    private void doMsgCmd() {
-        synchronized (aliasToMessageEndpoint) {
-            try {
-                String receiverHandle = reader.readUTF();
-                String senderHandle = reader.readUTF();
-                String message = reader.readUTF();
-
-                messageWriter = new DataOutputStream(messageEndpoint.getOutputStream());
-
-                if (senderHandle.equals(receiverHandle)) {
-                    messageWriter.writeUTF(
-                            "Error: Unicast messaging failed. You cannot message yourself. That'd be pretty weird.");
-                    return;
-                }
-
-                if (!aliasToMessageEndpoint.containsKey(receiverHandle)) {
-                    messageWriter.writeUTF(
-                            "Error: Unicast messaging failed. Specified alias or handle does not exist/is not registered in the server.");
+    private void doGetRangeCmd() {
+        try {
+            String filename = reader.readUTF();
+            long offset = reader.readLong();
+            long length = reader.readLong();
+            String digest = reader.readUTF();
+
+            try (FileChannel fileReader = catalog.open(filename)) {
+                // the client's partial file has to be the start of this file
+                long fileLength = fileReader.size();
+                if (offset > fileLength || (!digest.isEmpty() && !Checksums.sha256(fileReader, offset).equals(digest))) {
+                    writer.writeUTF("RANGE_MISMATCH");
                     return;
                 }
 
-                // send message to recipient
-                messageWriter = new DataOutputStream(aliasToMessageEndpoint.get(receiverHandle).getOutputStream());
-                messageWriter.writeUTF(String.format("Message from %s: %s", senderHandle, message));
+                long rangeLength = length < 0 ? fileLength - offset : Math.min(length, fileLength - offset);
+                writer.writeUTF("FILE_EXISTS");
+                writer.writeLong(fileLength);
+                writer.writeLong(rangeLength);
+                writer.flush();
 
-                // let sender know they've sent the message successfully
-                messageWriter = new DataOutputStream(messageEndpoint.getOutputStream());
-                messageWriter.writeUTF("Message sent successfully!");
-            } catch (Exception e) {
-                e.printStackTrace();
+                sendRange(fileReader, offset, rangeLength, filename, compressed);
+            }
+        } catch (NoSuchFileException e) {
+            try {
+                writer.writeUTF("FILE_NOT_IN_SERVER");
+            } catch (Exception e2) {
+                e2.printStackTrace();
             }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
-    private void doBcCmd() {
-        synchronized (aliasToMessageEndpoint) {
-            try {
-                String senderHandle = reader.readUTF();
-                String message = reader.readUTF();
+    /**
+     * Sends part of a file on bulkOut, a slice at a time as the
+     * TransferScheduler allows.
+     *
+     * @param encode Whether to send Compression blocks.
+     */
+    private void sendRange(FileChannel fileReader, long offset, long length, String filename, boolean encode)
+            throws Exception {
+        try (TransferScheduler.Transfer transfer = scheduler.start(fileEndpoint.getInetAddress(), filename, length)) {
+            if (encode) {
+                sendCompressed(fileReader, offset, length, filename, transfer);
+                return;
+            }
 
-                aliasToMessageEndpoint.forEach((alias, endpoint) -> {
-                    // skip clients not registered
-                    if (endpoint == null) {
-                        return;
-                    }
+            // straight from the page cache to the socket (sendfile) when
+            // bulkOut is the socket's own channel
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                long slice = transfer.nextSlice(end - position);
+                transfer.acquire(slice);
+
+                long sliceEnd = position + slice;
+                while (position < sliceEnd) {
+                    position += fileReader.transferTo(position, sliceEnd - position, bulkOut);
+                }
+            }
+            bulkWriter.flush();
+        }
+    }
 
-                    try {
-                        messageWriter = new DataOutputStream(endpoint.getOutputStream());
-                        messageWriter.writeUTF(String.format("Broadcast from %s: %s", senderHandle, message));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                });
-            } catch (Exception e) {
-                e.printStackTrace();
+    private void sendCompressed(FileChannel fileReader, long offset, long length, String filename,
+            TransferScheduler.Transfer transfer) throws Exception {
+        // paced after encoding, so that compressed contents take less of the bandwidth
+        try (Compression.Encoder out = new Compression.Encoder(transfer.pace(bulkWriter),
+                Compression.worthTrying(filename))) {
+            ByteBuffer buffer = ByteBuffer.allocate(Compression.BLOCK_SIZE);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int bytes = fileReader.read(buffer, position);
+                if (bytes == -1) {
+                    throw new EOFException("File shrank while being sent");
+                }
+                out.write(buffer.array(), 0, bytes);
+                position += bytes;
             }
         }
     }
 
-    private void updateFileList() {
-        synchronized (serverFiles) {
-            serverFiles.clear();
+    private void doMsgCmd() {
+        try {
+            String receiverHandle = reader.readUTF();
+            String senderHandle = reader.readUTF();
+            String message = reader.readUTF();
 
-            try {
-                // create ./server_files directory if it doesn't exist
-                Files.createDirectories(Paths.get("./server_files"));
+            if (senderHandle.equals(receiverHandle)) {
+                outbox.send("Error: Unicast messaging failed. You cannot message yourself. That'd be pretty weird.");
+                return;
+            }
 
-                // get files in server directory
-                File[] files = new File("./server_files").listFiles();
+            MessageEndpoint receiver = registry.lookup(receiverHandle);
+            if (receiver == null) {
+                outbox.send(
+                        "Error: Unicast messaging failed. Specified alias or handle does not exist/is not registered in the server.");
+                return;
+            }
 
-                // abort if ./server_files cannot be accessed
-                if (files == null) {
-                    return;
-                }
+            // send message to recipient
+            receiver.send(MessageOutbox.encode(String.format("Message from %s: %s", senderHandle, message)));
 
-                for (File file : files) {
-                    if (file.isFile()) {
-                        serverFiles.add(file);
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            // let sender know they've sent the message successfully
+            outbox.send("Message sent successfully!");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void doBcCmd() {
+        try {
+            String senderHandle = reader.readUTF();
+            String message = reader.readUTF();
+
+            registry.broadcast(String.format("Broadcast from %s: %s", senderHandle, message));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void doStatsCmd() {
+        try {
+            writer.writeUTF(ServerMetrics.report(catalog, registry, scheduler));
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 }
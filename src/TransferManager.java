@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TransferManager queues the files of /get and /store and runs a few of them
+ * at a time on the ClientEngine, so a user can hand it hundreds of files in
+ * one command. A transfer whose attempt throws an IOException is tried again
+ * after a pause, which a timer waits out so that no thread of the ClientEngine
+ * is held up meanwhile; downloads and uploads resume from where they stopped,
+ * so a retry only moves what is missing.
+ *
+ * Only parallel transfers count toward the limit. The others run on the
+ * command thread one after the other, so they are started one at a time and
+ * the rest stay queued meanwhile.
+ */
+final class TransferManager {
+    static final int DEFAULT_JOBS = 3;
+    static final int MAX_JOBS = 8;
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final ClientEngine clientEngine;
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "client-retries");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Job> queue = new ArrayDeque<>();
+    private final List<Job> running = new ArrayList<>();
+    private int maxJobs = DEFAULT_JOBS;
+
+    /**
+     * One attempt at a transfer.
+     */
+    interface Attempt {
+        /**
+         * @return Message to print once done, also for failures that
+         *         another attempt would not fix.
+         * @throws IOException If another attempt might succeed, i.e. it
+         *                     would not find the connection closed or left
+         *                     halfway through a command.
+         */
+        String run(TransferProgress progress) throws IOException;
+    }
+
+    /**
+     * Transfer of one file.
+     *
+     * @param label    Names the transfer, e.g. "Receiving report.pdf".
+     * @param parallel Whether it may run beside other commands, see
+     *                 ClientEngine.transfer.
+     */
+    record Job(String label, boolean parallel, Attempt attempt, TransferProgress progress) {
+        Job(String label, boolean parallel, Attempt attempt) {
+            this(label, parallel, attempt, new TransferProgress());
+        }
+    }
+
+    TransferManager(ClientEngine clientEngine) {
+        this.clientEngine = clientEngine;
+    }
+
+    /**
+     * Queues transfers behind the ones already queued and starts as many as
+     * the limit allows.
+     */
+    void submit(List<Job> jobs) {
+        lock.lock();
+        try {
+            queue.addAll(jobs);
+            startQueued();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many parallel transfers may run at once; takes effect as
+     * transfers finish.
+     */
+    void setMaxJobs(int maxJobs) {
+        lock.lock();
+        try {
+            this.maxJobs = maxJobs;
+            startQueued();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lists the running and the queued transfers, for /queue.
+     */
+    String describe() {
+        lock.lock();
+        try {
+            if (running.isEmpty() && queue.isEmpty()) {
+                return "No transfers are running or queued.";
+            }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d running, %d queued, at most %d in parallel", running.size(), queue.size(),
+                    maxJobs));
+            for (Job job : running) {
+                sb.append("\n").append(job.label()).append(": ").append(job.progress().summary());
+            }
+            for (Job job : queue) {
+                sb.append("\n").append(job.label()).append(": queued");
+            }
+            return sb.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startQueued() {
+        long parallel = running.stream().filter(Job::parallel).count();
+        boolean serial = parallel < running.size();
+
+        List<Job> started = new ArrayList<>();
+        for (Iterator<Job> it = queue.iterator(); it.hasNext();) {
+            Job job = it.next();
+            if (job.parallel() ? parallel >= maxJobs : serial) {
+                continue;
+            }
+
+            it.remove();
+            running.add(job);
+            started.add(job);
+            if (job.parallel()) {
+                parallel++;
+            } else {
+                serial = true;
+            }
+        }
+        clientEngine.setQueued(queue.size());
+
+        // not while iterating; a job that is over at once starts the next ones itself
+        for (Job job : started) {
+            launch(job, 1);
+        }
+    }
+
+    private void finished(Job job) {
+        lock.lock();
+        try {
+            running.remove(job);
+            startQueued();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs one attempt of a running job, and once it is over either schedules
+     * the next one or lets the next queued job start.
+     */
+    private void launch(Job job, int attempt) {
+        // set when the attempt failed in a way another attempt may fix
+        AtomicBoolean retry = new AtomicBoolean(false);
+        clientEngine.transfer(job.label(), job.progress(), job.parallel(), () -> run(job, attempt, retry))
+                .whenComplete((message, e) -> {
+                    if (retry.get()) {
+                        // wait longer after every failure
+                        retries.schedule(() -> launch(job, attempt + 1), RETRY_MILLIS << (attempt - 1),
+                                TimeUnit.MILLISECONDS);
+                    } else {
+                        finished(job);
+                    }
+                });
+    }
+
+    private String run(Job job, int attempt, AtomicBoolean retry) {
+        try {
+            return job.attempt().run(job.progress());
+        } catch (IOException e) {
+            String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            if (attempt == MAX_ATTEMPTS) {
+                return String.format("Error: %s failed after %d attempts: %s", job.label(), attempt, reason);
+            }
+            retry.set(true);
+            return String.format("Error: %s failed: %s. Trying again in %d s.", job.label(), reason,
+                    (RETRY_MILLIS << (attempt - 1)) / 1000);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TransferProgress counts the bytes of one upload or download as they go
+ * through, from whichever threads move them, so that the client window can
+ * show how far a transfer is and how fast it goes while it runs.
+ */
+final class TransferProgress {
+    private final AtomicLong done = new AtomicLong();
+    private volatile long total = -1;
+    private volatile long resumedFrom = 0;
+    private volatile long started = System.nanoTime();
+
+    /**
+     * Sets the length of the transfer once it is known, and starts counting
+     * over if it differs from the last one, e.g. when a delta upload falls
+     * back to sending the whole file. Repeating the same length changes
+     * nothing, so every range of a segmented download may call it.
+     *
+     * @param resumedFrom Bytes that were already there from an earlier
+     *                    attempt; they count as done but not for the speed.
+     */
+    synchronized void expect(long total, long resumedFrom) {
+        if (this.total == total) {
+            return;
+        }
+        this.resumedFrom = resumedFrom;
+        this.total = total;
+        this.started = System.nanoTime();
+        done.set(resumedFrom);
+    }
+
+    /**
+     * Forgets the length and the bytes counted so far, e.g. when a batch is
+     * sent again from its first file.
+     */
+    synchronized void restart() {
+        total = -1;
+        resumedFrom = 0;
+        started = System.nanoTime();
+        done.set(0);
+    }
+
+    void add(long bytes) {
+        done.addAndGet(bytes);
+    }
+
+    /**
+     * Stream that counts every byte written through it.
+     */
+    OutputStream counting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                add(len);
+            }
+        };
+    }
+
+    long getDone() {
+        return done.get();
+    }
+
+    /**
+     * Length of the transfer, or -1 while it is not known yet.
+     */
+    long getTotal() {
+        return total;
+    }
+
+    /**
+     * Average bytes per second since the transfer started, not counting
+     * resumed bytes.
+     */
+    long getBytesPerSecond() {
+        long nanos = Math.max(1, System.nanoTime() - started);
+        return (long) ((done.get() - resumedFrom) * 1e9 / nanos);
+    }
+
+    /**
+     * How far the transfer is, e.g. `42% of 120.0 MB, 11.3 MB/s`.
+     */
+    String summary() {
+        long total = this.total;
+        if (total == -1) {
+            return "waiting";
+        }
+        return String.format("%d%% of %.1f MB, %.1f MB/s", total == 0 ? 100 : getDone() * 100 / total,
+                total / 1048576.0, getBytesPerSecond() / 1048576.0);
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TransferScheduler shares the server's upstream bandwidth between the file
+ * contents it sends. There is a token bucket for the whole server and one per
+ * client host, so a client cannot get around its share by opening more
+ * connections, e.g. for a segmented download.
+ *
+ * Every GET and GET_RANGE reserves its bytes a slice at a time. Reservations
+ * are handed out in the order they are made, so concurrent bulk transfers take
+ * turns slice by slice instead of the first one hogging the link. Transfers of
+ * at most SMALL_TRANSFER bytes are never held back; their bytes are still
+ * counted, so the bulk transfers make room for them. Replies and chat do not
+ * go through the scheduler at all.
+ */
+final class TransferScheduler {
+    // transfers up to this size go out right away, e.g. a small file or a short range
+    static final long SMALL_TRANSFER = 256 * 1024;
+    // most bytes reserved at once, so that transfers interleave finely
+    static final int SLICE = 64 * 1024;
+
+    private final Bucket global;
+    private final long clientRate;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // buckets of client hosts that have a transfer running, by host
+    private final HashMap<InetAddress, Bucket> clients = new HashMap<>();
+    private final Collection<Transfer> active = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param globalRate Most bytes per second for the whole server, or 0 for
+     *                   no limit.
+     * @param clientRate Most bytes per second for each client host, or 0 for
+     *                   no limit.
+     */
+    TransferScheduler(long globalRate, long clientRate) {
+        this.global = new Bucket(globalRate);
+        this.clientRate = clientRate;
+    }
+
+    /**
+     * Starts accounting for the contents of one GET or GET_RANGE. Close the
+     * transfer when it is done or failed.
+     */
+    Transfer start(InetAddress client, String filename, long length) {
+        lock.lock();
+        try {
+            Bucket bucket = clients.computeIfAbsent(client, c -> new Bucket(clientRate));
+            bucket.users++;
+            Transfer transfer = new Transfer(client, bucket, filename, length);
+            active.add(transfer);
+            return transfer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Transfers that are running right now.
+     */
+    Collection<Transfer> activeTransfers() {
+        return active;
+    }
+
+    /**
+     * Token bucket, kept as the time at which it will have paid off every
+     * reservation so far rather than as a token count.
+     */
+    private static final class Bucket {
+        // nanoseconds per byte; 0 for no limit
+        private final double cost;
+        // how far the bucket may lag behind now, i.e. its burst
+        private final long burstNanos;
+        private long next = System.nanoTime();
+        private int users = 0;
+
+        Bucket(long rate) {
+            this.cost = rate > 0 ? 1e9 / rate : 0;
+            // a tenth of a second of credit, and at least a slice
+            this.burstNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(100), (long) (cost * SLICE));
+        }
+
+        /**
+         * Reserves the next bytes this bucket lets through.
+         *
+         * @return Time at which the bytes may be sent.
+         */
+        long reserve(long now, long bytes) {
+            if (cost == 0) {
+                return now;
+            }
+            long start = Math.max(next, now - burstNanos);
+            next = start + (long) (cost * bytes);
+            return start;
+        }
+    }
+
+    /**
+     * Sending side of one GET or GET_RANGE, with its throughput.
+     */
+    final class Transfer implements Closeable {
+        private final InetAddress client;
+        private final Bucket bucket;
+        private final String filename;
+        private final long length;
+        private final boolean small;
+        private final boolean limited;
+        private final long started = System.nanoTime();
+        private volatile long sent = 0;
+        private volatile long throttledNanos = 0;
+        private boolean closed = false;
+
+        private Transfer(InetAddress client, Bucket bucket, String filename, long length) {
+            this.client = client;
+            this.bucket = bucket;
+            this.filename = filename;
+            this.length = length;
+            this.small = length <= SMALL_TRANSFER;
+            this.limited = !small && (global.cost > 0 || bucket.cost > 0);
+        }
+
+        /**
+         * How many of the remaining bytes to reserve and send next: a slice
+         * if the transfer may have to wait, else all of them.
+         */
+        long nextSlice(long remaining) {
+            return limited ? Math.min(remaining, SLICE) : remaining;
+        }
+
+        /**
+         * Reserves the next bytes of the transfer without waiting, for the NIO
+         * engine. The bytes may be sent once the returned delay has passed.
+         *
+         * @return Nanoseconds to wait before sending, 0 to send right away.
+         */
+        long reserve(long bytes) {
+            long now = System.nanoTime();
+            long start;
+            lock.lock();
+            try {
+                // each bucket on its own, so that a host held back by its own
+                // limit does not push the server's bucket, and with it every
+                // other host, back as well
+                start = Math.max(bucket.reserve(now, bytes), global.reserve(now, bytes));
+            } finally {
+                lock.unlock();
+            }
+
+            long delay = small ? 0 : Math.max(0, start - now);
+            sent += bytes;
+            ServerMetrics.addBytesOut(bytes);
+            throttledNanos += delay;
+            return delay;
+        }
+
+        /**
+         * Waits until the next bytes of the transfer may be sent.
+         */
+        void acquire(long bytes) throws IOException {
+            long delay = reserve(bytes);
+            if (delay == 0) {
+                return;
+            }
+
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send " + filename);
+            }
+        }
+
+        /**
+         * Stream that waits for its turn before every slice written to it,
+         * e.g. for compressed contents whose wire size is only known once
+         * they are encoded. Closing it leaves `out` open.
+         */
+        OutputStream pace(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int bytes = (int) nextSlice(len);
+                        acquire(bytes);
+                        out.write(b, off, bytes);
+                        off += bytes;
+                        len -= bytes;
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+
+        InetAddress getClient() {
+            return client;
+        }
+
+        String getFilename() {
+            return filename;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        long getSent() {
+            return sent;
+        }
+
+        /**
+         * Time the transfer spent waiting for bandwidth so far.
+         */
+        long getThrottledMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(throttledNanos);
+        }
+
+        /**
+         * Average bytes per second since the transfer started.
+         */
+        long getThroughput() {
+            long elapsed = Math.max(1, System.nanoTime() - started);
+            return (long) (sent * 1e9 / elapsed);
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (--bucket.users == 0) {
+                    clients.remove(client);
+                }
+            } finally {
+                lock.unlock();
+            }
+            active.remove(this);
+
+            if (!small) {
+                System.out.println(String.format("Server: Sent %s to %s: %.1f MB in %.1f s (%.1f MB/s, %.1f s throttled)",
+                        filename, client.getHostAddress(), sent / 1e6, (System.nanoTime() - started) / 1e9,
+                        getThroughput() / 1e6, throttledNanos / 1e9));
+            }
+        }
+    }
+}
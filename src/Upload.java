@@ -0,0 +1,289 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload receives one STORE payload into a temporary file under
+ * `server_files/.uploads`, so that a half-finished upload never shows up in DIR
+ * and is never served by GET. The temporary file is sized to the announced
+ * length up front. Once every byte is in, `commit()` hands it to the FileStore,
+ * which puts it in place atomically. Closing an upload that was not
+ * committed deletes the temporary file.
+ *
+ * Uploads started with `resume()` are kept instead when they are cut off, so
+ * that the client can continue from the last byte the server received. Those
+ * partial uploads live until the server stops, or for PARTIAL_TTL if nobody
+ * comes back for them.
+ */
+final class Upload implements Closeable {
+    static final Path UPLOAD_DIR = FileCatalog.SERVER_FILES.resolve(".uploads");
+
+    private static final long PARTIAL_TTL = TimeUnit.HOURS.toMillis(24);
+
+    /**
+     * Temporary file of a resumable upload that was cut off. The first
+     * `received` bytes are the start of the client's file.
+     */
+    private record Partial(Path temp, long length, long received, long suspendedAt) {
+    }
+
+    // resumable uploads that were cut off, by target filename
+    private static final ConcurrentHashMap<String, Partial> partials = new ConcurrentHashMap<>();
+
+    private final FileStore store;
+    private final String filename;
+    private final Path temp;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long length;
+    private long position;
+    private long remaining;
+    private boolean committed = false;
+    // filename to keep the upload under if it is cut off; null if not resumable
+    private String resumeKey;
+
+    private Upload(FileStore store, String filename, Path temp, long length, long start) throws IOException {
+        this.store = store;
+        this.filename = filename;
+        this.temp = temp;
+        this.file = new RandomAccessFile(temp.toFile(), "rw");
+        this.channel = file.getChannel();
+        this.length = length;
+        this.position = start;
+        this.remaining = length - start;
+
+        // reserve the whole length now instead of growing the file chunk by chunk
+        file.setLength(length);
+    }
+
+    /**
+     * Starts receiving a file that will be stored in `store` as `filename`.
+     */
+    static Upload begin(FileStore store, String filename, long length) throws IOException {
+        // fail before receiving anything the store would refuse in the end
+        FileStore.checkName(filename);
+        Files.createDirectories(UPLOAD_DIR);
+        // not Files.createTempFile, which would make the stored file owner-only
+        Path temp = Files.createFile(UPLOAD_DIR.resolve(UUID.randomUUID() + ".part"));
+        return new Upload(store, filename, temp, length, 0);
+    }
+
+    /**
+     * Starts or continues a resumable upload for STORE_RANGE.
+     *
+     * @param start Offset the client sends from. 0 starts over; anything else
+     *              must be covered by a partial upload of the same length.
+     * @return null if there is no partial upload to continue from start.
+     */
+    static Upload resume(FileStore store, String filename, long length, long start) throws IOException {
+        FileStore.checkName(filename);
+        removeExpired();
+
+        Partial partial = partials.remove(filename);
+        if (start != 0 && partial != null && partial.length() == length && partial.received() >= start) {
+            Upload upload = new Upload(store, filename, partial.temp(), length, start);
+            upload.resumeKey = filename;
+            return upload;
+        }
+
+        // the client's file changed or it asked for something else; the partial is useless
+        if (partial != null) {
+            Files.deleteIfExists(partial.temp());
+        }
+        if (start != 0) {
+            return null;
+        }
+
+        Upload upload = begin(store, filename, length);
+        upload.resumeKey = filename;
+        return upload;
+    }
+
+    /**
+     * Reply to STORE_STATUS: how many bytes of an upload of this length the
+     * server already has (long) and the hex SHA-256 of those bytes (UTF, empty
+     * if none), so the client can check them against its own file.
+     */
+    static byte[] status(String filename, long length) throws IOException {
+        removeExpired();
+
+        long received = 0;
+        String digest = "";
+        Partial partial = partials.get(filename);
+        if (partial != null && partial.length() == length) {
+            try {
+                digest = Checksums.sha256(partial.temp(), partial.received());
+                received = partial.received();
+            } catch (NoSuchFileException e) {
+                // resumed by someone else meanwhile
+            }
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(80);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeLong(received);
+        out.writeUTF(digest);
+        return bos.toByteArray();
+    }
+
+    private static void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (String filename : partials.keySet()) {
+            Partial partial = partials.get(filename);
+            if (partial != null && now - partial.suspendedAt() > PARTIAL_TTL && partials.remove(filename, partial)) {
+                try {
+                    Files.deleteIfExists(partial.temp());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes temporary files left behind by uploads that were cut off when the
+     * server last stopped.
+     */
+    static void removeStale() {
+        if (!Files.isDirectory(UPLOAD_DIR)) {
+            return;
+        }
+
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(UPLOAD_DIR, "*.part")) {
+            for (Path path : stale) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Receives the rest of the payload from a blocking channel.
+     *
+     * @throws EOFException If the client disconnects before sending everything.
+     */
+    void receiveFrom(ReadableByteChannel source) throws IOException {
+        while (remaining > 0) {
+            // a blocking source only returns 0 once it has reached end of stream
+            if (transferFrom(source) == 0) {
+                throw new EOFException("Client disconnected during upload");
+            }
+        }
+    }
+
+    /**
+     * Receives the rest of the payload from a stream, e.g. one that decodes
+     * compressed blocks.
+     *
+     * @throws EOFException If the client disconnects before sending everything.
+     */
+    void receiveFrom(InputStream source) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        while (remaining > 0) {
+            int bytes = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (bytes == -1) {
+                throw new EOFException("Client disconnected during upload");
+            }
+            write(ByteBuffer.wrap(buffer, 0, bytes));
+        }
+    }
+
+    /**
+     * Stream that writes payload bytes into the file, for callers that are
+     * handed the payload piece by piece. Closing it leaves the upload open.
+     */
+    OutputStream stream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len > remaining) {
+                    throw new IOException("Client sent more than the announced length of " + filename);
+                }
+                Upload.this.write(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    /**
+     * Moves as many payload bytes as the source has available into the file.
+     * Used as is by non-blocking callers.
+     *
+     * @return Number of bytes received.
+     */
+    long transferFrom(ReadableByteChannel source) throws IOException {
+        long bytes = channel.transferFrom(source, position, remaining);
+        position += bytes;
+        remaining -= bytes;
+        ServerMetrics.addBytesIn(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes payload bytes that were already read off the socket.
+     */
+    void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            int written = channel.write(bytes, position);
+            position += written;
+            remaining -= written;
+            ServerMetrics.addBytesIn(written);
+        }
+    }
+
+    long remaining() {
+        return remaining;
+    }
+
+    /**
+     * Stores the received file under its filename. Readers that already opened
+     * the old file keep reading the old contents.
+     */
+    void commit() throws IOException {
+        store.commit(channel, temp, filename);
+        file.close();
+        Files.deleteIfExists(temp);
+        committed = true;
+    }
+
+    /**
+     * Deletes the temporary file of an upload that was not committed, or keeps
+     * it for a later resume if the upload is resumable.
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) {
+            return;
+        }
+
+        file.close();
+        if (resumeKey != null && position > 0 && position < length) {
+            Partial old = partials.put(resumeKey, new Partial(temp, length, position, System.currentTimeMillis()));
+            if (old != null && !old.temp().equals(temp)) {
+                Files.deleteIfExists(old.temp());
+            }
+            return;
+        }
+        Files.deleteIfExists(temp);
+    }
+}
@@ -0,0 +1,145 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Archive.Unpacker is fed the DATA frames of a GET_BATCH, which may end
+ * anywhere in an entry header. Every test feeds it the same archive cut at
+ * every offset.
+ */
+class ArchiveTest {
+    // a name with multi-byte characters, so that a cut can fall inside one
+    private static final String WIDE_NAME = "résumé 文件.txt";
+
+    private static final byte[] SMALL = "hello".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LARGE = new byte[3000];
+
+    static {
+        for (int i = 0; i < LARGE.length; i++) {
+            LARGE[i] = (byte) (i * 31);
+        }
+    }
+
+    /**
+     * The entries of an archive as the Entries saw them, in order. A missing
+     * file is recorded as null.
+     */
+    private static final class Recorder implements Archive.Entries {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+
+        @Override
+        public OutputStream open(String name, long length) {
+            if (length == -1) {
+                entries.put(name, null);
+                return null;
+            }
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    entries.put(name, toByteArray());
+                }
+            };
+        }
+    }
+
+    private static byte[] archive() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        Archive.writeHeader(out, "small.txt", SMALL.length);
+        out.write(SMALL);
+        Archive.writeHeader(out, WIDE_NAME, LARGE.length);
+        out.write(LARGE);
+        Archive.writeHeader(out, "empty.txt", 0);
+        Archive.writeHeader(out, "missing.txt", -1);
+        Archive.writeEnd(out);
+        return bos.toByteArray();
+    }
+
+    private static void assertEntries(Recorder recorder) {
+        assertEquals(Arrays.asList("small.txt", WIDE_NAME, "empty.txt", "missing.txt"),
+                recorder.entries.keySet().stream().toList());
+        assertArrayEquals(SMALL, recorder.entries.get("small.txt"));
+        assertArrayEquals(LARGE, recorder.entries.get(WIDE_NAME));
+        assertArrayEquals(new byte[0], recorder.entries.get("empty.txt"));
+        assertEquals(null, recorder.entries.get("missing.txt"));
+    }
+
+    @Test
+    void unpacksArchiveCutAtEveryOffset() throws IOException {
+        byte[] archive = archive();
+        for (int cut = 0; cut <= archive.length; cut++) {
+            Recorder recorder = new Recorder();
+            Archive.Unpacker unpacker = new Archive.Unpacker(recorder);
+            unpacker.write(archive, 0, cut);
+            unpacker.write(archive, cut, archive.length - cut);
+
+            assertTrue(unpacker.isFinished(), "cut at " + cut);
+            assertEntries(recorder);
+        }
+    }
+
+    @Test
+    void unpacksArchiveOneByteAtATime() throws IOException {
+        byte[] archive = archive();
+        Recorder recorder = new Recorder();
+        Archive.Unpacker unpacker = new Archive.Unpacker(recorder);
+        for (byte b : archive) {
+            unpacker.write(b);
+        }
+
+        assertTrue(unpacker.isFinished());
+        assertEntries(recorder);
+    }
+
+    @Test
+    void readsNoFurtherThanTheEndOfTheArchive() throws IOException {
+        byte[] archive = archive();
+        byte[] trailer = { 1, 2, 3 };
+        for (int cut = 0; cut <= archive.length; cut++) {
+            byte[] stream = Arrays.copyOf(archive, archive.length + trailer.length);
+            System.arraycopy(trailer, 0, stream, archive.length, trailer.length);
+            InputStream in = new CutInputStream(stream, cut);
+
+            Recorder recorder = new Recorder();
+            new Archive.Unpacker(recorder).readFrom(in);
+
+            assertEntries(recorder);
+            assertArrayEquals(trailer, in.readAllBytes(), "cut at " + cut);
+        }
+    }
+
+    @Test
+    void rejectsArchiveThatEndsEarly() throws IOException {
+        byte[] archive = archive();
+        // inside the length of the second entry's header
+        int cut = 2 + "small.txt".length() + Long.BYTES + SMALL.length + 2
+                + WIDE_NAME.getBytes(StandardCharsets.UTF_8).length + 3;
+        Archive.Unpacker unpacker = new Archive.Unpacker(new Recorder());
+        assertThrows(EOFException.class,
+                () -> unpacker.readFrom(new ByteArrayInputStream(Arrays.copyOf(archive, cut))));
+        assertEquals(Long.BYTES - 3, unpacker.needed());
+    }
+
+    @Test
+    void rejectsDataAfterTheEnd() throws IOException {
+        byte[] archive = archive();
+        Archive.Unpacker unpacker = new Archive.Unpacker(new Recorder());
+        unpacker.write(archive);
+        assertThrows(IOException.class, () -> unpacker.write(0));
+    }
+}
@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The blocks of a compressed GET_RANGE or STORE_RANGE arrive in DATA frames
+ * or reads of any size, so the Decoder and the DecodingInputStream are fed
+ * the encoded contents cut at every offset, including inside a block header.
+ */
+class CompressionTest {
+    /**
+     * A block that deflates well, followed by a short block that does not, so
+     * that the encoding holds both kinds.
+     */
+    private static byte[] contents() {
+        byte[] contents = new byte[Compression.BLOCK_SIZE + 1000];
+        byte[] line = "the quick brown fox jumps over the lazy dog\n".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < Compression.BLOCK_SIZE; i++) {
+            contents[i] = line[i % line.length];
+        }
+        byte[] noise = new byte[1000];
+        new Random(42).nextBytes(noise);
+        System.arraycopy(noise, 0, contents, Compression.BLOCK_SIZE, noise.length);
+        return contents;
+    }
+
+    private static byte[] encode(byte[] contents) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (Compression.Encoder encoder = new Compression.Encoder(encoded, true)) {
+            encoder.write(contents);
+        }
+        return encoded.toByteArray();
+    }
+
+    @Test
+    void encodingHoldsBothBlockKinds() throws IOException {
+        byte[] encoded = encode(contents());
+        // kind, then the length of the first block
+        int firstLength = ((encoded[1] & 0xff) << 24) | ((encoded[2] & 0xff) << 16) | ((encoded[3] & 0xff) << 8)
+                | (encoded[4] & 0xff);
+        assertEquals(1, encoded[0], "deflated");
+        assertEquals(0, encoded[5 + firstLength], "raw");
+    }
+
+    @Test
+    void decoderDecodesBlocksCutAtEveryOffset() throws IOException {
+        byte[] contents = contents();
+        byte[] encoded = encode(contents);
+        for (int cut = 0; cut <= encoded.length; cut++) {
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            try (Compression.Decoder decoder = new Compression.Decoder(sink)) {
+                decoder.write(encoded, 0, cut);
+                decoder.write(encoded, cut, encoded.length - cut);
+                assertEquals(contents.length, decoder.getDecoded(), "cut at " + cut);
+            }
+            assertArrayEquals(contents, sink.toByteArray(), "cut at " + cut);
+        }
+    }
+
+    @Test
+    void decoderDecodesBlocksOneByteAtATime() throws IOException {
+        byte[] contents = contents();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (Compression.Decoder decoder = new Compression.Decoder(sink)) {
+            for (byte b : encode(contents)) {
+                decoder.write(b);
+            }
+        }
+        assertArrayEquals(contents, sink.toByteArray());
+    }
+
+    @Test
+    void decodingInputStreamReadsBlocksCutAtEveryOffset() throws IOException {
+        byte[] contents = contents();
+        byte[] encoded = encode(contents);
+        // the next reply on the connection
+        byte[] trailer = { 7, 7, 7 };
+        byte[] stream = Arrays.copyOf(encoded, encoded.length + trailer.length);
+        System.arraycopy(trailer, 0, stream, encoded.length, trailer.length);
+
+        for (int cut = 0; cut <= encoded.length; cut++) {
+            InputStream in = new CutInputStream(stream, cut);
+            byte[] decoded = new byte[contents.length];
+            try (Compression.DecodingInputStream decoding = new Compression.DecodingInputStream(
+                    new DataInputStream(in))) {
+                for (int done = 0; done < decoded.length;) {
+                    done += decoding.read(decoded, done, decoded.length - done);
+                }
+            }
+
+            assertArrayEquals(contents, decoded, "cut at " + cut);
+            assertArrayEquals(trailer, in.readAllBytes(), "cut at " + cut);
+        }
+    }
+
+    @Test
+    void rejectsBlockLongerThanBlockSize() {
+        byte[] header = { 0, 0, 2, 0, 1 };
+        Compression.Decoder decoder = new Compression.Decoder(new ByteArrayOutputStream());
+        assertThrows(IOException.class, () -> decoder.write(header));
+    }
+}
@@ -0,0 +1,23 @@
+import java.io.ByteArrayInputStream;
+
+/**
+ * CutInputStream hands out its bytes so that no read crosses the cut, the way
+ * a socket may return the first part of what was sent and only later the
+ * rest.
+ */
+final class CutInputStream extends ByteArrayInputStream {
+    private final int cut;
+
+    CutInputStream(byte[] bytes, int cut) {
+        super(bytes);
+        this.cut = cut;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        if (pos < cut) {
+            len = Math.min(len, cut - pos);
+        }
+        return super.read(b, off, len);
+    }
+}
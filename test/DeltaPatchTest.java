@@ -0,0 +1,129 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The delta of a STORE_DELTA reaches DeltaPatch.write in whatever pieces the
+ * connection read it in, so every test applies the same delta cut at every
+ * offset, including inside the offset and length of an op header. The stored
+ * files are kept where the build points FileCatalog.SERVER_FILES.
+ */
+class DeltaPatchTest {
+    private static final String FILENAME = "patched.txt";
+    private static final byte[] BASE = new byte[200];
+    private static final byte[] LITERAL = "hello".getBytes(StandardCharsets.UTF_8);
+
+    static {
+        for (int i = 0; i < BASE.length; i++) {
+            BASE[i] = (byte) i;
+        }
+    }
+
+    // no cache, so that every patch opens the stored file as it is now
+    private final FileCatalog catalog = new FileCatalog(new FlatFileStore(), new FileCache(0));
+    private final Path stored = FileCatalog.SERVER_FILES.resolve(FILENAME);
+
+    @BeforeEach
+    void storeBase() throws IOException {
+        Files.createDirectories(FileCatalog.SERVER_FILES);
+        Files.write(stored, BASE);
+    }
+
+    /**
+     * BASE[50, 150), then LITERAL, then BASE[0, 20).
+     */
+    private static byte[] expected() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(BASE, 50, 100);
+        bos.writeBytes(LITERAL);
+        bos.write(BASE, 0, 20);
+        return bos.toByteArray();
+    }
+
+    private static byte[] delta() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(DeltaPatch.COPY);
+        out.writeLong(50);
+        out.writeLong(100);
+        out.writeByte(DeltaPatch.LITERAL);
+        out.writeLong(LITERAL.length);
+        out.write(LITERAL);
+        out.writeByte(DeltaPatch.COPY);
+        out.writeLong(0);
+        out.writeLong(20);
+        return bos.toByteArray();
+    }
+
+    private static String digest(byte[] contents) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(contents));
+    }
+
+    private DeltaPatch begin(byte[] delta, String digest) throws IOException {
+        return DeltaPatch.begin(catalog, FILENAME, expected().length, digest, delta.length);
+    }
+
+    @Test
+    void appliesDeltaCutAtEveryOffset() throws Exception {
+        byte[] delta = delta();
+        byte[] expected = expected();
+        for (int cut = 0; cut <= delta.length; cut++) {
+            storeBase();
+            try (DeltaPatch patch = begin(delta, digest(expected))) {
+                patch.write(ByteBuffer.wrap(delta, 0, cut));
+                patch.write(ByteBuffer.wrap(delta, cut, delta.length - cut));
+                assertTrue(patch.finish(), "cut at " + cut);
+            }
+            assertArrayEquals(expected, Files.readAllBytes(stored), "cut at " + cut);
+        }
+    }
+
+    @Test
+    void appliesDeltaOneByteAtATime() throws Exception {
+        byte[] delta = delta();
+        try (DeltaPatch patch = begin(delta, digest(expected()))) {
+            for (int i = 0; i < delta.length; i++) {
+                patch.write(ByteBuffer.wrap(delta, i, 1));
+            }
+            assertTrue(patch.finish());
+        }
+        assertArrayEquals(expected(), Files.readAllBytes(stored));
+    }
+
+    @Test
+    void keepsStoredFileIfDeltaEndsInsideHeader() throws Exception {
+        byte[] delta = delta();
+        // inside the length of the last COPY
+        byte[] cutOff = Arrays.copyOf(delta, delta.length - 3);
+        try (DeltaPatch patch = DeltaPatch.begin(catalog, FILENAME, expected().length, digest(expected()),
+                cutOff.length)) {
+            patch.write(ByteBuffer.wrap(cutOff));
+            assertFalse(patch.finish());
+        }
+        assertArrayEquals(BASE, Files.readAllBytes(stored));
+    }
+
+    @Test
+    void keepsStoredFileIfDigestDiffers() throws Exception {
+        byte[] delta = delta();
+        try (DeltaPatch patch = begin(delta, digest(BASE))) {
+            patch.write(ByteBuffer.wrap(delta));
+            assertFalse(patch.finish());
+        }
+        assertArrayEquals(BASE, Files.readAllBytes(stored));
+    }
+}